@@ -8,6 +8,7 @@ import be.bagofwords.text.BowString;
 import be.bagofwords.util.KeyValue;
 
 import java.util.Iterator;
+import java.util.List;
 import java.util.stream.Stream;
 
 /**
@@ -19,6 +20,18 @@ public interface DataInterface<T extends Object> extends DataIterable<KeyValue<T
 
     long readCount(long key);
 
+    /**
+     * @return the values of these keys, in the order of the keys, with null for keys that have no value
+     */
+
+    List<T> readMany(long[] keys);
+
+    /**
+     * Reads the counts of these keys into counts, a key without a value has count 0
+     */
+
+    void readCounts(long[] keys, long[] counts);
+
     T read(String key);
 
     T read(BowString key);
@@ -43,6 +56,24 @@ public interface DataInterface<T extends Object> extends DataIterable<KeyValue<T
 
     CloseableIterator<KeyValue<T>> iterator(Iterator<Long> keyIterator);
 
+    /**
+     * The iterator should be closed, some implementations keep the data of the snapshot on disk until it is closed. Values that are still
+     * in the write buffer of a cached data interface were not yet written to the underlying data interface, call {@link #flush()} first to
+     * include them in the snapshot.
+     *
+     * @return an iterator over the values as they were when this method was called, writes that happen while iterating are not visible
+     */
+
+    CloseableIterator<KeyValue<T>> snapshotIterator();
+
+    /**
+     * Only for interfaces with Long values
+     *
+     * @return a cursor over all keys and counts, sorted on key
+     */
+
+    LongCountCursor countCursor();
+
     CloseableIterator<KeyValue<T>> cachedValueIterator();
 
     void optimizeForReading();
@@ -59,6 +90,13 @@ public interface DataInterface<T extends Object> extends DataIterable<KeyValue<T
 
     void increaseCount(long key, Long value);
 
+    /**
+     * Same as {@link #increaseCount(long, Long)}, but interfaces with Long values and a {@link be.bagofwords.db.combinator.LongCombinator}
+     * add the count without boxing it
+     */
+
+    void increaseCount(long key, long value);
+
     void increaseCount(String key);
 
     void increaseCount(long key);
@@ -2,6 +2,7 @@ package be.bagofwords.db;
 
 import be.bagofwords.db.combinator.Combinator;
 import be.bagofwords.db.combinator.OverWriteCombinator;
+import be.bagofwords.db.filedb.FileDataInterfaceOptions;
 import be.bagofwords.db.impl.BaseDataInterface;
 import be.bagofwords.db.impl.BaseDataInterfaceFactory;
 
@@ -18,6 +19,7 @@ public class DataInterfaceConfig<T> {
     public boolean bloomFilter;
     public boolean isTemporary;
     public boolean inMemory;
+    public FileDataInterfaceOptions fileOptions;
 
     public DataInterfaceConfig(String name, Class<T> objectClass, BaseDataInterfaceFactory factory) {
         this.name = name;
@@ -26,6 +28,7 @@ public class DataInterfaceConfig<T> {
         this.combinator = new OverWriteCombinator<>();
         this.cache = true;
         this.bloomFilter = false;
+        this.fileOptions = new FileDataInterfaceOptions();
     }
 
     public DataInterfaceConfig<T> combinator(Combinator<T> combinator) {
@@ -68,6 +71,11 @@ public class DataInterfaceConfig<T> {
         return this;
     }
 
+    public DataInterfaceConfig<T> fileOptions(FileDataInterfaceOptions fileOptions) {
+        this.fileOptions = fileOptions;
+        return this;
+    }
+
     public BaseDataInterface<T> create() {
         return factory.createFromConfig(this);
     }
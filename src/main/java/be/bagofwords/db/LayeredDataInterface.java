@@ -6,6 +6,7 @@ import be.bagofwords.iterator.CloseableIterator;
 import be.bagofwords.util.KeyValue;
 
 import java.util.Iterator;
+import java.util.List;
 import java.util.stream.Stream;
 
 public abstract class LayeredDataInterface<T> extends BaseDataInterface<T> {
@@ -22,11 +23,31 @@ public abstract class LayeredDataInterface<T> extends BaseDataInterface<T> {
         return baseInterface.read(key);
     }
 
+    @Override
+    public long readCount(long key) {
+        return baseInterface.readCount(key);
+    }
+
+    @Override
+    public List<T> readMany(long[] keys) {
+        return baseInterface.readMany(keys);
+    }
+
+    @Override
+    public void readCounts(long[] keys, long[] counts) {
+        baseInterface.readCounts(keys, counts);
+    }
+
     @Override
     public void write(long key, T value) {
         baseInterface.write(key, value);
     }
 
+    @Override
+    public void increaseCount(long key, long value) {
+        baseInterface.increaseCount(key, value);
+    }
+
     @Override
     public CloseableIterator<KeyValue<T>> iterator() {
         return baseInterface.iterator();
@@ -63,6 +84,11 @@ public abstract class LayeredDataInterface<T> extends BaseDataInterface<T> {
         return baseInterface.apprSize();
     }
 
+    @Override
+    public long exactSize() {
+        return baseInterface.exactSize();
+    }
+
     public void write(Iterator<KeyValue<T>> entries) {
         baseInterface.write(entries);
     }
@@ -71,6 +97,16 @@ public abstract class LayeredDataInterface<T> extends BaseDataInterface<T> {
         return baseInterface.iterator(keyIterator);
     }
 
+    @Override
+    public CloseableIterator<KeyValue<T>> snapshotIterator() {
+        return baseInterface.snapshotIterator();
+    }
+
+    @Override
+    public LongCountCursor countCursor() {
+        return baseInterface.countCursor();
+    }
+
     @Override
     public CloseableIterator<KeyValue<T>> iterator(KeyFilter keyFilter) {
         return baseInterface.iterator(keyFilter);
@@ -89,6 +125,21 @@ public abstract class LayeredDataInterface<T> extends BaseDataInterface<T> {
         return baseInterface.valueIterator(keyFilter);
     }
 
+    @Override
+    public Stream<KeyValue<T>> stream() {
+        return baseInterface.stream();
+    }
+
+    @Override
+    public Stream<KeyValue<T>> stream(KeyFilter keyFilter) {
+        return baseInterface.stream(keyFilter);
+    }
+
+    @Override
+    public Stream<T> streamValues() {
+        return baseInterface.streamValues();
+    }
+
     @Override
     public Stream<T> streamValues(KeyFilter keyFilter) {
         return baseInterface.streamValues(keyFilter);
@@ -0,0 +1,23 @@
+package be.bagofwords.db;
+
+/**
+ * Iterates over the keys and counts of a data interface with Long values, without allocating an object for every count. After
+ * {@link #next()} returned true, the current key and count can be read with {@link #getKey()} and {@link #getCount()}.
+ */
+
+public interface LongCountCursor extends AutoCloseable {
+
+    /**
+     * @return false if there are no more counts
+     */
+
+    boolean next();
+
+    long getKey();
+
+    long getCount();
+
+    @Override
+    void close();
+
+}
@@ -8,7 +8,11 @@ import be.bagofwords.jobs.AsyncJobService;
 import be.bagofwords.logging.Log;
 import be.bagofwords.util.KeyValue;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
 import java.util.concurrent.locks.ReentrantLock;
 
 public class BloomFilterDataInterface<T extends Object> extends LayeredDataInterface<T> {
@@ -47,14 +51,8 @@ public class BloomFilterDataInterface<T extends Object> extends LayeredDataInter
 
     @Override
     public T read(long key) {
-        LongBloomFilterWithCheckSum currentBloomFilter = bloomFilter;
-        boolean validFilter = validBloomFilter(currentBloomFilter);
-        if (!validFilter && modifyBloomFilterLock.tryLock()) {
-            createNewBloomFilter();
-            currentBloomFilter = bloomFilter;
-            modifyBloomFilterLock.unlock();
-        }
-        if (!validFilter || currentKeyForNewBloomFilterCreation < key) {
+        LongBloomFilterWithCheckSum currentBloomFilter = getValidBloomFilter();
+        if (currentBloomFilter == null || currentKeyForNewBloomFilterCreation < key) {
             //we are still creating the bloom filter
             return baseInterface.read(key);
         } else {
@@ -66,6 +64,111 @@ public class BloomFilterDataInterface<T extends Object> extends LayeredDataInter
         }
     }
 
+    @Override
+    public long readCount(long key) {
+        LongBloomFilterWithCheckSum currentBloomFilter = getValidBloomFilter();
+        if (currentBloomFilter == null || currentKeyForNewBloomFilterCreation < key || currentBloomFilter.mightContain(key)) {
+            return baseInterface.readCount(key);
+        } else {
+            return 0;
+        }
+    }
+
+    /**
+     * Keys that are not in the bloom filter are not passed to the base interface
+     */
+
+    @Override
+    public List<T> readMany(long[] keys) {
+        LongBloomFilterWithCheckSum currentBloomFilter = getValidBloomFilter();
+        if (currentBloomFilter == null) {
+            return baseInterface.readMany(keys);
+        }
+        int[] indexesOfKeysToRead = new int[keys.length];
+        int numberOfKeysToRead = 0;
+        for (int i = 0; i < keys.length; i++) {
+            //keys larger than currentKeyForNewBloomFilterCreation are not yet in the bloom filter that is being created
+            if (currentKeyForNewBloomFilterCreation < keys[i] || currentBloomFilter.mightContain(keys[i])) {
+                indexesOfKeysToRead[numberOfKeysToRead++] = i;
+            }
+        }
+        if (numberOfKeysToRead == keys.length) {
+            return baseInterface.readMany(keys);
+        }
+        List<T> result = new ArrayList<>(Collections.nCopies(keys.length, null));
+        if (numberOfKeysToRead > 0) {
+            long[] keysToRead = new long[numberOfKeysToRead];
+            for (int i = 0; i < numberOfKeysToRead; i++) {
+                keysToRead[i] = keys[indexesOfKeysToRead[i]];
+            }
+            List<T> values = baseInterface.readMany(keysToRead);
+            for (int i = 0; i < numberOfKeysToRead; i++) {
+                result.set(indexesOfKeysToRead[i], values.get(i));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Like {@link #readMany(long[])}, keys that are not in the bloom filter are not passed to the base interface
+     */
+
+    @Override
+    public void readCounts(long[] keys, long[] counts) {
+        LongBloomFilterWithCheckSum currentBloomFilter = getValidBloomFilter();
+        if (currentBloomFilter == null) {
+            baseInterface.readCounts(keys, counts);
+            return;
+        }
+        int[] indexesOfKeysToRead = new int[keys.length];
+        int numberOfKeysToRead = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (currentKeyForNewBloomFilterCreation < keys[i] || currentBloomFilter.mightContain(keys[i])) {
+                indexesOfKeysToRead[numberOfKeysToRead++] = i;
+            }
+        }
+        if (numberOfKeysToRead == keys.length) {
+            baseInterface.readCounts(keys, counts);
+            return;
+        }
+        if (counts.length < keys.length) {
+            throw new IllegalArgumentException("Can not read " + keys.length + " counts into an array of length " + counts.length);
+        }
+        Arrays.fill(counts, 0, keys.length, 0);
+        if (numberOfKeysToRead > 0) {
+            long[] keysToRead = new long[numberOfKeysToRead];
+            for (int i = 0; i < numberOfKeysToRead; i++) {
+                keysToRead[i] = keys[indexesOfKeysToRead[i]];
+            }
+            long[] countsRead = new long[numberOfKeysToRead];
+            baseInterface.readCounts(keysToRead, countsRead);
+            for (int i = 0; i < numberOfKeysToRead; i++) {
+                counts[indexesOfKeysToRead[i]] = countsRead[i];
+            }
+        }
+    }
+
+    /**
+     * Creates a new bloom filter if the current filter is no longer valid and no other thread is creating one
+     *
+     * @return the current bloom filter, or null if it was not valid and the keys should be read from the base interface
+     */
+
+    private LongBloomFilterWithCheckSum getValidBloomFilter() {
+        LongBloomFilterWithCheckSum currentBloomFilter = bloomFilter;
+        if (validBloomFilter(currentBloomFilter)) {
+            return currentBloomFilter;
+        }
+        if (modifyBloomFilterLock.tryLock()) {
+            try {
+                createNewBloomFilter();
+            } finally {
+                modifyBloomFilterLock.unlock();
+            }
+        }
+        return null;
+    }
+
     private boolean validBloomFilter(LongBloomFilterWithCheckSum bloomFilter) {
         return bloomFilter != null && actualWriteCount == bloomFilter.getDataCheckSum();
     }
@@ -76,6 +179,12 @@ public class BloomFilterDataInterface<T extends Object> extends LayeredDataInter
         baseInterface.write(key, value);
     }
 
+    @Override
+    public void increaseCount(long key, long value) {
+        tryToUpdateFilter(key);
+        baseInterface.increaseCount(key, value);
+    }
+
     private void tryToUpdateFilter(long key) {
         LongBloomFilterWithCheckSum currFilter = bloomFilter;
         if (currFilter != null) {
@@ -130,14 +239,8 @@ public class BloomFilterDataInterface<T extends Object> extends LayeredDataInter
 
     @Override
     public boolean mightContain(long key) {
-        LongBloomFilterWithCheckSum currentBloomFilter = bloomFilter;
-        boolean validFilter = validBloomFilter(currentBloomFilter);
-        if (!validFilter && modifyBloomFilterLock.tryLock()) {
-            createNewBloomFilter();
-            currentBloomFilter = bloomFilter;
-            modifyBloomFilterLock.unlock();
-        }
-        if (!validFilter || currentKeyForNewBloomFilterCreation < key) {
+        LongBloomFilterWithCheckSum currentBloomFilter = getValidBloomFilter();
+        if (currentBloomFilter == null || currentKeyForNewBloomFilterCreation < key) {
             //we are still creating the bloom filter
             return baseInterface.read(key) != null;
         } else {
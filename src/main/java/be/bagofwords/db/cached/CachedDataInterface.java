@@ -28,6 +28,8 @@ public class CachedDataInterface<T extends Object> extends LayeredDataInterface<
     private ReadCache<T> readCache;
     private boolean readCacheDirty;
     private List<SwappableDynamicMap> writeBuffers;
+    //Only used when the values are counts, see countsWithoutBoxing()
+    private List<SwappableCountBuffer> countWriteBuffers;
     private final MemoryManager memoryManager;
     private final SafeThread initializeCachesThread;
     private long timeOfLastFlushOfWriteBuffer;
@@ -39,8 +41,10 @@ public class CachedDataInterface<T extends Object> extends LayeredDataInterface<
         this.readCache = cachesManager.createNewCache(getName(), baseInterface.getObjectClass());
         this.readCacheDirty = false;
         this.writeBuffers = new ArrayList<>();
+        this.countWriteBuffers = new ArrayList<>();
         for (int i = 0; i < NUM_OF_WRITE_BUFFERS; i++) {
             this.writeBuffers.add(new SwappableDynamicMap());
+            this.countWriteBuffers.add(new SwappableCountBuffer());
         }
         this.initializeCachesThread = new InitializeCachesThread(baseInterface);
         this.initializeCachesThread.start();
@@ -61,6 +65,103 @@ public class CachedDataInterface<T extends Object> extends LayeredDataInterface<
         }
     }
 
+    /**
+     * Only the keys that are not in the read cache are read from the base interface, in a single call.
+     */
+
+    @Override
+    public List<T> readMany(long[] keys) {
+        List<T> result = new ArrayList<>(keys.length);
+        int[] indexesOfMissingKeys = new int[keys.length];
+        int numberOfMissingKeys = 0;
+        for (int i = 0; i < keys.length; i++) {
+            KeyValue<T> cachedValue = readCache.get(keys[i]);
+            if (cachedValue == null) {
+                indexesOfMissingKeys[numberOfMissingKeys++] = i;
+                result.add(null);
+            } else {
+                result.add(cachedValue.getValue());
+            }
+        }
+        if (numberOfMissingKeys > 0) {
+            long[] missingKeys = new long[numberOfMissingKeys];
+            for (int i = 0; i < numberOfMissingKeys; i++) {
+                missingKeys[i] = keys[indexesOfMissingKeys[i]];
+            }
+            List<T> values = baseInterface.readMany(missingKeys);
+            for (int i = 0; i < numberOfMissingKeys; i++) {
+                T value = values.get(i);
+                readCache.put(missingKeys[i], value);
+                result.set(indexesOfMissingKeys[i], value);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Counts that are not in the read cache are read from the base interface without boxing them. Only counts that are not 0 are added
+     * to the read cache, a count of 0 can not be distinguished from a key without value.
+     */
+
+    @Override
+    public long readCount(long key) {
+        if (!countsWithoutBoxing()) {
+            T value = read(key);
+            return value == null ? 0 : (Long) value;
+        }
+        KeyValue<T> cachedValue = readCache.get(key);
+        if (cachedValue != null) {
+            Long count = (Long) cachedValue.getValue();
+            return count == null ? 0 : count;
+        }
+        long count = baseInterface.readCount(key);
+        if (count != 0) {
+            readCache.put(key, (T) Long.valueOf(count));
+        }
+        return count;
+    }
+
+    /**
+     * Like {@link #readCount(long)}, the counts that are not in the read cache are read from the base interface in a single call
+     */
+
+    @Override
+    public void readCounts(long[] keys, long[] counts) {
+        if (!countsWithoutBoxing()) {
+            super.readCounts(keys, counts);
+            return;
+        }
+        if (counts.length < keys.length) {
+            throw new IllegalArgumentException("Can not read " + keys.length + " counts into an array of length " + counts.length);
+        }
+        int[] indexesOfMissingKeys = new int[keys.length];
+        int numberOfMissingKeys = 0;
+        for (int i = 0; i < keys.length; i++) {
+            KeyValue<T> cachedValue = readCache.get(keys[i]);
+            if (cachedValue == null) {
+                indexesOfMissingKeys[numberOfMissingKeys++] = i;
+            } else {
+                Long count = (Long) cachedValue.getValue();
+                counts[i] = count == null ? 0 : count;
+            }
+        }
+        if (numberOfMissingKeys > 0) {
+            long[] missingKeys = new long[numberOfMissingKeys];
+            for (int i = 0; i < numberOfMissingKeys; i++) {
+                missingKeys[i] = keys[indexesOfMissingKeys[i]];
+            }
+            long[] missingCounts = new long[numberOfMissingKeys];
+            baseInterface.readCounts(missingKeys, missingCounts);
+            for (int i = 0; i < numberOfMissingKeys; i++) {
+                long count = missingCounts[i];
+                if (count != 0) {
+                    readCache.put(missingKeys[i], (T) Long.valueOf(count));
+                }
+                counts[indexesOfMissingKeys[i]] = count;
+            }
+        }
+    }
+
     @Override
     public boolean mightContain(long key) {
         KeyValue<T> cachedValue = readCache.get(key);
@@ -89,11 +190,45 @@ public class CachedDataInterface<T extends Object> extends LayeredDataInterface<
         waitForSlowFlushes();
     }
 
-    private void unsafeWrite(long key, T value) {
+    /**
+     * Counts are added to a primitive write buffer, so the count is never boxed
+     */
+
+    @Override
+    public void increaseCount(long key, long value) {
+        if (countsWithoutBoxing()) {
+            checkWriteConditions();
+            SwappableCountBuffer writeBuffer = countWriteBuffers.get(getWriteBufferInd(key));
+            synchronized (writeBuffer) {
+                writeBuffer.getBuffer().add(key, value);
+            }
+        } else {
+            super.increaseCount(key, value);
+        }
+    }
+
+    private int getWriteBufferInd(long key) {
         int writeBufferInd = (int) (key % NUM_OF_WRITE_BUFFERS);
         if (writeBufferInd < 0) {
             writeBufferInd += NUM_OF_WRITE_BUFFERS;
         }
+        return writeBufferInd;
+    }
+
+    private void unsafeWrite(long key, T value) {
+        int writeBufferInd = getWriteBufferInd(key);
+        if (countsWithoutBoxing()) {
+            //all writes of a count go to the same buffer, so they are written to the base interface in the right order
+            SwappableCountBuffer writeBuffer = countWriteBuffers.get(writeBufferInd);
+            synchronized (writeBuffer) {
+                if (value == null) {
+                    writeBuffer.getBuffer().remove(key);
+                } else {
+                    writeBuffer.getBuffer().add(key, (Long) value);
+                }
+            }
+            return;
+        }
         SwappableDynamicMap writeBuffer = writeBuffers.get(writeBufferInd);
         synchronized (writeBuffer) {
             KeyValue<T> cachedValue = writeBuffer.getMap().get(key);
@@ -163,6 +298,7 @@ public class CachedDataInterface<T extends Object> extends LayeredDataInterface<
             readCache.clear();
             readCache = null;
             writeBuffers = null;
+            countWriteBuffers = null;
         }
     }
 
@@ -195,6 +331,19 @@ public class CachedDataInterface<T extends Object> extends LayeredDataInterface<
                     return oldValues.size();
                 }
         ));
+        valuesRemoved += countWriteBuffers.parallelStream().collect(Collectors.summingLong(
+                buffer -> {
+                    LongCountWriteBuffer oldCounts;
+                    synchronized (buffer) {
+                        oldCounts = buffer.putNew();
+                    }
+                    if (oldCounts.size() > 0) {
+                        baseInterface.write((Iterator) oldCounts.iterator());
+                        readCacheDirty = true; //should come after writing values
+                    }
+                    return oldCounts.size();
+                }
+        ));
         timeOfLastFlushOfWriteBuffer = System.currentTimeMillis();
         return valuesRemoved;
     }
@@ -207,6 +356,11 @@ public class CachedDataInterface<T extends Object> extends LayeredDataInterface<
                 writeBuffer.putNew();
             }
         }
+        for (SwappableCountBuffer writeBuffer : countWriteBuffers) {
+            synchronized (writeBuffer) {
+                writeBuffer.putNew();
+            }
+        }
         readCache.clear();
         baseInterface.dropAllData();
     }
@@ -235,6 +389,11 @@ public class CachedDataInterface<T extends Object> extends LayeredDataInterface<
                 result += writeBuffer.getMap().size();
             }
         }
+        for (SwappableCountBuffer writeBuffer : countWriteBuffers) {
+            synchronized (writeBuffer) {
+                result += writeBuffer.getBuffer().size();
+            }
+        }
         return result;
     }
 
@@ -289,6 +448,22 @@ public class CachedDataInterface<T extends Object> extends LayeredDataInterface<
         }
     }
 
-}
+    private static class SwappableCountBuffer {
+        private LongCountWriteBuffer buffer;
+
+        private SwappableCountBuffer() {
+            buffer = new LongCountWriteBuffer();
+        }
 
+        public LongCountWriteBuffer putNew() {
+            LongCountWriteBuffer old = buffer;
+            buffer = new LongCountWriteBuffer();
+            return old;
+        }
 
+        public LongCountWriteBuffer getBuffer() {
+            return buffer;
+        }
+    }
+
+}
@@ -0,0 +1,142 @@
+package be.bagofwords.db.cached;
+
+import be.bagofwords.util.KeyValue;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Write buffer for the counts of a {@link CachedDataInterface}. Counts of the same key are added in primitive arrays (open addressing with
+ * linear probing), so adding a count allocates nothing. A removed key is remembered with a flag, the buffered writes of a key then
+ * become a removal followed by the sum of the counts that were added after the removal.
+ */
+
+class LongCountWriteBuffer {
+
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final byte USED = 1;
+    private static final byte REMOVED = 2;
+    private static final byte COUNTED = 4;
+
+    private long[] keys;
+    private long[] counts;
+    private byte[] flags;
+    private int size;
+
+    public LongCountWriteBuffer() {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    public void add(long key, long count) {
+        int slot = findSlot(key);
+        flags[slot] |= USED | COUNTED;
+        counts[slot] += count;
+    }
+
+    public void remove(long key) {
+        int slot = findSlot(key);
+        flags[slot] = USED | REMOVED;
+        counts[slot] = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the buffered writes, a removal of a key comes before the count of that key
+     */
+
+    public Iterator<KeyValue<Long>> iterator() {
+        return new Iterator<KeyValue<Long>>() {
+
+            private int slot = -1;
+            private boolean removalWasReturned;
+
+            {
+                findNextSlot();
+            }
+
+            private void findNextSlot() {
+                slot++;
+                while (slot < flags.length && flags[slot] == 0) {
+                    slot++;
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                return slot < flags.length;
+            }
+
+            @Override
+            public KeyValue<Long> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                long key = keys[slot];
+                if ((flags[slot] & REMOVED) != 0 && !removalWasReturned) {
+                    if ((flags[slot] & COUNTED) != 0) {
+                        removalWasReturned = true;
+                    } else {
+                        findNextSlot();
+                    }
+                    return new KeyValue<>(key, null);
+                }
+                long count = counts[slot];
+                removalWasReturned = false;
+                findNextSlot();
+                return new KeyValue<>(key, count);
+            }
+        };
+    }
+
+    private int findSlot(long key) {
+        if (2 * (size + 1) > keys.length) {
+            grow();
+        }
+        int mask = keys.length - 1;
+        int slot = hash(key) & mask;
+        while (flags[slot] != 0) {
+            if (keys[slot] == key) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        size++;
+        return slot;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        long[] oldCounts = counts;
+        byte[] oldFlags = flags;
+        allocate(oldKeys.length * 2);
+        int mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldFlags[i] != 0) {
+                int slot = hash(oldKeys[i]) & mask;
+                while (flags[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                counts[slot] = oldCounts[i];
+                flags[slot] = oldFlags[i];
+                size++;
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        counts = new long[capacity];
+        flags = new byte[capacity];
+        size = 0;
+    }
+
+    private static int hash(long key) {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32));
+    }
+}
@@ -0,0 +1,285 @@
+package be.bagofwords.db.filedb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Appends records to a single file through a file channel that stays open between writes, so a write does not need to open and close
+ * the file.
+ * <p>
+ * Without a buffer (a buffer size of 0 in the pool) the records are written with a group commit. {@link #append(byte[])} only adds the
+ * record to the pending records and {@link #waitUntilWritten(long)} returns once the record is written to the file. The first waiting
+ * thread writes the pending records of all threads with a single system call, the records that are appended in the meantime are written
+ * by the next waiting thread. A write therefore still only returns when its record is in the file, but concurrent writers share the
+ * system calls.
+ * <p>
+ * If the pool has a buffer size &gt; 0, records are collected in a buffer that is only written to the file when it is full, before the
+ * file is read, when the data interface is flushed and when the {@link AppendChannelPool} closes the channel. Records that are still in
+ * the buffer are lost when the process crashes. Note that records are never forced to the disk, neither with nor without a buffer.
+ */
+
+class AppendChannel {
+
+    private static final int RECORD_BUFFER_SIZE = 2 * Long.BYTES;
+    private static final int INITIAL_PENDING_RECORDS_SIZE = 4 * 1024;
+    //Larger buffers for pending records are not reused, so a single large batch does not keep its buffer in memory
+    private static final int MAX_REUSED_PENDING_RECORDS_SIZE = 64 * 1024;
+
+    private final File file;
+    private final AppendChannelPool pool;
+    private final boolean buffered;
+    private FileChannel channel;
+    private ByteBuffer buffer;
+    //Without buffering, the buffer that can be used for the pending records while the current pending records are being written
+    private ByteBuffer spareBuffer;
+    private boolean writing;
+    //Positions count the bytes that were appended through this channel, the records up to endOfWrittenRecords are in the file
+    private long endOfAppendedRecords;
+    private long endOfWrittenRecords;
+    private IOException failure;
+    private long startOfFailedRecords;
+    private long endOfFailedRecords;
+    private volatile long timeOfLastAppend;
+
+    public AppendChannel(File file, AppendChannelPool pool) {
+        this.file = file;
+        this.pool = pool;
+        this.buffered = pool.getBufferSize() > 0;
+    }
+
+    /**
+     * @return the position after the record, see {@link #waitUntilWritten(long)}
+     */
+
+    public long append(byte[] records) throws IOException {
+        List<AppendChannel> channelsToClose = Collections.emptyList();
+        try {
+            synchronized (this) {
+                channelsToClose = openIfClosed();
+                if (!buffered) {
+                    ensureRemaining(records.length);
+                    buffer.put(records);
+                    endOfAppendedRecords += records.length;
+                } else if (records.length > buffer.capacity()) {
+                    writeBuffer();
+                    writeFully(channel, ByteBuffer.wrap(records));
+                    endOfAppendedRecords += records.length;
+                    endOfWrittenRecords = endOfAppendedRecords;
+                } else {
+                    if (records.length > buffer.remaining()) {
+                        writeBuffer();
+                    }
+                    buffer.put(records);
+                    endOfAppendedRecords += records.length;
+                }
+                timeOfLastAppend = System.currentTimeMillis();
+                return endOfAppendedRecords;
+            }
+        } finally {
+            //outside of the lock on this channel, closing a channel locks that channel
+            pool.closeChannels(channelsToClose);
+        }
+    }
+
+    /**
+     * Appends a record with a key and a value of 8 bytes, without allocating a byte array for the record
+     *
+     * @return the position after the record, see {@link #waitUntilWritten(long)}
+     */
+
+    public long append(long key, long value) throws IOException {
+        List<AppendChannel> channelsToClose = Collections.emptyList();
+        try {
+            synchronized (this) {
+                channelsToClose = openIfClosed();
+                if (!buffered) {
+                    ensureRemaining(RECORD_BUFFER_SIZE);
+                } else if (buffer.remaining() < RECORD_BUFFER_SIZE) {
+                    writeBuffer();
+                }
+                buffer.putLong(key);
+                buffer.putLong(value);
+                endOfAppendedRecords += RECORD_BUFFER_SIZE;
+                timeOfLastAppend = System.currentTimeMillis();
+                return endOfAppendedRecords;
+            }
+        } finally {
+            //outside of the lock on this channel, closing a channel locks that channel
+            pool.closeChannels(channelsToClose);
+        }
+    }
+
+    /**
+     * Without buffering, waits until the records up to this position are written to the file, writing the pending records of all threads
+     * if no other thread is writing them. Should be called without holding the append lock of the file, otherwise the records of other
+     * threads can not be appended in the meantime. With buffering, returns immediately.
+     *
+     * @throws IOException if the records could not be written
+     */
+
+    public void waitUntilWritten(long position) throws IOException {
+        if (buffered) {
+            return;
+        }
+        while (true) {
+            FileChannel channelToWrite;
+            ByteBuffer recordsToWrite;
+            long endOfRecordsToWrite;
+            synchronized (this) {
+                while (writing && endOfWrittenRecords < position) {
+                    waitForWrite();
+                }
+                if (endOfWrittenRecords >= position) {
+                    throwIfFailed(position);
+                    return;
+                }
+                //this thread writes the records of all threads, the records that are appended in the meantime go to the spare buffer
+                writing = true;
+                channelToWrite = channel;
+                recordsToWrite = buffer;
+                endOfRecordsToWrite = endOfAppendedRecords;
+                buffer = spareBuffer != null ? spareBuffer : ByteBuffer.allocate(INITIAL_PENDING_RECORDS_SIZE);
+                spareBuffer = null;
+            }
+            IOException writeFailure = null;
+            try {
+                recordsToWrite.flip();
+                writeFully(channelToWrite, recordsToWrite);
+            } catch (IOException exp) {
+                writeFailure = exp;
+                throw exp;
+            } finally {
+                synchronized (this) {
+                    recordsToWrite.clear();
+                    if (recordsToWrite.capacity() <= MAX_REUSED_PENDING_RECORDS_SIZE) {
+                        spareBuffer = recordsToWrite;
+                    }
+                    writing = false;
+                    recordsWereWritten(endOfRecordsToWrite, writeFailure);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes all appended records to the file
+     */
+
+    public synchronized void flush() throws IOException {
+        if (channel != null) {
+            writeBuffer();
+        }
+    }
+
+    public synchronized void close() throws IOException {
+        if (channel == null) {
+            return;
+        }
+        try {
+            writeBuffer();
+        } finally {
+            channel.close();
+            channel = null;
+            buffer = null;
+            spareBuffer = null;
+            pool.channelWasClosed(this);
+        }
+    }
+
+    public long getTimeOfLastAppend() {
+        return timeOfLastAppend;
+    }
+
+    /**
+     * Registers the channel with the pool while holding the lock on this channel, so the pool never contains a channel that was closed in
+     * the meantime, nor the same channel twice.
+     *
+     * @return the channels that should be closed to respect the limit of the pool
+     */
+
+    private List<AppendChannel> openIfClosed() throws IOException {
+        if (channel != null) {
+            return Collections.emptyList();
+        }
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        buffer = ByteBuffer.allocate(buffered ? Math.max(RECORD_BUFFER_SIZE, pool.getBufferSize()) : INITIAL_PENDING_RECORDS_SIZE);
+        timeOfLastAppend = System.currentTimeMillis();
+        return pool.channelWasOpened(this);
+    }
+
+    /**
+     * Without buffering the pending records are never written while appending, so the buffer grows to fit them
+     */
+
+    private void ensureRemaining(int numberOfBytes) {
+        if (buffer.remaining() < numberOfBytes) {
+            ByteBuffer largerBuffer = ByteBuffer.allocate(Math.max(2 * buffer.capacity(), buffer.position() + numberOfBytes));
+            buffer.flip();
+            largerBuffer.put(buffer);
+            buffer = largerBuffer;
+        }
+    }
+
+    /**
+     * Should be called while holding the lock on this channel. Records that are being written by another thread are written first.
+     */
+
+    private void writeBuffer() throws IOException {
+        while (writing) {
+            waitForWrite();
+        }
+        long endOfRecordsToWrite = endOfAppendedRecords;
+        IOException writeFailure = null;
+        try {
+            buffer.flip();
+            writeFully(channel, buffer);
+        } catch (IOException exp) {
+            writeFailure = exp;
+            throw exp;
+        } finally {
+            buffer.clear();
+            recordsWereWritten(endOfRecordsToWrite, writeFailure);
+        }
+    }
+
+    /**
+     * Should be called while holding the lock on this channel. Records that could not be written are reported to the threads that wait for
+     * them.
+     */
+
+    private void recordsWereWritten(long endOfRecords, IOException writeFailure) {
+        if (writeFailure != null) {
+            failure = writeFailure;
+            startOfFailedRecords = endOfWrittenRecords;
+            endOfFailedRecords = endOfRecords;
+        }
+        endOfWrittenRecords = endOfRecords;
+        notifyAll();
+    }
+
+    private void throwIfFailed(long position) throws IOException {
+        if (failure != null && position > startOfFailedRecords && position <= endOfFailedRecords) {
+            throw new IOException("Failed to append records to " + file.getAbsolutePath(), failure);
+        }
+    }
+
+    private void waitForWrite() throws IOException {
+        try {
+            wait();
+        } catch (InterruptedException exp) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for records to be appended to " + file.getAbsolutePath(), exp);
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer data) throws IOException {
+        while (data.hasRemaining()) {
+            channel.write(data);
+        }
+    }
+}
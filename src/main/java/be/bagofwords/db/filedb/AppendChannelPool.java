@@ -0,0 +1,96 @@
+package be.bagofwords.db.filedb;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Limits the number of append channels that are open at the same time. When too many channels are open, the channel that was not
+ * written to for the longest time is closed. Channels register themselves when they are opened, so appending to an open channel never
+ * takes the lock of the pool. A channel only takes the lock of the pool while holding its own lock, and the pool never locks a channel
+ * while holding its own lock.
+ */
+
+class AppendChannelPool {
+
+    private final int maxOpenChannels;
+    private final int bufferSize;
+    private final List<AppendChannel> openChannels;
+
+    public AppendChannelPool(int maxOpenChannels, int bufferSize) {
+        this.maxOpenChannels = maxOpenChannels;
+        this.bufferSize = bufferSize;
+        this.openChannels = new ArrayList<>();
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * @return the channels that should be closed (with {@link #closeChannels(List)}) because too many channels are open
+     */
+
+    public synchronized List<AppendChannel> channelWasOpened(AppendChannel channel) {
+        List<AppendChannel> channelsToClose = new ArrayList<>();
+        openChannels.add(channel);
+        while (openChannels.size() > maxOpenChannels) {
+            channelsToClose.add(openChannels.remove(getLeastRecentlyUsedInd()));
+        }
+        return channelsToClose;
+    }
+
+    public synchronized void channelWasClosed(AppendChannel channel) {
+        openChannels.remove(channel);
+    }
+
+    public void flushAll() throws IOException {
+        for (AppendChannel channel : getOpenChannels()) {
+            channel.flush();
+        }
+    }
+
+    /**
+     * Closes the channels that were not written to during the last maxIdleTime milliseconds
+     */
+
+    public void closeIdleChannels(long maxIdleTime) throws IOException {
+        long now = System.currentTimeMillis();
+        List<AppendChannel> channelsToClose = new ArrayList<>();
+        for (AppendChannel channel : getOpenChannels()) {
+            if (now - channel.getTimeOfLastAppend() > maxIdleTime) {
+                channelsToClose.add(channel);
+            }
+        }
+        closeChannels(channelsToClose);
+    }
+
+    public void closeAll() throws IOException {
+        closeChannels(getOpenChannels());
+    }
+
+    public synchronized int getNumberOfOpenChannels() {
+        return openChannels.size();
+    }
+
+    private synchronized List<AppendChannel> getOpenChannels() {
+        return new ArrayList<>(openChannels);
+    }
+
+    private int getLeastRecentlyUsedInd() {
+        int leastRecentlyUsedInd = 0;
+        for (int i = 1; i < openChannels.size(); i++) {
+            if (openChannels.get(i).getTimeOfLastAppend() < openChannels.get(leastRecentlyUsedInd).getTimeOfLastAppend()) {
+                leastRecentlyUsedInd = i;
+            }
+        }
+        return leastRecentlyUsedInd;
+    }
+
+    public void closeChannels(List<AppendChannel> channels) throws IOException {
+        //never called while holding the lock of the pool or of a channel, closing a channel locks the channel
+        for (AppendChannel channel : channels) {
+            channel.close();
+        }
+    }
+}
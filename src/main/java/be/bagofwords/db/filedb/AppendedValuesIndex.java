@@ -0,0 +1,206 @@
+package be.bagofwords.db.filedb;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * In-memory index of the values that were appended to a dirty file, so a point read can combine the value in the clean part of the file
+ * with the appended values without rewriting the file first. Values that were appended since the index was created are sorted into a new
+ * run, when there are too many runs they are merged into a single run. An index is never changed after it was created, so readers can
+ * use it while another reader brings the index of the file up-to-date.
+ */
+
+class AppendedValuesIndex {
+
+    private static final int MAX_NUMBER_OF_RUNS = 8;
+    private static final int LONG_SIZE = 8;
+    private static final int INT_SIZE = 4;
+
+    private final int sizeOfValues;
+    private final int startPosition;
+    private final int endPosition;
+    private final List<Run> runs;
+
+    /**
+     * @param startPosition the end of the clean part of the file, i.e. the position of the first appended value
+     */
+
+    public AppendedValuesIndex(int startPosition, int sizeOfValues) {
+        this(startPosition, startPosition, sizeOfValues, Collections.emptyList());
+    }
+
+    private AppendedValuesIndex(int startPosition, int endPosition, int sizeOfValues, List<Run> runs) {
+        this.startPosition = startPosition;
+        this.endPosition = endPosition;
+        this.sizeOfValues = sizeOfValues;
+        this.runs = runs;
+    }
+
+    public int getStartPosition() {
+        return startPosition;
+    }
+
+    /**
+     * @return the position in the file up to which the appended values are indexed
+     */
+
+    public int getEndPosition() {
+        return endPosition;
+    }
+
+    /**
+     * @param records the records that were appended to the file after the end of this index
+     * @return a new index that also contains these records
+     */
+
+    public AppendedValuesIndex withAppendedRecords(byte[] records) {
+        List<Run> newRuns = new ArrayList<>(runs);
+        newRuns.add(new Run(records, sizeOfValues));
+        if (newRuns.size() > MAX_NUMBER_OF_RUNS) {
+            newRuns = Collections.singletonList(mergeRuns(newRuns));
+        }
+        return new AppendedValuesIndex(startPosition, endPosition + records.length, sizeOfValues, newRuns);
+    }
+
+    /**
+     * @return the runs in the order in which their values were appended
+     */
+
+    public List<Run> getRuns() {
+        return runs;
+    }
+
+    /**
+     * @return the (approximate) number of bytes of memory used by the records and the sorted keys of this index
+     */
+
+    public long getMemoryUsage() {
+        long memoryUsage = 0;
+        for (Run run : runs) {
+            memoryUsage += run.records.capacity() + run.keys.length * (long) (LONG_SIZE + INT_SIZE);
+        }
+        return memoryUsage;
+    }
+
+    private Run mergeRuns(List<Run> runs) {
+        int size = 0;
+        for (Run run : runs) {
+            size += run.records.capacity();
+        }
+        ByteBuffer records = ByteBuffer.allocate(size);
+        for (Run run : runs) {
+            records.put(run.records.array());
+        }
+        return new Run(records.array(), sizeOfValues);
+    }
+
+    /**
+     * Records (key, optional length, value) sorted on key. Values with the same key stay in the order in which they were appended.
+     */
+
+    public static class Run {
+
+        private final ByteBuffer records;
+        private final long[] keys;
+        private final int[] valuePositions;
+
+        private Run(byte[] records, int sizeOfValues) {
+            this.records = ByteBuffer.wrap(records);
+            int numberOfRecords = 0;
+            int position = 0;
+            while (position < records.length) {
+                position += LONG_SIZE + (sizeOfValues == -1 ? INT_SIZE + this.records.getInt(position + LONG_SIZE) : sizeOfValues);
+                numberOfRecords++;
+            }
+            this.keys = new long[numberOfRecords];
+            this.valuePositions = new int[numberOfRecords];
+            position = 0;
+            for (int i = 0; i < numberOfRecords; i++) {
+                keys[i] = this.records.getLong(position);
+                valuePositions[i] = position + LONG_SIZE;
+                position += LONG_SIZE + (sizeOfValues == -1 ? INT_SIZE + this.records.getInt(position + LONG_SIZE) : sizeOfValues);
+            }
+            sortByKey(keys, valuePositions);
+        }
+
+        /**
+         * Stable merge sort of the keys, values with the same key stay in the order in which they were appended. The positions are moved
+         * with their keys. Only primitive arrays are sorted, so sorting does not box the records.
+         */
+
+        private static void sortByKey(long[] keys, int[] positions) {
+            boolean isSorted = true;
+            for (int i = 1; i < keys.length && isSorted; i++) {
+                isSorted = keys[i - 1] <= keys[i];
+            }
+            if (!isSorted) {
+                mergeSort(keys.clone(), positions.clone(), keys, positions, 0, keys.length);
+            }
+        }
+
+        /**
+         * Sorts the range of the source arrays into the same range of the destination arrays. The range of the source and destination
+         * arrays should have the same contents, the range of the source arrays is used as buffer.
+         */
+
+        private static void mergeSort(long[] sourceKeys, int[] sourcePositions, long[] keys, int[] positions, int start, int end) {
+            if (end - start < 2) {
+                return;
+            }
+            int middle = (start + end) >>> 1;
+            mergeSort(keys, positions, sourceKeys, sourcePositions, start, middle);
+            mergeSort(keys, positions, sourceKeys, sourcePositions, middle, end);
+            int left = start;
+            int right = middle;
+            for (int i = start; i < end; i++) {
+                if (right >= end || (left < middle && sourceKeys[left] <= sourceKeys[right])) {
+                    keys[i] = sourceKeys[left];
+                    positions[i] = sourcePositions[left++];
+                } else {
+                    keys[i] = sourceKeys[right];
+                    positions[i] = sourcePositions[right++];
+                }
+            }
+        }
+
+        /**
+         * @return the index of the first value with this key, or -1 if this run contains no value with this key
+         */
+
+        public int firstIndexOf(long key) {
+            int low = 0;
+            int high = keys.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (keys[mid] < key) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low < keys.length && keys[low] == key ? low : -1;
+        }
+
+        public int size() {
+            return keys.length;
+        }
+
+        public long getKey(int ind) {
+            return keys[ind];
+        }
+
+        /**
+         * @return the position in {@link #getRecords()} of the value (starting with its length if values don't have a fixed size)
+         */
+
+        public int getValuePosition(int ind) {
+            return valuePositions[ind];
+        }
+
+        public ByteBuffer getRecords() {
+            return records;
+        }
+    }
+}
@@ -0,0 +1,392 @@
+package be.bagofwords.db.filedb;
+
+import org.xerial.snappy.Snappy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Encodes and decodes the clean part of a file. A clean file is written as a sequence of blocks and the sparse index of the file points
+ * to the start of every block, so reading a single value only requires decoding a single block. A block always decodes to the plain
+ * key/value records.
+ * <p>
+ * Files with the RAW encoding consist of the plain records without any header. Other files start with a header (magic number and
+ * encoding), followed by blocks that are prefixed with their encoded length, followed by an end-of-blocks marker. Values that are appended
+ * to the file later on are always stored as plain records after the end-of-blocks marker.
+ * <p>
+ * The encoding is a combination of flags. The records in a block are first transformed (DELTA_KEYS, COMPACT_VALUES or COLUMNAR) and then
+ * compressed (SNAPPY). A COLUMNAR block stores all keys of the block, followed by all values of the block. Values can then be found with a
+ * binary search over the keys, without decoding the other records of the block.
+ */
+
+class BlockCodec {
+
+    public static final int RAW = 0;
+    public static final int SNAPPY = 1;
+    public static final int DELTA_KEYS = 2;
+    public static final int COMPACT_VALUES = 4; //only for values of type Long or Integer
+    public static final int COLUMNAR = 8; //only for values with a fixed width, can not be combined with DELTA_KEYS or COMPACT_VALUES
+
+    public static final long MAGIC_NUMBER = 0x434f554e54444231L; //"COUNTDB1"
+    public static final int HEADER_SIZE = 12;
+    public static final int END_OF_BLOCKS = -1;
+
+    private static final int LONG_SIZE = 8;
+    private static final int INT_SIZE = 4;
+    private static final int MIN_SIZE_OF_ENCODED_BLOCK = 4 * 1024;
+
+    private final int encoding;
+    private final int sizeOfValues;
+
+    public BlockCodec(int encoding, int sizeOfValues) {
+        this.encoding = encoding;
+        this.sizeOfValues = sizeOfValues;
+    }
+
+    public int getEncoding() {
+        return encoding;
+    }
+
+    public boolean isRaw() {
+        return encoding == RAW;
+    }
+
+    public boolean isColumnar() {
+        return hasFlag(COLUMNAR);
+    }
+
+    /**
+     * @param sizeOfBlock       the size of the plain records in the block
+     * @param targetSizeOfBlock the size of the blocks, and thus the density of the sparse index, that was chosen for the file
+     */
+
+    public boolean isBlockFull(int sizeOfBlock, int targetSizeOfBlock) {
+        if (hasFlag(SNAPPY)) {
+            //larger blocks compress better, but every read of a single value needs to decode the complete block
+            return sizeOfBlock >= Math.max(targetSizeOfBlock, MIN_SIZE_OF_ENCODED_BLOCK);
+        } else {
+            return sizeOfBlock >= targetSizeOfBlock;
+        }
+    }
+
+    public int writeHeader(DataOutputStream dos) throws IOException {
+        if (isRaw()) {
+            return 0;
+        }
+        dos.writeLong(MAGIC_NUMBER);
+        dos.writeInt(encoding);
+        return HEADER_SIZE;
+    }
+
+    public int writeBlock(DataOutputStream dos, byte[] records) throws IOException {
+        if (isRaw()) {
+            dos.write(records);
+            return records.length;
+        }
+        byte[] encodedRecords = records;
+        if (hasRecordTransformations()) {
+            encodedRecords = encodeRecords(records);
+        }
+        if (hasFlag(SNAPPY)) {
+            encodedRecords = Snappy.compress(encodedRecords);
+        }
+        dos.writeInt(encodedRecords.length);
+        dos.write(encodedRecords);
+        return INT_SIZE + encodedRecords.length;
+    }
+
+    public int writeFooter(DataOutputStream dos) throws IOException {
+        if (isRaw()) {
+            return 0;
+        }
+        dos.writeInt(END_OF_BLOCKS);
+        return INT_SIZE;
+    }
+
+    /**
+     * Decodes the block that starts at position start. The position and limit of the returned buffer delimit the plain records.
+     */
+
+    public ByteBuffer decodeBlock(ByteBuffer contents, int start, int end) throws IOException {
+        if (isRaw()) {
+            ByteBuffer block = contents.duplicate();
+            block.limit(end);
+            block.position(start);
+            return block;
+        }
+        int length = contents.getInt(start);
+        return decode(contents, start + INT_SIZE, length);
+    }
+
+    /**
+     * Decodes all blocks in the clean part of a file. The position and limit of the returned buffer delimit the plain records.
+     */
+
+    public ByteBuffer decodeAllBlocks(ByteBuffer contents, int cleanSize) throws IOException {
+        if (isRaw()) {
+            return decodeBlock(contents, 0, cleanSize);
+        }
+        if (cleanSize == 0) {
+            return ByteBuffer.allocate(0);
+        }
+        checkHeader(contents);
+        ByteArrayOutputStream records = new ByteArrayOutputStream(cleanSize * 2);
+        int position = HEADER_SIZE;
+        int length = contents.getInt(position);
+        while (length != END_OF_BLOCKS) {
+            ByteBuffer block = decode(contents, position + INT_SIZE, length);
+            records.write(block.array(), block.arrayOffset() + block.position(), block.remaining());
+            position += INT_SIZE + length;
+            length = contents.getInt(position);
+        }
+        return ByteBuffer.wrap(records.toByteArray());
+    }
+
+    /**
+     * Only for COLUMNAR blocks: searches the key in the block that starts at position start.
+     *
+     * @return a buffer that is positioned at the value of the key, or null if the key is not present in the block
+     */
+
+    public ByteBuffer findValue(ByteBuffer contents, int start, long key) throws IOException {
+        ByteBuffer columns = decodeColumns(contents, start + INT_SIZE, contents.getInt(start));
+        int keysStart = columns.position();
+        int numOfValues = columns.remaining() / (LONG_SIZE + sizeOfValues);
+        int low = 0;
+        int high = numOfValues - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long midKey = columns.getLong(keysStart + mid * LONG_SIZE);
+            if (midKey < key) {
+                low = mid + 1;
+            } else if (midKey > key) {
+                high = mid - 1;
+            } else {
+                columns.position(keysStart + numOfValues * LONG_SIZE + mid * sizeOfValues);
+                return columns;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Only for COLUMNAR files: reads the keys of all blocks in the clean part of a file, without reading the values.
+     */
+
+    public List<Long> decodeAllKeys(ByteBuffer contents, int cleanSize) throws IOException {
+        List<Long> keys = new ArrayList<>();
+        if (cleanSize == 0) {
+            return keys;
+        }
+        checkHeader(contents);
+        int position = HEADER_SIZE;
+        int length = contents.getInt(position);
+        while (length != END_OF_BLOCKS) {
+            ByteBuffer columns = decodeColumns(contents, position + INT_SIZE, length);
+            int numOfValues = columns.remaining() / (LONG_SIZE + sizeOfValues);
+            for (int i = 0; i < numOfValues; i++) {
+                keys.add(columns.getLong(columns.position() + i * LONG_SIZE));
+            }
+            position += INT_SIZE + length;
+            length = contents.getInt(position);
+        }
+        return keys;
+    }
+
+    private void checkHeader(ByteBuffer contents) {
+        if (contents.getLong(0) != MAGIC_NUMBER) {
+            throw new RuntimeException("Missing header in encoded file");
+        }
+    }
+
+    private ByteBuffer decodeColumns(ByteBuffer contents, int position, int length) throws IOException {
+        if (hasFlag(SNAPPY)) {
+            return ByteBuffer.wrap(uncompress(contents, position, length));
+        } else {
+            ByteBuffer columns = contents.duplicate();
+            columns.limit(position + length);
+            columns.position(position);
+            return columns;
+        }
+    }
+
+    private boolean hasFlag(int flag) {
+        return (encoding & flag) != 0;
+    }
+
+    private boolean hasRecordTransformations() {
+        return hasFlag(DELTA_KEYS) || hasFlag(COMPACT_VALUES) || hasFlag(COLUMNAR);
+    }
+
+    private ByteBuffer decode(ByteBuffer contents, int position, int length) throws IOException {
+        ByteBuffer encodedRecords;
+        if (hasFlag(SNAPPY)) {
+            encodedRecords = ByteBuffer.wrap(uncompress(contents, position, length));
+        } else {
+            encodedRecords = contents.duplicate();
+            encodedRecords.limit(position + length);
+            encodedRecords.position(position);
+        }
+        if (hasRecordTransformations()) {
+            return decodeRecords(encodedRecords);
+        } else {
+            return encodedRecords;
+        }
+    }
+
+    private byte[] uncompress(ByteBuffer contents, int position, int length) throws IOException {
+        byte[] compressedRecords;
+        int offset;
+        if (contents.hasArray()) {
+            compressedRecords = contents.array();
+            offset = contents.arrayOffset() + position;
+        } else {
+            //memory mapped file, only copy the bytes of this block
+            compressedRecords = new byte[length];
+            offset = 0;
+            ByteBuffer duplicate = contents.duplicate();
+            duplicate.position(position);
+            duplicate.get(compressedRecords);
+        }
+        byte[] records = new byte[Snappy.uncompressedLength(compressedRecords, offset, length)];
+        Snappy.uncompress(compressedRecords, offset, length, records, 0);
+        return records;
+    }
+
+    private byte[] encodeRecords(byte[] records) throws IOException {
+        if (hasFlag(COLUMNAR)) {
+            return recordsToColumns(records);
+        }
+        ByteBuffer in = ByteBuffer.wrap(records);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(records.length);
+        DataOutputStream out = new DataOutputStream(bos);
+        long previousKey = 0;
+        boolean isFirstKey = true;
+        while (in.hasRemaining()) {
+            long key = in.getLong();
+            if (hasFlag(DELTA_KEYS) && !isFirstKey) {
+                //keys are sorted, so the difference with the previous key is always positive
+                writeVarLong(out, key - previousKey);
+            } else {
+                //every block is a restart point, the first key is stored completely
+                out.writeLong(key);
+            }
+            previousKey = key;
+            isFirstKey = false;
+            if (hasFlag(COMPACT_VALUES) && sizeOfValues == LONG_SIZE) {
+                writeVarLong(out, zigZagEncode(in.getLong()));
+            } else if (hasFlag(COMPACT_VALUES) && sizeOfValues == INT_SIZE) {
+                writeVarLong(out, zigZagEncode(in.getInt()));
+            } else {
+                int lengthOfValue = sizeOfValues;
+                if (sizeOfValues == -1) {
+                    lengthOfValue = in.getInt();
+                    out.writeInt(lengthOfValue);
+                }
+                out.write(records, in.position(), lengthOfValue);
+                in.position(in.position() + lengthOfValue);
+            }
+        }
+        out.close();
+        return bos.toByteArray();
+    }
+
+    private ByteBuffer decodeRecords(ByteBuffer in) throws IOException {
+        if (hasFlag(COLUMNAR)) {
+            return columnsToRecords(in);
+        }
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(in.remaining() * 2);
+        DataOutputStream out = new DataOutputStream(bos);
+        byte[] valueBuffer = new byte[Math.max(sizeOfValues, 0)];
+        long key = 0;
+        boolean isFirstKey = true;
+        while (in.hasRemaining()) {
+            if (hasFlag(DELTA_KEYS) && !isFirstKey) {
+                key += readVarLong(in);
+            } else {
+                key = in.getLong();
+            }
+            isFirstKey = false;
+            out.writeLong(key);
+            if (hasFlag(COMPACT_VALUES) && sizeOfValues == LONG_SIZE) {
+                out.writeLong(zigZagDecode(readVarLong(in)));
+            } else if (hasFlag(COMPACT_VALUES) && sizeOfValues == INT_SIZE) {
+                out.writeInt((int) zigZagDecode(readVarLong(in)));
+            } else {
+                int lengthOfValue = sizeOfValues;
+                if (sizeOfValues == -1) {
+                    lengthOfValue = in.getInt();
+                    out.writeInt(lengthOfValue);
+                }
+                if (valueBuffer.length < lengthOfValue) {
+                    valueBuffer = new byte[lengthOfValue];
+                }
+                in.get(valueBuffer, 0, lengthOfValue);
+                out.write(valueBuffer, 0, lengthOfValue);
+            }
+        }
+        out.close();
+        return ByteBuffer.wrap(bos.toByteArray());
+    }
+
+    private byte[] recordsToColumns(byte[] records) {
+        int sizeOfRecord = LONG_SIZE + sizeOfValues;
+        int numOfValues = records.length / sizeOfRecord;
+        byte[] columns = new byte[records.length];
+        for (int i = 0; i < numOfValues; i++) {
+            System.arraycopy(records, i * sizeOfRecord, columns, i * LONG_SIZE, LONG_SIZE);
+            System.arraycopy(records, i * sizeOfRecord + LONG_SIZE, columns, numOfValues * LONG_SIZE + i * sizeOfValues, sizeOfValues);
+        }
+        return columns;
+    }
+
+    private ByteBuffer columnsToRecords(ByteBuffer columns) {
+        int sizeOfRecord = LONG_SIZE + sizeOfValues;
+        int numOfValues = columns.remaining() / sizeOfRecord;
+        int keysStart = columns.position();
+        int valuesStart = keysStart + numOfValues * LONG_SIZE;
+        ByteBuffer records = ByteBuffer.allocate(numOfValues * sizeOfRecord);
+        for (int i = 0; i < numOfValues; i++) {
+            records.putLong(columns.getLong(keysStart + i * LONG_SIZE));
+            for (int j = 0; j < sizeOfValues; j++) {
+                records.put(columns.get(valuesStart + i * sizeOfValues + j));
+            }
+        }
+        records.flip();
+        return records;
+    }
+
+    private static long zigZagEncode(long value) {
+        //small negative values should also result in a small number of bytes
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long zigZagDecode(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarLong(ByteBuffer in) {
+        long result = 0;
+        int shift = 0;
+        byte currentByte;
+        do {
+            currentByte = in.get();
+            result |= (long) (currentByte & 0x7F) << shift;
+            shift += 7;
+        } while (currentByte < 0);
+        return result;
+    }
+
+}
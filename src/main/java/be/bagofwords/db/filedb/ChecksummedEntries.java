@@ -0,0 +1,58 @@
+package be.bagofwords.db.filedb;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * Format of the entries in the logs of a {@link FileDataInterface} (the write-ahead log and the manifest): the length of the entry, the
+ * entry and a checksum of the entry. A partially written entry at the end of a log is detected and ignored.
+ */
+
+class ChecksummedEntries {
+
+    private static final int INT_SIZE = 4;
+    private static final int LONG_SIZE = 8;
+
+    /**
+     * @return a buffer, ready to be written, with the length, the entry and the checksum
+     */
+
+    public static ByteBuffer encode(byte[] entry) {
+        CRC32 checksum = new CRC32();
+        checksum.update(entry);
+        ByteBuffer buffer = ByteBuffer.allocate(INT_SIZE + entry.length + LONG_SIZE);
+        buffer.putInt(entry.length);
+        buffer.put(entry);
+        buffer.putLong(checksum.getValue());
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Reads the entry at the current position of the log and moves the position to the next entry.
+     *
+     * @return the contents of the entry, or null if the end of the log was reached or the entry was only partially written
+     */
+
+    public static ByteBuffer read(ByteBuffer log) {
+        if (log.remaining() < INT_SIZE) {
+            return null;
+        }
+        int length = log.getInt(log.position());
+        if (length <= 0 || length > log.remaining() - INT_SIZE - LONG_SIZE) {
+            return null;
+        }
+        ByteBuffer entry = log.duplicate();
+        entry.position(log.position() + INT_SIZE);
+        entry.limit(log.position() + INT_SIZE + length);
+        entry = entry.slice();
+        CRC32 checksum = new CRC32();
+        checksum.update(entry.duplicate());
+        if (checksum.getValue() != log.getLong(log.position() + INT_SIZE + length)) {
+            return null;
+        }
+        log.position(log.position() + INT_SIZE + length + LONG_SIZE);
+        return entry;
+    }
+
+}
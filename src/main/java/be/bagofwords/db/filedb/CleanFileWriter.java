@@ -0,0 +1,119 @@
+package be.bagofwords.db.filedb;
+
+import be.bagofwords.db.bloomfilter.LongBloomFilter;
+import be.bagofwords.util.Pair;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Writes the sorted records of a clean file as a sequence of blocks and keeps track of the first key and the start position of every
+ * block. These positions form the sparse index of the file.
+ */
+
+class CleanFileWriter {
+
+    private final DataOutputStream dos;
+    private final BlockCodec codec;
+    private final double bloomFilterFpp;
+    private final int targetSizeOfBlock;
+    private final List<Pair<Long, Integer>> fileLocations;
+    private final ByteArrayOutputStream currentBlock;
+    private int numOfValuesInCurrentBlock;
+    private long firstKeyOfCurrentBlock;
+    private int size;
+    private int numberOfValues;
+    private long[] keys;
+    private int numOfKeys;
+
+    /**
+     * @param targetSizeOfBlock number of bytes of records per block, see {@link BlockCodec#isBlockFull(int, int)}
+     */
+
+    public CleanFileWriter(DataOutputStream dos, BlockCodec codec, double bloomFilterFpp, int targetSizeOfBlock) throws IOException {
+        this.dos = dos;
+        this.codec = codec;
+        this.bloomFilterFpp = bloomFilterFpp;
+        this.targetSizeOfBlock = targetSizeOfBlock;
+        this.keys = new long[bloomFilterFpp > 0 ? 1024 : 0];
+        this.fileLocations = new ArrayList<>();
+        this.currentBlock = new ByteArrayOutputStream();
+        this.size = codec.writeHeader(dos);
+    }
+
+    /**
+     * @param record the serialized record, its contents are copied so the buffer can be reused for the next record
+     */
+
+    public void write(long key, ByteArrayOutputStream record) throws IOException {
+        if (numOfValuesInCurrentBlock == 0) {
+            firstKeyOfCurrentBlock = key;
+        }
+        record.writeTo(currentBlock);
+        numOfValuesInCurrentBlock++;
+        numberOfValues++;
+        if (bloomFilterFpp > 0) {
+            if (numOfKeys == keys.length) {
+                keys = Arrays.copyOf(keys, keys.length * 2);
+            }
+            keys[numOfKeys++] = key;
+        }
+        if (codec.isBlockFull(currentBlock.size(), targetSizeOfBlock)) {
+            writeCurrentBlock();
+        }
+    }
+
+    /**
+     * @return the size of the file, the records in the current block are counted at their unencoded size
+     */
+
+    public int getSize() {
+        return size + currentBlock.size();
+    }
+
+    /**
+     * @return the number of records that were written. The keys of a clean file are unique, so this is also the number of keys.
+     */
+
+    public int getNumberOfValues() {
+        return numberOfValues;
+    }
+
+    public List<Pair<Long, Integer>> getFileLocations() {
+        return fileLocations;
+    }
+
+    /**
+     * @return a bloom filter of all keys that were written, or null if no bloom filter was requested
+     */
+
+    public LongBloomFilter createBloomFilter() {
+        if (bloomFilterFpp <= 0) {
+            return null;
+        }
+        LongBloomFilter bloomFilter = new LongBloomFilter(numOfKeys, bloomFilterFpp);
+        for (int i = 0; i < numOfKeys; i++) {
+            bloomFilter.put(keys[i]);
+        }
+        return bloomFilter;
+    }
+
+    public void close() throws IOException {
+        if (numOfValuesInCurrentBlock > 0) {
+            writeCurrentBlock();
+        }
+        size += codec.writeFooter(dos);
+        dos.close();
+    }
+
+    private void writeCurrentBlock() throws IOException {
+        fileLocations.add(new Pair<>(firstKeyOfCurrentBlock, size));
+        size += codec.writeBlock(dos, currentBlock.toByteArray());
+        currentBlock.reset();
+        numOfValuesInCurrentBlock = 0;
+    }
+}
@@ -0,0 +1,352 @@
+package be.bagofwords.db.filedb;
+
+import be.bagofwords.logging.Log;
+
+import java.util.*;
+
+/**
+ * Rewrites (compacts) the buckets of one or more {@link FileDataInterface}s on its own threads, so compaction does not compete with the
+ * threads of the application. A single scheduler is shared by all data interfaces of a {@link FileDataInterfaceFactory}, so the number
+ * of threads and the I/O budget are limits for all data interfaces together. Threads are only started when there are compactions to run.
+ * <p>
+ * Buckets are compacted in order of priority, a bucket that is scheduled again while it is still waiting only has its priority updated.
+ * The I/O of background compactions is limited to a number of bytes per second: a compaction charges every chunk of I/O to the budget
+ * (see {@link IOBudget}) and waits until the chunk fits in the budget.
+ */
+
+class CompactionScheduler {
+
+    public static final int DEFAULT_NUMBER_OF_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+
+    private final String name;
+    private int maxNumberOfThreads;
+    private long maxBytesPerSecond;
+    private final List<Thread> threads;
+    private int numberOfIdleThreads;
+    //Ordered by priority, the scheduled compaction of a bucket can be found (and removed) through scheduledCompactionsByBucket
+    private final TreeSet<ScheduledCompaction> scheduledCompactions;
+    private final Map<FileBucket, ScheduledCompaction> scheduledCompactionsByBucket;
+    private final List<ScheduledCompaction> runningCompactions;
+    private long numberOfScheduledCompactions;
+    private long timeOfNextAllowedIO; //in nanoseconds
+    private boolean closed;
+
+    /**
+     * @param maxNumberOfThreads the maximum number of threads that run compactions
+     * @param maxBytesPerSecond  the I/O budget of background compactions, a value &lt;= 0 means no limit
+     */
+
+    public CompactionScheduler(String name, int maxNumberOfThreads, long maxBytesPerSecond) {
+        this.name = name;
+        this.threads = new ArrayList<>();
+        this.scheduledCompactions = new TreeSet<>();
+        this.scheduledCompactionsByBucket = new HashMap<>();
+        this.runningCompactions = new ArrayList<>();
+        setLimits(maxNumberOfThreads, maxBytesPerSecond);
+    }
+
+    /**
+     * Changes the number of threads and the I/O budget. Threads that are already running are not stopped when the maximum number of
+     * threads decreases.
+     */
+
+    public synchronized void setLimits(int maxNumberOfThreads, long maxBytesPerSecond) {
+        if (maxNumberOfThreads < 1) {
+            throw new IllegalArgumentException("Need at least one compaction thread, got " + maxNumberOfThreads);
+        }
+        this.maxNumberOfThreads = maxNumberOfThreads;
+        this.maxBytesPerSecond = maxBytesPerSecond;
+        notifyAll();
+    }
+
+    /**
+     * Schedules a background compaction of this bucket, buckets with a higher priority are compacted first.
+     */
+
+    public synchronized void schedule(Compaction compaction, FileBucket bucket, double priority) {
+        if (closed || isRunning(bucket)) {
+            return; //a running compaction will be scheduled again by the next pass if the bucket is still dirty
+        }
+        ScheduledCompaction current = scheduledCompactionsByBucket.get(bucket);
+        if (current != null) {
+            if (current.isForced() || current.priority == priority) {
+                return;
+            }
+            scheduledCompactions.remove(current);
+        }
+        add(new ScheduledCompaction(compaction, bucket, priority, null));
+    }
+
+    /**
+     * Compacts these buckets before all background compactions, without limiting the I/O, and waits until all of them are compacted.
+     *
+     * @throws RuntimeException if the compaction of one of the buckets failed, or if the compactions were cancelled in the meantime
+     */
+
+    public void compactNow(Compaction compaction, List<FileBucket> buckets) {
+        Set<FileBucket> remaining = new HashSet<>(buckets);
+        List<Exception> failures = new ArrayList<>();
+        synchronized (this) {
+            if (closed) {
+                throw new RuntimeException("Compaction scheduler " + name + " was closed");
+            }
+            for (FileBucket bucket : buckets) {
+                ScheduledCompaction current = scheduledCompactionsByBucket.remove(bucket);
+                if (current != null) {
+                    scheduledCompactions.remove(current);
+                }
+                add(new ScheduledCompaction(compaction, bucket, Double.POSITIVE_INFINITY, failures));
+            }
+            while (isScheduledOrRunning(remaining)) {
+                waitForChange();
+            }
+            if (!failures.isEmpty()) {
+                RuntimeException exp = new RuntimeException("Failed to compact " + failures.size() + " buckets", failures.get(0));
+                for (int i = 1; i < failures.size(); i++) {
+                    exp.addSuppressed(failures.get(i));
+                }
+                throw exp;
+            }
+        }
+    }
+
+    /**
+     * Drops the scheduled compactions of this compaction function and waits until its running compactions are finished. Running
+     * compactions no longer wait for the I/O budget. Compactions that were requested with {@link #compactNow(Compaction, List)} fail.
+     */
+
+    public synchronized void cancel(Compaction compaction) {
+        Iterator<ScheduledCompaction> iterator = scheduledCompactions.iterator();
+        while (iterator.hasNext()) {
+            ScheduledCompaction scheduledCompaction = iterator.next();
+            if (scheduledCompaction.compaction == compaction) {
+                iterator.remove();
+                scheduledCompactionsByBucket.remove(scheduledCompaction.bucket);
+                if (scheduledCompaction.isForced()) {
+                    scheduledCompaction.failures.add(new RuntimeException("Compaction of bucket " + scheduledCompaction.bucket + " was cancelled"));
+                }
+            }
+        }
+        for (ScheduledCompaction runningCompaction : runningCompactions) {
+            if (runningCompaction.compaction == compaction) {
+                runningCompaction.cancelled = true;
+            }
+        }
+        notifyAll();
+        while (isRunning(compaction)) {
+            waitForChange();
+        }
+    }
+
+    /**
+     * Drops all scheduled compactions and waits until the running compactions are finished
+     */
+
+    public void close() {
+        List<Thread> threadsToJoin;
+        synchronized (this) {
+            closed = true;
+            for (ScheduledCompaction scheduledCompaction : scheduledCompactions) {
+                if (scheduledCompaction.isForced()) {
+                    scheduledCompaction.failures.add(new RuntimeException("Compaction scheduler " + name + " was closed"));
+                }
+            }
+            scheduledCompactions.clear();
+            scheduledCompactionsByBucket.clear();
+            notifyAll();
+            threadsToJoin = new ArrayList<>(threads);
+        }
+        for (Thread thread : threadsToJoin) {
+            try {
+                thread.join();
+            } catch (InterruptedException exp) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    public synchronized int getNumberOfThreads() {
+        return threads.size();
+    }
+
+    private void add(ScheduledCompaction scheduledCompaction) {
+        scheduledCompactions.add(scheduledCompaction);
+        scheduledCompactionsByBucket.put(scheduledCompaction.bucket, scheduledCompaction);
+        if (scheduledCompactions.size() > numberOfIdleThreads && threads.size() < maxNumberOfThreads) {
+            Thread thread = new Thread(this::compactScheduledBuckets, "compaction_" + name + "_" + threads.size());
+            thread.setDaemon(true);
+            threads.add(thread);
+            thread.start();
+        }
+        notifyAll();
+    }
+
+    private void compactScheduledBuckets() {
+        while (true) {
+            ScheduledCompaction next;
+            synchronized (this) {
+                numberOfIdleThreads++;
+                while (!closed && scheduledCompactions.isEmpty()) {
+                    waitForChange();
+                }
+                numberOfIdleThreads--;
+                if (closed) {
+                    return;
+                }
+                next = scheduledCompactions.pollFirst();
+                scheduledCompactionsByBucket.remove(next.bucket);
+                runningCompactions.add(next);
+            }
+            try {
+                if (next.isForced()) {
+                    next.compaction.compact(next.bucket, true, IOBudget.UNLIMITED);
+                } else {
+                    next.compaction.compact(next.bucket, false, (bytesOfIO, canWait) -> waitForIOBudget(next, bytesOfIO, canWait));
+                }
+            } catch (Exception exp) {
+                if (next.isForced()) {
+                    synchronized (this) {
+                        next.failures.add(exp); //reported to the thread that is waiting in compactNow(..)
+                    }
+                } else {
+                    Log.e("Failed to compact bucket " + next.bucket, exp);
+                }
+            } finally {
+                synchronized (this) {
+                    runningCompactions.remove(next);
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Reserves the time needed to do this amount of I/O within the budget, and waits until the reserved time has passed.
+     */
+
+    private synchronized void waitForIOBudget(ScheduledCompaction compaction, long bytesOfIO, boolean canWait) {
+        if (maxBytesPerSecond <= 0 || bytesOfIO <= 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        timeOfNextAllowedIO = Math.max(timeOfNextAllowedIO, now) + bytesOfIO * 1000000000L / maxBytesPerSecond;
+        long endOfWait = timeOfNextAllowedIO;
+        while (canWait && !closed && !compaction.cancelled && System.nanoTime() < endOfWait) {
+            try {
+                //waiting releases the lock, other threads can reserve their budget in the meantime
+                long timeToWait = endOfWait - System.nanoTime();
+                wait(Math.max(1, timeToWait / 1000000));
+            } catch (InterruptedException exp) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private boolean isRunning(FileBucket bucket) {
+        for (ScheduledCompaction runningCompaction : runningCompactions) {
+            if (runningCompaction.bucket == bucket) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isRunning(Compaction compaction) {
+        for (ScheduledCompaction runningCompaction : runningCompactions) {
+            if (runningCompaction.compaction == compaction) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isScheduledOrRunning(Set<FileBucket> buckets) {
+        for (FileBucket bucket : buckets) {
+            if (scheduledCompactionsByBucket.containsKey(bucket) || isRunning(bucket)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void waitForChange() {
+        try {
+            wait();
+        } catch (InterruptedException exp) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for compactions", exp);
+        }
+    }
+
+    /**
+     * Compacts the files of a bucket
+     */
+
+    interface Compaction {
+
+        /**
+         * @param forceClean true if all files of the bucket should be clean afterwards. A background compaction (forceClean is false) may
+         *                   skip (part of) the bucket, e.g. when the bucket is locked.
+         * @param ioBudget   should be charged with every chunk of I/O, see {@link IOBudget#CHUNK_SIZE}
+         */
+
+        void compact(FileBucket bucket, boolean forceClean, IOBudget ioBudget);
+    }
+
+    /**
+     * The I/O budget of a running compaction.
+     */
+
+    interface IOBudget {
+
+        /**
+         * Compactions charge their I/O in chunks of about this many bytes, so a large compaction is spread over time instead of doing all
+         * its I/O at once
+         */
+
+        int CHUNK_SIZE = 64 * 1024;
+
+        IOBudget UNLIMITED = (bytesOfIO, canWait) -> {
+        };
+
+        /**
+         * Reserves the time needed to do this amount of I/O within the budget.
+         *
+         * @param canWait if true, waits until the reserved time has passed. A compaction should not wait when it holds a lock that other
+         *                threads are waiting for, the reserved time then delays the next chunks.
+         */
+
+        void use(long bytesOfIO, boolean canWait);
+    }
+
+    private class ScheduledCompaction implements Comparable<ScheduledCompaction> {
+        private final Compaction compaction;
+        private final FileBucket bucket;
+        private final double priority;
+        //Failures of a compaction that was requested by compactNow(..), null for a (throttled) background compaction
+        private final List<Exception> failures;
+        //Compactions with the same priority are run in the order in which they were scheduled
+        private final long order;
+        private volatile boolean cancelled;
+
+        private ScheduledCompaction(Compaction compaction, FileBucket bucket, double priority, List<Exception> failures) {
+            this.compaction = compaction;
+            this.bucket = bucket;
+            this.priority = priority;
+            this.failures = failures;
+            this.order = numberOfScheduledCompactions++;
+        }
+
+        private boolean isForced() {
+            return failures != null;
+        }
+
+        @Override
+        public int compareTo(ScheduledCompaction o) {
+            int result = Double.compare(o.priority, priority); //highest priority first
+            return result != 0 ? result : Long.compare(order, o.order);
+        }
+    }
+}
@@ -1,12 +1,14 @@
 package be.bagofwords.db.filedb;
 
 import be.bagofwords.logging.Log;
+import com.fasterxml.jackson.annotation.JsonIgnore;
 
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
 
 public class FileBucket implements Comparable<FileBucket> {
 
@@ -15,8 +17,23 @@ public class FileBucket implements Comparable<FileBucket> {
     private long firstKey; //inclusive
     private long lastKey; //inclusive
     private List<FileInfo> files;
-    private final ReadWriteLock lock;
+    private final ReentrantReadWriteLock lock;
+    //Only locked for writing by the thread that holds the write lock, so optimistic readers can detect that the files of the bucket were
+    //rewritten or that the bucket was split or merged. Values are appended to files while holding the read lock (see FileInfo#lockAppend())
+    private final StampedLock versionLock;
+    //Held while the files of this bucket are rewritten, so only one thread at a time rewrites them. The rewritten files are written
+    //while holding the read lock, the write lock is only taken to swap them in
+    private final ReentrantLock rewriteLock;
+    private long versionStamp;
     private boolean shouldBeCleanedBeforeRead;
+    //Set when this bucket was merged with the previous bucket. Threads that were waiting for the lock of this bucket should look up the bucket of their key again
+    private boolean removed;
+    private final LongAdder numberOfWrites;
+    private final LongAdder numberOfReads;
+    //Set when the files of this bucket changed since this bucket was last written to the manifest
+    private volatile boolean changed;
+    //Set when the files of this bucket are known to match the files on disk. Buckets read from the manifest are checked the first time they are used
+    private volatile boolean validated;
 
     public FileBucket(long firstKey, long lastKey) {
         this();
@@ -24,6 +41,8 @@ public class FileBucket implements Comparable<FileBucket> {
         this.lastKey = lastKey;
         this.files = new ArrayList<>();
         this.shouldBeCleanedBeforeRead = false;
+        this.changed = true;
+        this.validated = true;
     }
 
     public List<FileInfo> getFiles() {
@@ -43,7 +62,7 @@ public class FileBucket implements Comparable<FileBucket> {
             }
             return files.size() - 1;
         } else {
-            int pos = Collections.binarySearch((List) files, key);
+            int pos = KeySearch.search(i -> files.get(i).getFirstKey(), files.size(), key);
             if (pos < 0) {
                 pos = -(pos + 2);
             }
@@ -72,26 +91,180 @@ public class FileBucket implements Comparable<FileBucket> {
         return lastKey;
     }
 
+    /**
+     * Should only be called while holding a (read or write) lock on this bucket, since the range of a bucket changes when buckets are
+     * split or merged.
+     */
+
+    public boolean containsKey(long key) {
+        return !removed && firstKey <= key && key <= lastKey;
+    }
+
+    @JsonIgnore
+    public boolean isRemoved() {
+        return removed;
+    }
+
+    @JsonIgnore
+    public void setRemoved(boolean removed) {
+        this.removed = removed;
+    }
+
+    /**
+     * Number of values written to this bucket since the last time the buckets were rebalanced. Writers to different files of the bucket
+     * share the read lock of the bucket, so this counter is updated concurrently.
+     */
+
+    @JsonIgnore
+    public long getNumberOfWrites() {
+        return numberOfWrites.sum();
+    }
+
+    public void increaseNumberOfWrites(long diff) {
+        numberOfWrites.add(diff);
+    }
+
+    public void resetNumberOfWrites() {
+        numberOfWrites.reset();
+    }
+
+    /**
+     * Number of times this bucket was locked for reading since the last time the buckets were rebalanced. Readers share the lock of the
+     * bucket, so this counter is updated concurrently.
+     */
+
+    @JsonIgnore
+    public long getNumberOfReads() {
+        return numberOfReads.sum();
+    }
+
+    public void increaseNumberOfReads() {
+        numberOfReads.increment();
+    }
+
+    public void resetNumberOfReads() {
+        numberOfReads.reset();
+    }
+
+    /**
+     * Should be called while holding the write lock on this bucket after its files were changed, or while holding the append lock of the
+     * file that values were appended to
+     */
+
+    public void markChanged() {
+        changed = true;
+    }
+
+    @JsonIgnore
+    public boolean isChanged() {
+        return changed;
+    }
+
+    /**
+     * Should be called while holding a (read or write) lock on this bucket and the append locks of its files, after it was written to the
+     * manifest
+     */
+
+    public void clearChanged() {
+        changed = false;
+    }
+
+    @JsonIgnore
+    public boolean isValidated() {
+        return validated;
+    }
+
+    /**
+     * Should be called while holding the write lock on this bucket, after its files were checked against the files on disk
+     */
+
+    public void markValidated() {
+        validated = true;
+    }
+
     public void lockRead() {
         lock.readLock().lock();
     }
 
+    public boolean tryLockRead() {
+        return lock.readLock().tryLock();
+    }
+
     public void unlockRead() {
         lock.readLock().unlock();
     }
 
     public void lockWrite() {
         lock.writeLock().lock();
+        writeLockAcquired();
     }
 
     public boolean tryLockWrite() {
-        return lock.writeLock().tryLock();
+        if (lock.writeLock().tryLock()) {
+            writeLockAcquired();
+            return true;
+        } else {
+            return false;
+        }
     }
 
     public void unlockWrite() {
+        if (lock.getWriteHoldCount() == 1) {
+            versionLock.unlockWrite(versionStamp);
+        }
         lock.writeLock().unlock();
     }
 
+    /**
+     * Should be taken before the read or write lock of this bucket
+     */
+
+    public void lockRewrite() {
+        rewriteLock.lock();
+    }
+
+    public boolean tryLockRewrite() {
+        return rewriteLock.tryLock();
+    }
+
+    public void unlockRewrite() {
+        rewriteLock.unlock();
+    }
+
+    /**
+     * @return true if other threads are waiting for the read, write or rewrite lock of this bucket
+     */
+
+    public boolean hasQueuedThreads() {
+        return lock.hasQueuedThreads() || rewriteLock.hasQueuedThreads();
+    }
+
+    private void writeLockAcquired() {
+        if (lock.getWriteHoldCount() == 1) {
+            versionStamp = versionLock.writeLock(); //never blocks, optimistic readers don't hold this lock
+        }
+    }
+
+    /**
+     * Starts reading this bucket without taking a lock, so concurrent readers don't write to the shared state of the lock. Everything
+     * that is read until {@link #validate(long)} returns true can be inconsistent (and reading it can fail), since the bucket can be
+     * changed by a writer in the meantime.
+     *
+     * @return a stamp for {@link #validate(long)}, or 0 if the bucket is currently locked for writing
+     */
+
+    public long tryOptimisticRead() {
+        return versionLock.tryOptimisticRead();
+    }
+
+    /**
+     * @return true if the bucket was not locked for writing since the stamp was obtained
+     */
+
+    public boolean validate(long stamp) {
+        return versionLock.validate(stamp);
+    }
+
     public String toString() {
         return super.toString() + " " + firstKey;
     }
@@ -116,6 +289,10 @@ public class FileBucket implements Comparable<FileBucket> {
 
     public FileBucket() {
         this.lock = new ReentrantReadWriteLock();
+        this.versionLock = new StampedLock();
+        this.rewriteLock = new ReentrantLock();
+        this.numberOfReads = new LongAdder();
+        this.numberOfWrites = new LongAdder();
     }
 
     public void setFiles(List<FileInfo> files) {
@@ -0,0 +1,195 @@
+package be.bagofwords.db.filedb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps track of the files of which the contents are cached in memory and decides which files are evicted when the cache is full. Uses
+ * a generalized CLOCK policy: every hit increases the usage count of a file (up to MAX_USAGE_COUNT), the clock hand decreases the usage
+ * count of the files it passes and evicts the first file that has a usage count of zero. Registering a hit does not take any lock, so
+ * hot files don't cause contention between readers.
+ * <p>
+ * The files are kept in the slots of the clock. Every file knows its slot, so removing a file only empties its slot. Empty slots are
+ * skipped by the clock hand and reused by the next files that are added.
+ */
+
+public class FileContentsCache {
+
+    private static final int MAX_USAGE_COUNT = 3;
+
+    private final long maxSize;
+    //Slots of the clock, null for an empty slot
+    private final List<FileInfo> slots;
+    private int[] emptySlots;
+    private int numberOfEmptySlots;
+    private int clockHand;
+    private long currentSize;
+
+    private final LongAdder hits;
+    private final LongAdder misses;
+    private final LongAdder evictions;
+
+    public FileContentsCache(long maxSize) {
+        this.maxSize = maxSize;
+        this.slots = new ArrayList<>();
+        this.emptySlots = new int[16];
+        this.hits = new LongAdder();
+        this.misses = new LongAdder();
+        this.evictions = new LongAdder();
+    }
+
+    public void registerHit(FileInfo file) {
+        hits.increment();
+        int usageCount = file.getCacheUsageCount();
+        if (usageCount < MAX_USAGE_COUNT) {
+            file.setCacheUsageCount(usageCount + 1); //not atomic, but an occasionally lost increment does not matter
+        }
+    }
+
+    public void registerMiss() {
+        misses.increment();
+    }
+
+    public boolean canCache(long size) {
+        return size <= maxSize;
+    }
+
+    /**
+     * Adds the contents of this file to the cache, evicting cold files if the cache becomes too large.
+     */
+
+    public synchronized void add(FileInfo file, byte[] fileContents) {
+        file.setCachedFileContents(fileContents);
+        file.setCacheUsageCount(1);
+        if (numberOfEmptySlots > 0) {
+            int slot = emptySlots[--numberOfEmptySlots];
+            slots.set(slot, file);
+            file.setCacheSlot(slot);
+        } else {
+            slots.add(file);
+            file.setCacheSlot(slots.size() - 1);
+        }
+        currentSize += fileContents.length;
+        while (currentSize > maxSize) {
+            evictNextColdFile();
+        }
+    }
+
+    public synchronized long remove(FileInfo file) {
+        byte[] fileContents = file.getCachedFileContents();
+        if (fileContents == null) {
+            return 0;
+        }
+        emptySlot(file);
+        file.setCachedFileContents(null);
+        currentSize -= fileContents.length;
+        return fileContents.length;
+    }
+
+    /**
+     * Moves the clock until the cache is at most targetSize bytes. The clock decreases the usage count of the files it passes, so files
+     * that were read often are only evicted when all other files were evicted before them, or when the clock passed them several times.
+     *
+     * @return the number of bytes that were released
+     */
+
+    public synchronized long evictColdFiles(long targetSize) {
+        long bytesReleased = 0;
+        while (currentSize > targetSize && slots.size() > numberOfEmptySlots) {
+            bytesReleased += evictNextColdFile();
+        }
+        return bytesReleased;
+    }
+
+    public synchronized long clear() {
+        long bytesReleased = currentSize;
+        for (FileInfo file : slots) {
+            if (file != null) {
+                file.setCachedFileContents(null);
+                file.setCacheSlot(-1);
+            }
+        }
+        slots.clear();
+        numberOfEmptySlots = 0;
+        clockHand = 0;
+        currentSize = 0;
+        return bytesReleased;
+    }
+
+    private long evictNextColdFile() {
+        while (true) {
+            if (clockHand >= slots.size()) {
+                clockHand = 0;
+            }
+            FileInfo file = slots.get(clockHand++);
+            if (file != null) {
+                if (file.getCacheUsageCount() == 0) {
+                    return evict(file);
+                } else {
+                    file.setCacheUsageCount(file.getCacheUsageCount() - 1);
+                }
+            }
+        }
+    }
+
+    private long evict(FileInfo file) {
+        emptySlot(file);
+        byte[] fileContents = file.getCachedFileContents();
+        file.setCachedFileContents(null);
+        currentSize -= fileContents.length;
+        evictions.increment();
+        return fileContents.length;
+    }
+
+    private void emptySlot(FileInfo file) {
+        int slot = file.getCacheSlot();
+        if (slot == -1) {
+            return;
+        }
+        slots.set(slot, null);
+        file.setCacheSlot(-1);
+        if (numberOfEmptySlots == emptySlots.length) {
+            emptySlots = Arrays.copyOf(emptySlots, 2 * emptySlots.length);
+        }
+        emptySlots[numberOfEmptySlots++] = slot;
+    }
+
+    public synchronized long getCurrentSize() {
+        return currentSize;
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    public long getNumberOfHits() {
+        return hits.sum();
+    }
+
+    public long getNumberOfMisses() {
+        return misses.sum();
+    }
+
+    public long getNumberOfEvictions() {
+        return evictions.sum();
+    }
+
+    public double getHitRate() {
+        long hits = getNumberOfHits();
+        long total = hits + getNumberOfMisses();
+        return total == 0 ? 0 : hits / (double) total;
+    }
+
+    @Override
+    public String toString() {
+        return "FileContentsCache{" +
+                "size=" + getCurrentSize() +
+                ", maxSize=" + maxSize +
+                ", hits=" + getNumberOfHits() +
+                ", misses=" + getNumberOfMisses() +
+                ", evictions=" + getNumberOfEvictions() +
+                '}';
+    }
+}
@@ -1,6 +1,8 @@
 package be.bagofwords.db.filedb;
 
 import be.bagofwords.db.CoreDataInterface;
+import be.bagofwords.db.LongCountCursor;
+import be.bagofwords.db.bloomfilter.LongBloomFilter;
 import be.bagofwords.db.combinator.Combinator;
 import be.bagofwords.db.impl.DBUtils;
 import be.bagofwords.db.methods.KeyFilter;
@@ -16,71 +18,181 @@ import be.bagofwords.util.KeyValue;
 import be.bagofwords.util.MappedLists;
 import be.bagofwords.util.Pair;
 import be.bagofwords.util.SerializationUtils;
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.mutable.MutableLong;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public class FileDataInterface<T extends Object> extends CoreDataInterface<T> implements MemoryGobbler {
 
     private static final long MAX_FILE_SIZE_WRITE = 50 * 1024 * 1024;
     private static final long MAX_FILE_SIZE_READ = 10 * 1024 * 1024;
-    private static final long BITS_TO_DISCARD_FOR_FILE_BUCKETS = 58;
+    private static final long BITS_TO_DISCARD_FOR_FILE_BUCKETS = 58; //initial layout of the buckets
+    private static final int MIN_NUMBER_OF_BUCKETS = 1 << (64 - BITS_TO_DISCARD_FOR_FILE_BUCKETS);
+    private static final int MAX_NUMBER_OF_BUCKETS = 4096;
+    private static final long MAX_BUCKET_SIZE = 20 * MAX_FILE_SIZE_READ;
+    private static final long MIN_WRITES_FOR_SPLIT = 10000;
+    private static final long REBALANCE_INTERVAL = 10 * 1000;
+    private static final int MAX_OPEN_APPEND_CHANNELS = 256;
+    private static final long MAX_IDLE_TIME_APPEND_CHANNEL = 10 * 1000;
+    private static final long MAX_SIZE_WRITE_AHEAD_LOG = 16 * 1024 * 1024;
+    private static final long CHECKPOINT_INTERVAL = 60 * 1000;
+    private static final long MIN_READS_FOR_HOT_BUCKET = 100;
+    private static final long MAX_SIZE_OF_SORT_RUN = 8 * 1024 * 1024;
+    private static final int MAX_SIZE_OF_INDEXED_APPENDED_VALUES = 4 * 1024 * 1024;
+    private static final int MIN_SIZE_OF_BLOCK = 256;
+    private static final int MAX_SIZE_OF_BLOCK = 256 * 1024;
     private static final int BATCH_SIZE_PRIMITIVE_VALUES = 100000;
     private static final int BATCH_SIZE_NON_PRIMITIVE_VALUES = 100;
 
-    private static final String META_FILE = "META_FILE";
+    private static final String MANIFEST_FILE = "MANIFEST";
+    private static final String META_FILE = "META_FILE"; //meta information in json, only read to migrate to the manifest
+    private static final String WRITE_AHEAD_LOG_FILE = "WAL";
     private static final String LOCK_FILE = "LOCK";
+    private static final String SNAPSHOTS_DIRECTORY = "snapshots";
 
     private static final int LONG_SIZE = 8;
     private static final int INT_SIZE = 4;
 
     private MemoryManager memoryManager;
     private File directory;
-    private List<FileBucket> fileBuckets;
+    //Sorted list of buckets that is replaced (never modified) when buckets are split or merged
+    private volatile List<FileBucket> fileBuckets;
     private final int sizeOfValues;
     private final long randomId;
-
-    private final String sizeOfCachedFileContentsLock = new String("LOCK");
-    private final long maxSizeOfCachedFileContents;
-    private long currentSizeOfCachedFileContents;
+    private final FileDataInterfaceOptions options;
+    private final BlockCodec cleanFileCodec;
+
+    private final FileContentsCache fileContentsCache;
+    private final AppendChannelPool appendChannelPool;
+    private WriteAheadLog writeAheadLog;
+    private final CompactionScheduler compactionScheduler;
+    //False if the compaction scheduler is shared with other data interfaces, see FileDataInterfaceFactory
+    private final boolean ownsCompactionScheduler;
+    private final CompactionScheduler.Compaction compaction;
+    private final Manifest manifest;
+    private final long maxSizeOfIndexes;
+    //Memory used by the sparse indexes of all files, as computed by the last call to enforceIndexBudget()
+    private volatile long sizeOfIndexes;
+    //Memory used by the indexes of the values that were appended to dirty files, see setAppendedValuesIndex(..)
+    private final AtomicLong sizeOfAppendedValuesIndexes;
+    //The layout of the buckets that was last written to the manifest, null if the next write should be a complete snapshot
+    private List<FileBucket> bucketsInManifest;
+    private final AtomicLong numberOfSnapshots;
+    //Buckets are not rebalanced while the files of a snapshot are copied, see createSnapshot(boolean)
+    private final AtomicInteger numberOfSnapshotsBeingCopied;
+    private volatile boolean hardLinksAreUnsupported;
+    //Files whose meta information was lost and was reconstructed from their contents on disk, see createFileInfoFromFile(..)
+    private final AtomicInteger numberOfReconstructedFiles;
+    //Sorted first keys of the files that were found in the directory when this data interface was opened, see validateBucket(..)
+    private long[] firstKeysOfFilesAtOpen;
+    //Only used when the values are counts, see countsWithoutBoxing()
+    private final long encodedNullCount;
 
     private long timeOfLastWrite;
     private long timeOfLastRead;
+    private long timeOfLastRebalance;
+    private long timeOfLastCheckpoint;
 
     private boolean metaFileOutOfSync;
 
     private boolean closeWasRequested;
 
     public FileDataInterface(MemoryManager memoryManager, Combinator<T> combinator, Class<T> objectClass, String directory, String name, boolean isTemporaryDataInterface, AsyncJobService asyncJobService) {
+        this(memoryManager, combinator, objectClass, directory, name, isTemporaryDataInterface, asyncJobService, new FileDataInterfaceOptions());
+    }
+
+    public FileDataInterface(MemoryManager memoryManager, Combinator<T> combinator, Class<T> objectClass, String directory, String name, boolean isTemporaryDataInterface, AsyncJobService asyncJobService, FileDataInterfaceOptions options) {
+        this(memoryManager, combinator, objectClass, directory, name, isTemporaryDataInterface, asyncJobService, options, null);
+    }
+
+    /**
+     * @param compactionScheduler the scheduler that compacts the buckets of this data interface, shared with other data interfaces. If
+     *                            null, this data interface creates its own scheduler.
+     */
+
+    FileDataInterface(MemoryManager memoryManager, Combinator<T> combinator, Class<T> objectClass, String directory, String name, boolean isTemporaryDataInterface, AsyncJobService asyncJobService, FileDataInterfaceOptions options, CompactionScheduler compactionScheduler) {
         super(name, objectClass, combinator, isTemporaryDataInterface);
         this.directory = new File(directory, name);
+        this.options = options;
         this.sizeOfValues = SerializationUtils.getWidth(objectClass);
+        this.cleanFileCodec = new BlockCodec(getCleanFileEncoding(options, objectClass), sizeOfValues);
         this.randomId = new Random().nextLong();
         this.memoryManager = memoryManager;
-        this.maxSizeOfCachedFileContents = memoryManager.getAvailableMemoryInBytes() / 3;
+        this.fileContentsCache = new FileContentsCache(options.maxSizeOfCachedFileContents >= 0 ? options.maxSizeOfCachedFileContents : memoryManager.getAvailableMemoryInBytes() / 3);
+        this.appendChannelPool = new AppendChannelPool(MAX_OPEN_APPEND_CHANNELS, options.appendBufferSize);
+        this.manifest = new Manifest(new File(this.directory, MANIFEST_FILE));
+        this.maxSizeOfIndexes = options.maxSizeOfIndexes >= 0 ? options.maxSizeOfIndexes : memoryManager.getAvailableMemoryInBytes() / 20;
+        this.numberOfSnapshots = new AtomicLong();
+        this.numberOfSnapshotsBeingCopied = new AtomicInteger();
+        this.sizeOfAppendedValuesIndexes = new AtomicLong();
+        this.numberOfReconstructedFiles = new AtomicInteger();
+        this.encodedNullCount = objectClass == Long.class ? ByteBuffer.wrap(SerializationUtils.objectToBytesCheckForNull(null, Long.class)).getLong() : 0;
         timeOfLastRead = 0;
         checkDataDir();
+        FileUtils.deleteQuietly(new File(this.directory, SNAPSHOTS_DIRECTORY)); //snapshots that were not released before the last close
         initializeFromMetaFile();
+        initializeWriteAheadLog();
         writeLockFile(randomId);
-        currentSizeOfCachedFileContents = 0;
+        this.ownsCompactionScheduler = compactionScheduler == null;
+        this.compactionScheduler = ownsCompactionScheduler ? new CompactionScheduler(name, CompactionScheduler.DEFAULT_NUMBER_OF_THREADS, -1) : compactionScheduler;
+        this.compaction = this::rewriteBucket;
         asyncJobService.schedulePeriodicJob(() -> ifNotClosed(() -> {
-            rewriteAllFiles(false);
+            scheduleCompactions();
+            if (metaFileOutOfSync && checkpointIsDue()) {
+                writeMetaFile();
+            }
+            rebalanceBucketsIfDue();
+            enforceIndexBudget();
+            flushAppendChannels();
+            if (writeAheadLog != null && writeAheadLog.getSyncPolicy() == WalSyncPolicy.PERIODIC) {
+                writeAheadLog.sync();
+            }
             checkLock();
+            FileSnapshot.releaseUnreachableSnapshots();
         }), 1000); //rewrite files that are too large
     }
 
+    /**
+     * Only the meta information itself is checked when it is up-to-date, the files of a bucket are compared with the files on disk the
+     * first time the bucket is used (see {@link #validateBucket(FileBucket)}). This keeps the time to open independent of the amount of
+     * data.
+     */
+
     private void initializeFromMetaFile() {
-        MetaFile metaFile = readMetaInfo();
         String[] filesInDir = this.directory.list();
-        if (metaFile != null && metaFileUpToDate(metaFile, filesInDir)) {
+        firstKeysOfFilesAtOpen = getFirstKeysOfFiles(filesInDir);
+        MetaFile metaFile = readMetaInfo();
+        File writeAheadLogFile = new File(directory, WRITE_AHEAD_LOG_FILE);
+        boolean canReplayWriteAheadLog = options.writeAheadLog && writeAheadLogFile.exists();
+        if (metaFile != null && metaFileIsConsistent(metaFile) && (!canReplayWriteAheadLog || writeAheadLogFile.length() == 0)) {
             metaFileOutOfSync = false;
             timeOfLastRead = metaFile.getLastRead();
             timeOfLastWrite = metaFile.getLastWrite();
             fileBuckets = metaFile.getFileBuckets();
+            if (manifest.exists()) {
+                bucketsInManifest = fileBuckets;
+            } else {
+                metaFileOutOfSync = true; //migrate json meta file to manifest
+            }
+        } else if (canReplayWriteAheadLog) {
+            metaFileOutOfSync = true;
+            Log.i("Meta information for " + getName() + " is not up-to-date, will replay write-ahead log.");
+            recoverFromWriteAheadLog(metaFile, filesInDir, writeAheadLogFile);
+            makeSureAllFileBucketsHaveAtLeastOneFile(fileBuckets);
         } else {
             metaFileOutOfSync = true;
             timeOfLastRead = timeOfLastWrite = 0;
@@ -89,61 +201,352 @@ public class FileDataInterface<T extends Object> extends CoreDataInterface<T> im
                 Log.i("Missing (up-to-date) meta information for " + getName() + " will reconstruct data structures from files found in directory.");
                 updateBucketsFromFiles(filesInDir);
             }
-            makeSureAllFileBucketsHaveAtLeastOneFile();
+            makeSureAllFileBucketsHaveAtLeastOneFile(fileBuckets);
+        }
+    }
+
+    /**
+     * The state after the last checkpoint (the meta file) with the changes of the write-ahead log applied. Values that were appended to
+     * files after the checkpoint are found by comparing the size of the files on disk with the size at the checkpoint. Only files that
+     * are not known or that are smaller than expected are reconstructed.
+     */
+
+    private void recoverFromWriteAheadLog(MetaFile metaFile, String[] filesInDir, File writeAheadLogFile) {
+        timeOfLastRead = timeOfLastWrite = 0;
+        Map<Long, FileInfo> files = new HashMap<>();
+        List<Long> bucketFirstKeys = new ArrayList<>();
+        if (metaFile != null) {
+            timeOfLastRead = metaFile.getLastRead();
+            timeOfLastWrite = metaFile.getLastWrite();
+            for (FileBucket bucket : metaFile.getFileBuckets()) {
+                bucketFirstKeys.add(bucket.getFirstKey());
+                for (FileInfo file : bucket.getFiles()) {
+                    files.put(file.getFirstKey(), file);
+                }
+            }
+        }
+        try {
+            WriteAheadLog.replay(writeAheadLogFile, files, bucketFirstKeys);
+        } catch (IOException exp) {
+            throw new RuntimeException("Failed to replay write-ahead log " + writeAheadLogFile.getAbsolutePath(), exp);
+        }
+        fileBuckets = bucketFirstKeys.isEmpty() || bucketFirstKeys.get(0) != Long.MIN_VALUE ? createEmptyFileBuckets() : createFileBuckets(bucketFirstKeys);
+        boolean foundFiles = false;
+        int numOfReconstructedFiles = 0;
+        for (String name : filesInDir) {
+            if (name.matches("-?[0-9]+")) {
+                long key = Long.parseLong(name);
+                File fileOnDisk = new File(directory, name);
+                FileInfo fileInfo = files.get(key);
+                if (fileInfo == null || fileOnDisk.length() < fileInfo.getWriteSize()) {
+                    //file was being rewritten at the time of the crash
+                    fileInfo = createFileInfoFromFile(key, fileOnDisk);
+                    numOfReconstructedFiles++;
+                } else if (fileOnDisk.length() > fileInfo.getWriteSize()) {
+                    //values were appended after the checkpoint
+                    fileInfo.setWriteSize(removeIncompleteValue(fileOnDisk, fileInfo.getWriteSize()));
+                }
+                FileBucket bucket = getBucket(key);
+                bucket.getFiles().add(fileInfo);
+                bucket.setShouldBeCleanedBeforeRead(bucket.shouldBeCleanedBeforeRead() || !fileInfo.isClean());
+                foundFiles = true;
+            }
+        }
+        if (foundFiles) {
+            mergeBucketsWithoutFirstFile();
+        }
+        Log.i("Recovered " + getName() + " from write-ahead log, reconstructed " + numOfReconstructedFiles + " files");
+    }
+
+    /**
+     * The size of the file without the last value, if that value was only partially written. The incomplete value is removed from the
+     * file.
+     */
+
+    private int removeIncompleteValue(File file, int startOfAppendedValues) {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            int sizeOnDisk = (int) raf.length();
+            int sizeOfCompleteValues;
+            if (sizeOfValues != -1) {
+                sizeOfCompleteValues = sizeOnDisk - (sizeOnDisk - startOfAppendedValues) % (LONG_SIZE + sizeOfValues);
+            } else {
+                byte[] appendedValues = new byte[sizeOnDisk - startOfAppendedValues];
+                raf.seek(startOfAppendedValues);
+                raf.readFully(appendedValues);
+                ByteBuffer buffer = ByteBuffer.wrap(appendedValues);
+                int position = 0;
+                while (position + LONG_SIZE + INT_SIZE <= appendedValues.length) {
+                    int endOfValue = position + LONG_SIZE + INT_SIZE + buffer.getInt(position + LONG_SIZE);
+                    if (endOfValue > appendedValues.length) {
+                        break;
+                    }
+                    position = endOfValue;
+                }
+                sizeOfCompleteValues = startOfAppendedValues + position;
+            }
+            if (sizeOfCompleteValues < sizeOnDisk) {
+                Log.i("Removing " + (sizeOnDisk - sizeOfCompleteValues) + " bytes of incomplete value from " + file.getAbsolutePath());
+                raf.setLength(sizeOfCompleteValues);
+            }
+            return sizeOfCompleteValues;
+        } catch (IOException exp) {
+            throw new RuntimeException("Failed to read file " + file.getAbsolutePath(), exp);
+        }
+    }
+
+    private void initializeWriteAheadLog() {
+        File writeAheadLogFile = new File(directory, WRITE_AHEAD_LOG_FILE);
+        if (options.writeAheadLog) {
+            if (metaFileOutOfSync) {
+                writeMetaFile(); //the log should start from an up-to-date checkpoint
+            }
+            writeAheadLog = new WriteAheadLog(writeAheadLogFile, options.walSyncPolicy);
+        } else if (writeAheadLogFile.exists()) {
+            //changes are not logged anymore, the log can not be replayed on top of meta files that are written from now on
+            boolean success = writeAheadLogFile.delete();
+            if (!success) {
+                throw new RuntimeException("Failed to delete write-ahead log " + writeAheadLogFile.getAbsolutePath());
+            }
         }
     }
 
+    /**
+     * Reads the value from the clean part of the file. If values were appended to the file, they are combined with this value without
+     * rewriting the file (see {@link AppendedValuesIndex}). The file is only rewritten first when too many values were appended.
+     * <p>
+     * When the file is in memory, the value is first read without locking the bucket (see {@link FileBucket#tryOptimisticRead()}), so
+     * concurrent readers of the same bucket don't contend on its lock. The lock is only taken when the bucket was changed in the meantime.
+     * The stamp is validated after the block of the key was located and before the block is decoded, so lengths read from the block
+     * are never taken from a file that was rewritten in the meantime.
+     */
+
     @Override
     public T read(long key) {
         FileBucket bucket = getBucket(key);
-        lockForRead(bucket);
+        long stamp = bucket.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                FileInfo file = bucket.isValidated() && bucket.containsKey(key) ? bucket.getFile(key) : null;
+                ReadBuffer cleanPart = file == null ? null : getCleanPartInMemory(file);
+                boolean isDirty = file != null && file.getWriteSize() > file.getReadSize();
+                AppendedValuesIndex index = isDirty ? getUpToDateAppendedValuesIndex(file) : null;
+                if (cleanPart != null && isDirty == (index != null)) {
+                    int block = mightContainKey(file, key) ? findBlock(file, key) : -1;
+                    int startPos = block == -1 ? 0 : file.getFileLocationsValues()[block];
+                    int endPos = block == -1 ? 0 : getEndOfBlock(file, block);
+                    BlockCodec codec = getBlockCodec(file);
+                    //the lengths in the block can only be trusted when the block was located with the current meta information of the file
+                    if (bucket.validate(stamp)) {
+                        T value = block == -1 ? null : readFromBlock(codec, cleanPart, startPos, endPos, key);
+                        if (index != null) {
+                            value = combineWithAppendedValues(index, key, value);
+                        }
+                        bucket.increaseNumberOfReads(); //striped counter, concurrent readers don't contend on it
+                        fileContentsCache.registerHit(file);
+                        dataWasRead();
+                        return value;
+                    }
+                }
+            } catch (Exception exp) {
+                //the bucket was changed while we were reading it, we read it again while holding the lock
+            }
+        }
+        bucket = lockBucketForPointRead(key);
         FileInfo file = bucket.getFile(key);
         try {
-            int startPos;
-            int pos = Arrays.binarySearch(file.getFileLocationsKeys(), key);
-            if (pos == -1) {
-                //Before first key, value can not be in file
-                return null;
-            } else {
-                if (pos < 0) {
-                    pos = -(pos + 1);
-                }
-                if (pos == file.getFileLocationsKeys().length || file.getFileLocationsKeys()[pos] > key) {
-                    pos--;
-                }
-                startPos = file.getFileLocationsValues()[pos];
-            }
-            int endPos = pos + 1 < file.getFileLocationsKeys().length ? file.getFileLocationsValues()[pos + 1] : file.getReadSize();
-            ReadBuffer readBuffer = getReadBuffer(file, startPos, endPos);
-            startPos -= readBuffer.getOffset();
-            endPos -= readBuffer.getOffset();
-            byte firstByteOfKeyToRead = (byte) (key >> 56);
-            byte[] buffer = readBuffer.getBuffer();
-            int position = startPos;
-            while (position < endPos) {
-                byte currentByte = buffer[position];
-                if (currentByte == firstByteOfKeyToRead) {
-                    long currentKey = SerializationUtils.bytesToLong(buffer, position);
-                    position += LONG_SIZE;
-                    if (currentKey == key) {
-                        ReadValue<T> readValue = readValue(buffer, position, true);
-                        return readValue.getValue();
-                    } else if (currentKey > key) {
-                        return null;
-                    } else {
-                        //skip value
-                        position += skipValue(buffer, position);
+            T value = readFromCleanPart(file, key, null);
+            if (file.getWriteSize() > file.getReadSize()) {
+                value = combineWithAppendedValues(getAppendedValuesIndex(file), key, value);
+            }
+            return value;
+        } catch (Exception exp) {
+            throw new RuntimeException("Error in file " + toFile(file).getAbsolutePath(), exp);
+        } finally {
+            dataWasRead();
+            bucket.unlockRead();
+        }
+    }
+
+    /**
+     * Reads the values of several keys. The keys are sorted, so every bucket is locked once and a block that contains several of the
+     * keys is only decoded once.
+     */
+
+    @Override
+    public List<T> readMany(long[] keys) {
+        long[] sortedKeys = keys.clone();
+        Arrays.sort(sortedKeys);
+        Object[] sortedValues = new Object[sortedKeys.length];
+        int ind = 0;
+        while (ind < sortedKeys.length) {
+            FileBucket bucket = lockBucketForPointRead(sortedKeys[ind]);
+            FileInfo file = null;
+            try {
+                int block = -1;
+                ByteBuffer decodedBlock = null;
+                while (ind < sortedKeys.length && bucket.containsKey(sortedKeys[ind])) {
+                    long key = sortedKeys[ind];
+                    FileInfo fileOfKey = bucket.getFile(key);
+                    if (fileOfKey != file) {
+                        if (!canBeReadWithoutRewrite(fileOfKey)) {
+                            break; //bucket will be rewritten by lockBucketForPointRead(..)
+                        }
+                        file = fileOfKey;
+                        block = -1;
+                        decodedBlock = null;
                     }
-                } else if (currentByte > firstByteOfKeyToRead) {
-                    //key too large, value not in this file
-                    return null;
-                } else if (currentByte < firstByteOfKeyToRead) {
-                    //key too small, skip key and value
-                    position += LONG_SIZE;
-                    position += skipValue(buffer, position);
+                    T value = null;
+                    if (file.getBloomFilter() == null || file.getBloomFilter().mightContain(key)) {
+                        int blockOfKey = findBlock(file, key);
+                        if (blockOfKey != -1) {
+                            if (getBlockCodec(file).isColumnar()) {
+                                value = findInColumnarBlock(file, blockOfKey, key, null);
+                            } else {
+                                if (blockOfKey != block) {
+                                    block = blockOfKey;
+                                    decodedBlock = decodeBlock(file, block, null);
+                                }
+                                value = findInBlock(decodedBlock, key);
+                            }
+                        }
+                    }
+                    if (file.getWriteSize() > file.getReadSize()) {
+                        value = combineWithAppendedValues(getAppendedValuesIndex(file), key, value);
+                    }
+                    sortedValues[ind] = value;
+                    ind++;
                 }
+            } catch (Exception exp) {
+                throw new RuntimeException("Error in file " + (file == null ? "of bucket " + bucket.getFirstKey() : toFile(file).getAbsolutePath()), exp);
+            } finally {
+                dataWasRead();
+                bucket.unlockRead();
             }
-            return null;
+        }
+        List<T> result = new ArrayList<>(keys.length);
+        for (long key : keys) {
+            result.add((T) sortedValues[Arrays.binarySearch(sortedKeys, key)]);
+        }
+        return result;
+    }
+
+    /**
+     * Like {@link #readMany(long[])}, but the counts are read and combined with the appended counts without boxing them
+     */
+
+    @Override
+    public void readCounts(long[] keys, long[] counts) {
+        if (!countsWithoutBoxing()) {
+            super.readCounts(keys, counts);
+            return;
+        }
+        if (counts.length < keys.length) {
+            throw new IllegalArgumentException("Can not read " + keys.length + " counts into an array of length " + counts.length);
+        }
+        long[] sortedKeys = keys.clone();
+        Arrays.sort(sortedKeys);
+        long[] sortedCounts = new long[sortedKeys.length];
+        int ind = 0;
+        while (ind < sortedKeys.length) {
+            FileBucket bucket = lockBucketForPointRead(sortedKeys[ind]);
+            FileInfo file = null;
+            try {
+                int block = -1;
+                ByteBuffer decodedBlock = null;
+                while (ind < sortedKeys.length && bucket.containsKey(sortedKeys[ind])) {
+                    long key = sortedKeys[ind];
+                    FileInfo fileOfKey = bucket.getFile(key);
+                    if (fileOfKey != file) {
+                        if (!canBeReadWithoutRewrite(fileOfKey)) {
+                            break; //bucket will be rewritten by lockBucketForPointRead(..)
+                        }
+                        file = fileOfKey;
+                        block = -1;
+                        decodedBlock = null;
+                    }
+                    long count = 0;
+                    if (file.getBloomFilter() == null || file.getBloomFilter().mightContain(key)) {
+                        int blockOfKey = findBlock(file, key);
+                        if (blockOfKey != -1) {
+                            if (getBlockCodec(file).isColumnar()) {
+                                count = readCountFromCleanPart(file, key, null);
+                            } else {
+                                if (blockOfKey != block) {
+                                    block = blockOfKey;
+                                    decodedBlock = decodeBlock(file, block, null);
+                                }
+                                int position = findValuePosition(decodedBlock, decodedBlock.position(), decodedBlock.limit(), key);
+                                if (position != -1) {
+                                    count = decodedBlock.getLong(position);
+                                    count = count == encodedNullCount ? 0 : count;
+                                }
+                            }
+                        }
+                    }
+                    if (file.getWriteSize() > file.getReadSize()) {
+                        count = combineWithAppendedCounts(getAppendedValuesIndex(file), key, count);
+                    }
+                    sortedCounts[ind] = count;
+                    ind++;
+                }
+            } catch (Exception exp) {
+                throw new RuntimeException("Error in file " + (file == null ? "of bucket " + bucket.getFirstKey() : toFile(file).getAbsolutePath()), exp);
+            } finally {
+                dataWasRead();
+                bucket.unlockRead();
+            }
+        }
+        for (int i = 0; i < keys.length; i++) {
+            counts[i] = sortedCounts[Arrays.binarySearch(sortedKeys, keys[i])];
+        }
+    }
+
+    /**
+     * Like {@link #read(long)}, but the count is read and combined with the appended counts without boxing it
+     */
+
+    @Override
+    public long readCount(long key) {
+        if (!countsWithoutBoxing()) {
+            return super.readCount(key);
+        }
+        FileBucket bucket = getBucket(key);
+        long stamp = bucket.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                FileInfo file = bucket.isValidated() && bucket.containsKey(key) ? bucket.getFile(key) : null;
+                ReadBuffer cleanPart = file == null ? null : getCleanPartInMemory(file);
+                boolean isDirty = file != null && file.getWriteSize() > file.getReadSize();
+                AppendedValuesIndex index = isDirty ? getUpToDateAppendedValuesIndex(file) : null;
+                if (cleanPart != null && isDirty == (index != null)) {
+                    int block = mightContainKey(file, key) ? findBlock(file, key) : -1;
+                    int startPos = block == -1 ? 0 : file.getFileLocationsValues()[block];
+                    int endPos = block == -1 ? 0 : getEndOfBlock(file, block);
+                    BlockCodec codec = getBlockCodec(file);
+                    //see read(long), the stamp is validated before the block is decoded
+                    if (bucket.validate(stamp)) {
+                        long count = block == -1 ? 0 : readCountFromBlock(codec, cleanPart, startPos, endPos, key);
+                        if (index != null) {
+                            count = combineWithAppendedCounts(index, key, count);
+                        }
+                        bucket.increaseNumberOfReads();
+                        fileContentsCache.registerHit(file);
+                        dataWasRead();
+                        return count;
+                    }
+                }
+            } catch (Exception exp) {
+                //the bucket was changed while we were reading it, we read it again while holding the lock
+            }
+        }
+        bucket = lockBucketForPointRead(key);
+        FileInfo file = bucket.getFile(key);
+        try {
+            long count = readCountFromCleanPart(file, key, null);
+            if (file.getWriteSize() > file.getReadSize()) {
+                count = combineWithAppendedCounts(getAppendedValuesIndex(file), key, count);
+            }
+            return count;
         } catch (Exception exp) {
             throw new RuntimeException("Error in file " + toFile(file).getAbsolutePath(), exp);
         } finally {
@@ -152,21 +555,323 @@ public class FileDataInterface<T extends Object> extends CoreDataInterface<T> im
         }
     }
 
+    /**
+     * @param cleanPart the clean part of the file if it is in memory (see {@link #getCleanPartInMemory(FileInfo)}), or null to read the
+     *                  block with {@link #getReadBuffer(FileInfo, int, int)}
+     */
+
+    private long readCountFromCleanPart(FileInfo file, long key, ReadBuffer cleanPart) throws IOException {
+        if (!mightContainKey(file, key)) {
+            return 0;
+        }
+        int block = findBlock(file, key);
+        if (block == -1) {
+            return 0;
+        }
+        int startPos = file.getFileLocationsValues()[block];
+        int endPos = getEndOfBlock(file, block);
+        ReadBuffer readBuffer = cleanPart != null ? cleanPart : getReadBuffer(file, startPos, endPos);
+        return readCountFromBlock(getBlockCodec(file), readBuffer, startPos, endPos, key);
+    }
+
+    /**
+     * Reads the count of this key from the block between startPos and endPos, only the contents of the file are read
+     */
+
+    private long readCountFromBlock(BlockCodec codec, ReadBuffer readBuffer, int startPos, int endPos, long key) throws IOException {
+        ByteBuffer records;
+        int position;
+        if (codec.isColumnar()) {
+            records = codec.findValue(readBuffer.getBuffer(), startPos - readBuffer.getOffset(), key);
+            position = records == null ? -1 : records.position();
+        } else if (codec.isRaw()) {
+            //the records can be read directly from the contents of the file
+            records = readBuffer.getBuffer();
+            position = findValuePosition(records, startPos - readBuffer.getOffset(), endPos - readBuffer.getOffset(), key);
+        } else {
+            records = codec.decodeBlock(readBuffer.getBuffer(), startPos - readBuffer.getOffset(), endPos - readBuffer.getOffset());
+            position = findValuePosition(records, records.position(), records.limit(), key);
+        }
+        if (position == -1) {
+            return 0;
+        }
+        long count = records.getLong(position);
+        return count == encodedNullCount ? 0 : count;
+    }
+
+    /**
+     * @param cleanPart the clean part of the file if it is in memory (see {@link #getCleanPartInMemory(FileInfo)}), or null to read the
+     *                  block with {@link #getReadBuffer(FileInfo, int, int)}
+     */
+
+    private T readFromCleanPart(FileInfo file, long key, ReadBuffer cleanPart) throws IOException {
+        if (!mightContainKey(file, key)) {
+            return null;
+        }
+        int block = findBlock(file, key);
+        if (block == -1) {
+            //Before first key, value can not be in file
+            return null;
+        }
+        int startPos = file.getFileLocationsValues()[block];
+        int endPos = getEndOfBlock(file, block);
+        ReadBuffer readBuffer = cleanPart != null ? cleanPart : getReadBuffer(file, startPos, endPos);
+        return readFromBlock(getBlockCodec(file), readBuffer, startPos, endPos, key);
+    }
+
+    /**
+     * Reads the value of this key from the block between startPos and endPos, only the contents of the file are read
+     */
+
+    private T readFromBlock(BlockCodec codec, ReadBuffer readBuffer, int startPos, int endPos, long key) throws IOException {
+        if (codec.isColumnar()) {
+            ByteBuffer value = codec.findValue(readBuffer.getBuffer(), startPos - readBuffer.getOffset(), key);
+            return value == null ? null : bytesToObject(value, value.position(), sizeOfValues);
+        }
+        return findInBlock(codec.decodeBlock(readBuffer.getBuffer(), startPos - readBuffer.getOffset(), endPos - readBuffer.getOffset()), key);
+    }
+
+    private boolean mightContainKey(FileInfo file, long key) {
+        LongBloomFilter bloomFilter = file.getBloomFilter();
+        return bloomFilter == null || bloomFilter.mightContain(key);
+    }
+
+    /**
+     * @return the index in the sparse index of the block that could contain this key, or -1 if the key is smaller than the first key
+     */
+
+    private int findBlock(FileInfo file, long key) {
+        int pos = file.searchIndex(key);
+        if (pos == -1) {
+            return -1;
+        }
+        if (pos < 0) {
+            pos = -(pos + 1);
+        }
+        if (pos == file.getFileLocationsKeys().length || file.getFileLocationsKeys()[pos] > key) {
+            pos--;
+        }
+        return pos;
+    }
+
+    private int getEndOfBlock(FileInfo file, int block) {
+        return block + 1 < file.getFileLocationsKeys().length ? file.getFileLocationsValues()[block + 1] : file.getReadSize();
+    }
+
+    private ByteBuffer decodeBlock(FileInfo file, int block, ReadBuffer cleanPart) throws IOException {
+        int startPos = file.getFileLocationsValues()[block];
+        int endPos = getEndOfBlock(file, block);
+        ReadBuffer readBuffer = cleanPart != null ? cleanPart : getReadBuffer(file, startPos, endPos);
+        return getBlockCodec(file).decodeBlock(readBuffer.getBuffer(), startPos - readBuffer.getOffset(), endPos - readBuffer.getOffset());
+    }
+
+    private T findInColumnarBlock(FileInfo file, int block, long key, ReadBuffer cleanPart) throws IOException {
+        int startPos = file.getFileLocationsValues()[block];
+        ReadBuffer readBuffer = cleanPart != null ? cleanPart : getReadBuffer(file, startPos, getEndOfBlock(file, block));
+        ByteBuffer value = getBlockCodec(file).findValue(readBuffer.getBuffer(), startPos - readBuffer.getOffset(), key);
+        return value == null ? null : bytesToObject(value, value.position(), sizeOfValues);
+    }
+
+    private T findInBlock(ByteBuffer buffer, long key) throws IOException {
+        int position = findValuePosition(buffer, buffer.position(), buffer.limit(), key);
+        return position == -1 ? null : readValue(buffer, position, true).getValue();
+    }
+
+    /**
+     * @return the position of the value of this key in the records between position and endPosition, or -1 if the key was not found
+     */
+
+    private int findValuePosition(ByteBuffer buffer, int position, int endPosition, long key) throws IOException {
+        byte firstByteOfKeyToRead = (byte) (key >> 56);
+        while (position < endPosition) {
+            byte currentByte = buffer.get(position);
+            if (currentByte == firstByteOfKeyToRead) {
+                long currentKey = buffer.getLong(position);
+                position += LONG_SIZE;
+                if (currentKey == key) {
+                    return position;
+                } else if (currentKey > key) {
+                    return -1;
+                } else {
+                    //skip value
+                    position += skipValue(buffer, position);
+                }
+            } else if (currentByte > firstByteOfKeyToRead) {
+                //key too large, value not in this file
+                return -1;
+            } else if (currentByte < firstByteOfKeyToRead) {
+                //key too small, skip key and value
+                position += LONG_SIZE;
+                position += skipValue(buffer, position);
+            }
+        }
+        return -1;
+    }
+
+    private T combineWithAppendedValues(AppendedValuesIndex index, long key, T value) throws IOException {
+        for (AppendedValuesIndex.Run run : index.getRuns()) {
+            int ind = run.firstIndexOf(key);
+            while (ind != -1 && ind < run.size() && run.getKey(ind) == key) {
+                T appendedValue = readValue(run.getRecords(), run.getValuePosition(ind), true).getValue();
+                if (value == null || appendedValue == null) {
+                    value = appendedValue; //a null value removes the previous values
+                } else {
+                    value = getCombinator().combine(value, appendedValue);
+                }
+                ind++;
+            }
+        }
+        return value;
+    }
+
+    private long combineWithAppendedCounts(AppendedValuesIndex index, long key, long count) {
+        List<AppendedValuesIndex.Run> runs = index.getRuns();
+        for (int i = 0; i < runs.size(); i++) {
+            AppendedValuesIndex.Run run = runs.get(i);
+            int ind = run.firstIndexOf(key);
+            while (ind != -1 && ind < run.size() && run.getKey(ind) == key) {
+                long appendedCount = run.getRecords().getLong(run.getValuePosition(ind));
+                count = appendedCount == encodedNullCount ? 0 : count + appendedCount; //a null value removes the previous counts
+                ind++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Brings the index of the appended values of this file up-to-date, only the values that were appended since the last read are read
+     * from disk. Should be called while holding a read lock on the bucket of this file, so the file is not rewritten in the meantime.
+     * Values can still be appended concurrently, the index then contains the values that were appended when the write size was read.
+     */
+
+    private AppendedValuesIndex getAppendedValuesIndex(FileInfo file) throws IOException {
+        AppendedValuesIndex index = getUpToDateAppendedValuesIndex(file);
+        if (index != null) {
+            return index;
+        }
+        synchronized (file) {
+            //the write size is only increased after the values were appended, so all values up to this size are flushed below
+            int writeSize = file.getWriteSize();
+            index = file.getAppendedValuesIndex();
+            if (index == null || index.getStartPosition() != file.getReadSize() || index.getEndPosition() > writeSize) {
+                index = new AppendedValuesIndex(file.getReadSize(), sizeOfValues);
+            }
+            if (index.getEndPosition() < writeSize) {
+                AppendChannel appendChannel = file.getAppendChannel();
+                if (appendChannel != null) {
+                    appendChannel.flush();
+                }
+                byte[] records = new byte[writeSize - index.getEndPosition()];
+                try (RandomAccessFile raf = new RandomAccessFile(toFile(file), "r")) {
+                    raf.seek(index.getEndPosition());
+                    raf.readFully(records);
+                }
+                index = index.withAppendedRecords(records);
+            }
+            setAppendedValuesIndex(file, index);
+            return index;
+        }
+    }
+
+    /**
+     * Should be called while holding the monitor of the file. Keeps track of the memory used by the indexes of all files.
+     */
+
+    private void setAppendedValuesIndex(FileInfo file, AppendedValuesIndex index) {
+        AppendedValuesIndex previousIndex = file.getAppendedValuesIndex();
+        long previousMemoryUsage = previousIndex == null ? 0 : previousIndex.getMemoryUsage();
+        sizeOfAppendedValuesIndexes.addAndGet((index == null ? 0 : index.getMemoryUsage()) - previousMemoryUsage);
+        file.setAppendedValuesIndex(index);
+    }
+
+    /**
+     * @return the index of the appended values of this file if it is up-to-date, null if values were appended since it was created
+     */
+
+    private AppendedValuesIndex getUpToDateAppendedValuesIndex(FileInfo file) {
+        AppendedValuesIndex index = file.getAppendedValuesIndex();
+        return index != null && index.getStartPosition() == file.getReadSize() && index.getEndPosition() == file.getWriteSize() ? index : null;
+    }
+
+    /**
+     * @return the clean part of this file if it is cached or mapped, null otherwise. Unlike {@link #getReadBuffer(FileInfo, int, int)} this
+     * never reads, caches or maps the file, so it can be used while reading a bucket without holding its lock.
+     */
+
+    private ReadBuffer getCleanPartInMemory(FileInfo file) {
+        ByteBuffer contents;
+        if (options.memoryMapFiles) {
+            contents = file.getMappedFileContents();
+        } else {
+            byte[] cachedContents = file.getCachedFileContents();
+            contents = cachedContents == null ? null : ByteBuffer.wrap(cachedContents);
+        }
+        return contents == null || contents.limit() != file.getReadSize() ? null : new ReadBuffer(contents, 0);
+    }
+
+    /**
+     * Appends the value to the file of its key. Only the file is locked for appending, the bucket is locked for reading so values can be
+     * appended to the other files of the bucket at the same time. Rewrites, splits and merges of the bucket take its write lock. The
+     * append lock is released before the record is written, so the records of concurrent writers to the same file are written together
+     * (see {@link AppendChannel}).
+     */
+
     @Override
     public void write(long key, T value) {
-        FileBucket bucket = getBucket(key);
-        bucket.lockWrite();
+        FileBucket bucket = lockBucketForAppend(key);
         FileInfo file = bucket.getFile(key);
         try {
-            DataOutputStream dos = getAppendingOutputStream(file);
-            int extraSize = writeValue(dos, key, value);
-            dos.close();
-            file.increaseWriteSize(extraSize);
+            byte[] record = valueToBytes(key, value);
+            AppendChannel appendChannel = getAppendChannel(file);
+            long endOfRecord;
+            file.lockAppend();
+            try {
+                endOfRecord = appendChannel.append(record);
+                file.increaseWriteSize(record.length);
+                bucket.increaseNumberOfWrites(1);
+                bucket.markChanged();
+            } finally {
+                file.unlockAppend();
+            }
+            appendChannel.waitUntilWritten(endOfRecord);
             dataWasWritten();
         } catch (Exception e) {
             throw new RuntimeException("Failed to write value with key " + key + " to file " + toFile(file).getAbsolutePath(), e);
         } finally {
-            bucket.unlockWrite();
+            bucket.unlockRead();
+        }
+    }
+
+    /**
+     * The count is appended to the file without boxing it or allocating a record
+     */
+
+    @Override
+    public void increaseCount(long key, long value) {
+        if (!countsWithoutBoxing()) {
+            super.increaseCount(key, value);
+            return;
+        }
+        FileBucket bucket = lockBucketForAppend(key);
+        FileInfo file = bucket.getFile(key);
+        try {
+            AppendChannel appendChannel = getAppendChannel(file);
+            long endOfRecord;
+            file.lockAppend();
+            try {
+                endOfRecord = appendChannel.append(key, value);
+                file.increaseWriteSize(LONG_SIZE + LONG_SIZE);
+                bucket.increaseNumberOfWrites(1);
+                bucket.markChanged();
+            } finally {
+                file.unlockAppend();
+            }
+            appendChannel.waitUntilWritten(endOfRecord);
+            dataWasWritten();
+        } catch (Exception e) {
+            throw new RuntimeException("Failed to write value with key " + key + " to file " + toFile(file).getAbsolutePath(), e);
+        } finally {
+            bucket.unlockRead();
         }
     }
 
@@ -183,34 +888,56 @@ public class FileDataInterface<T extends Object> extends CoreDataInterface<T> im
                 numRead++;
             }
             long totalSizeWrittenInBatch = 0;
+            List<KeyValue<T>> entriesInOtherBuckets = new ArrayList<>();
             for (FileBucket bucket : entriesToFileBuckets.keySet()) {
                 List<KeyValue<T>> values = entriesToFileBuckets.get(bucket);
-                bucket.lockWrite();
+                validateBucket(bucket);
+                bucket.lockRead();
                 try {
                     MappedLists<FileInfo, KeyValue<T>> entriesToFiles = new MappedLists<>();
                     for (KeyValue<T> value : values) {
-                        FileInfo file = bucket.getFile(value.getKey());
-                        entriesToFiles.get(file).add(value);
+                        if (bucket.containsKey(value.getKey())) {
+                            FileInfo file = bucket.getFile(value.getKey());
+                            entriesToFiles.get(file).add(value);
+                        } else {
+                            //buckets were rebalanced after we looked up this bucket
+                            entriesInOtherBuckets.add(value);
+                        }
                     }
+                    bucket.increaseNumberOfWrites(values.size());
                     for (FileInfo file : entriesToFiles.keySet()) {
                         try {
                             List<KeyValue<T>> valuesForFile = entriesToFiles.get(file);
-                            DataOutputStream dos = getAppendingOutputStream(file);
+                            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                            DataOutputStream dos = new DataOutputStream(bos);
                             for (KeyValue<T> value : valuesForFile) {
-                                int extraSize = writeValue(dos, value.getKey(), value.getValue());
-                                file.increaseWriteSize(extraSize);
-                                totalSizeWrittenInBatch += extraSize;
+                                writeValue(dos, value.getKey(), value.getValue());
+                            }
+                            byte[] records = bos.toByteArray();
+                            AppendChannel appendChannel = getAppendChannel(file);
+                            long endOfRecords;
+                            file.lockAppend();
+                            try {
+                                endOfRecords = appendChannel.append(records);
+                                file.increaseWriteSize(records.length);
+                                bucket.markChanged();
+                            } finally {
+                                file.unlockAppend();
                             }
+                            appendChannel.waitUntilWritten(endOfRecords);
+                            totalSizeWrittenInBatch += records.length;
                             dataWasWritten();
-                            dos.close();
                         } catch (Exception exp) {
                             throw new RuntimeException("Failed to write values to file " + toFile(file).getAbsolutePath(), exp);
                         }
                     }
                 } finally {
-                    bucket.unlockWrite();
+                    bucket.unlockRead();
                 }
             }
+            for (KeyValue<T> entry : entriesInOtherBuckets) {
+                write(entry.getKey(), entry.getValue());
+            }
             if (totalSizeWrittenInBatch > 0) {
                 batchSize = BATCH_SIZE_PRIMITIVE_VALUES * 16 * batchSize / totalSizeWrittenInBatch;
             }
@@ -233,22 +960,16 @@ public class FileDataInterface<T extends Object> extends CoreDataInterface<T> im
                 while (keyIterator.hasNext() && keysInBatch.size() < batchSize) {
                     keysInBatch.add(keyIterator.next());
                 }
-                Collections.sort(keysInBatch);
+                long[] keys = new long[keysInBatch.size()];
+                for (int i = 0; i < keys.length; i++) {
+                    keys[i] = keysInBatch.get(i);
+                }
+                Arrays.sort(keys);
+                List<T> values = readMany(keys);
                 List<KeyValue<T>> valuesInBatch = new ArrayList<>();
-                FileInfo currentFile = null;
-                Map<Long, T> valuesInCurrentFile = null;
-                for (Long key : keysInBatch) {
-                    FileBucket bucket = getBucket(key);
-                    lockForRead(bucket);
-                    FileInfo file = bucket.getFile(key);
-                    if (file != currentFile) {
-                        currentFile = file;
-                        valuesInCurrentFile = readMap(file);
-                    }
-                    bucket.unlockRead();
-                    T value = valuesInCurrentFile.get(key);
-                    if (value != null) {
-                        valuesInBatch.add(new KeyValue<>(key, value));
+                for (int i = 0; i < keys.length; i++) {
+                    if (values.get(i) != null) {
+                        valuesInBatch.add(new KeyValue<>(keys[i], values.get(i)));
                     }
                 }
                 currBatchIterator = valuesInBatch.iterator();
@@ -373,97 +1094,404 @@ public class FileDataInterface<T extends Object> extends CoreDataInterface<T> im
         });
     }
 
+    /**
+     * The records of every file are decoded into a single buffer, the counts are read from this buffer without boxing them
+     */
+
     @Override
-    public long freeMemory() {
-        MutableLong totalBytesReleased = new MutableLong(0);
-        ifNotClosed(() -> {
-            for (FileBucket bucket : fileBuckets) {
-                bucket.lockRead();
-                for (FileInfo fileInfo : bucket.getFiles()) {
-                    long bytesReleased = fileInfo.discardFileContents();
-                    updateSizeOfCachedFileContents(-bytesReleased);
-                    totalBytesReleased.add(bytesReleased);
+    public LongCountCursor countCursor() {
+        if (!countsWithoutBoxing()) {
+            return super.countCursor();
+        }
+        final FileIterator fileIterator = new FileIterator();
+        return new LongCountCursor() {
+
+            private ByteBuffer records = ByteBuffer.allocate(0);
+            private int position;
+            private long key;
+            private long count;
+
+            @Override
+            public boolean next() {
+                while (position >= records.limit()) {
+                    Pair<FileBucket, FileInfo> next = fileIterator.lockCurrentBucketAndGetNextFile();
+                    if (next == null) {
+                        return false;
+                    }
+                    try {
+                        records = readCleanRecords(next.getSecond());
+                        position = records.position();
+                        dataWasRead();
+                    } catch (IOException exp) {
+                        throw new RuntimeException("Unexpected exception while reading values from file " + toFile(next.getSecond()).getAbsolutePath(), exp);
+                    } finally {
+                        next.getFirst().unlockRead();
+                    }
                 }
-                bucket.unlockRead();
+                key = records.getLong(position);
+                count = records.getLong(position + LONG_SIZE);
+                position += LONG_SIZE + LONG_SIZE;
+                return true;
             }
-        });
-        return totalBytesReleased.longValue();
-    }
 
-    @Override
-    public long getMemoryUsage() {
-        return currentSizeOfCachedFileContents;
-    }
+            @Override
+            public long getKey() {
+                return key;
+            }
 
-    @Override
-    public long apprSize() {
-        int numOfFilesToSample = 100;
-        long numOfObjects = 0;
+            @Override
+            public long getCount() {
+                return count;
+            }
+
+            @Override
+            public void close() {
+                //release the records of the current file, next() returns false once the cursor is closed
+                records = ByteBuffer.allocate(0);
+                position = 0;
+                fileIterator.finish();
+            }
+        };
+    }
+
+    /**
+     * Takes a snapshot of all files (see {@link FileSnapshot}) and iterates over the values of the snapshot. All buckets are locked for
+     * reading while the snapshot is taken, which only takes the time to link the files. On file systems without hard links, the files are
+     * copied after the read locks are released, only rewrites of the files that were not copied yet wait for the copy. Writes and
+     * compactions continue while iterating, the files of the snapshot are removed when the iterator is closed. Iterators that are not
+     * closed keep the files of their snapshot on disk until they are garbage collected (see {@link FileSnapshot}). Values that are still
+     * in the append buffers are flushed before the snapshot is taken, values in the write buffers of a cached data interface on top of
+     * this interface are not.
+     */
+
+    @Override
+    public CloseableIterator<KeyValue<T>> snapshotIterator() {
+        FileSnapshot snapshot = createSnapshot();
+        Iterator<FileInfo> files = snapshot.getFiles().iterator();
+        return IterableUtils.iterator(new SimpleIterator<KeyValue<T>>() {
+
+            private Iterator<KeyValue<T>> valuesInFileIt = Collections.emptyIterator();
+
+            @Override
+            public KeyValue<T> next() throws Exception {
+                while (!valuesInFileIt.hasNext()) {
+                    if (!files.hasNext()) {
+                        return null;
+                    }
+                    FileInfo file = files.next();
+                    valuesInFileIt = readAllValues(file, snapshot.readFile(file)).iterator();
+                    dataWasRead();
+                }
+                return valuesInFileIt.next();
+            }
+
+            @Override
+            public void close() throws Exception {
+                snapshot.release();
+            }
+        });
+    }
+
+    private FileSnapshot createSnapshot() {
+        FileSnapshot.releaseUnreachableSnapshots();
+        for (FileBucket bucket : fileBuckets) {
+            validateBucket(bucket); //takes a write lock, so validate before the buckets are locked for reading
+        }
+        if (!hardLinksAreUnsupported) {
+            FileSnapshot snapshot = createSnapshot(false);
+            if (snapshot != null) {
+                return snapshot;
+            }
+            hardLinksAreUnsupported = true;
+            Log.i("The file system of " + getName() + " does not support hard links, will copy the files of snapshots");
+        }
+        return createSnapshot(true);
+    }
+
+    /**
+     * The files are linked while holding the read locks of all buckets. If the file system does not support hard links, the files are
+     * copied after the read locks are released, so writers are not blocked while copying. The rewrite locks of all buckets are then taken
+     * first, so no file is replaced before it is copied, and the buckets are not rebalanced until all files are copied. The rewrite lock
+     * of a bucket is released as soon as its files are copied.
+     *
+     * @return null if a file could not be linked and copyFiles is false
+     */
+
+    private FileSnapshot createSnapshot(boolean copyFiles) {
+        File snapshotDirectory = new File(new File(directory, SNAPSHOTS_DIRECTORY), Long.toString(numberOfSnapshots.incrementAndGet()));
+        FileSnapshot snapshot = new FileSnapshot(snapshotDirectory);
+        List<FileBucket> buckets = copyFiles ? lockRewriteAndReadOfAllBuckets() : readLockAllBuckets();
+        List<List<FileInfo>> filesToCopy = new ArrayList<>();
+        int numberOfCopiedBuckets = 0;
+        try {
+            try {
+                for (FileBucket bucket : buckets) {
+                    List<FileInfo> filesOfBucketToCopy = new ArrayList<>();
+                    lockAppendsOfBucket(bucket);
+                    try {
+                        flushAppendChannels(bucket);
+                        for (FileInfo file : bucket.getFiles()) {
+                            if (!snapshot.linkFile(file, toFile(file))) {
+                                if (!copyFiles) {
+                                    snapshot.release();
+                                    return null;
+                                }
+                                filesOfBucketToCopy.add(file);
+                            }
+                        }
+                    } finally {
+                        unlockAppendsOfBucket(bucket);
+                    }
+                    filesToCopy.add(filesOfBucketToCopy);
+                }
+                if (copyFiles) {
+                    numberOfSnapshotsBeingCopied.incrementAndGet(); //before the read locks are released, see rebalanceBuckets()
+                }
+            } finally {
+                readUnlockAllBuckets(buckets);
+            }
+            if (copyFiles) {
+                try {
+                    for (; numberOfCopiedBuckets < buckets.size(); numberOfCopiedBuckets++) {
+                        for (FileInfo file : filesToCopy.get(numberOfCopiedBuckets)) {
+                            snapshot.copyFile(file, toFile(file));
+                        }
+                        buckets.get(numberOfCopiedBuckets).unlockRewrite();
+                    }
+                } finally {
+                    numberOfSnapshotsBeingCopied.decrementAndGet();
+                }
+            }
+            return snapshot;
+        } catch (Exception exp) {
+            snapshot.release();
+            throw new RuntimeException("Failed to create snapshot of " + getName(), exp);
+        } finally {
+            if (copyFiles) {
+                for (int i = numberOfCopiedBuckets; i < buckets.size(); i++) {
+                    buckets.get(i).unlockRewrite();
+                }
+            }
+        }
+    }
+
+    /**
+     * The stream can be split by bucket, and within a bucket by file, so scans with {@link Stream#parallel()} read several files at the
+     * same time.
+     */
+
+    @Override
+    public Stream<KeyValue<T>> stream() {
+        return StreamSupport.stream(new FileSpliterator(Long.MIN_VALUE, Long.MAX_VALUE, null), false);
+    }
+
+    @Override
+    public Stream<KeyValue<T>> stream(KeyFilter keyFilter) {
+        return StreamSupport.stream(new FileSpliterator(Long.MIN_VALUE, Long.MAX_VALUE, keyFilter), false);
+    }
+
+    @Override
+    public Stream<T> streamValues() {
+        return stream().map(KeyValue::getValue);
+    }
+
+    @Override
+    public Stream<T> streamValues(KeyFilter keyFilter) {
+        return stream(keyFilter).map(KeyValue::getValue);
+    }
+
+    @Override
+    public long freeMemory() {
+        MutableLong totalBytesReleased = new MutableLong(0);
+        ifNotClosed(() -> {
+            //evict the files that were read least recently until half of the cache is freed, the hot files stay cached
+            totalBytesReleased.add(fileContentsCache.evictColdFiles(fileContentsCache.getCurrentSize() / 2));
+            totalBytesReleased.add(dropAppendedValuesIndexes());
+        });
+        return totalBytesReleased.longValue();
+    }
+
+    @Override
+    public long getMemoryUsage() {
+        return fileContentsCache.getCurrentSize() + sizeOfAppendedValuesIndexes.get();
+    }
+
+    /**
+     * Drops the indexes of the values that were appended to dirty files. While memory is not free, dirty files are then rewritten before
+     * they are read (see {@link #canBeReadWithoutRewrite(FileInfo)}).
+     *
+     * @return the number of bytes that were released
+     */
+
+    private long dropAppendedValuesIndexes() {
+        long bytesReleased = 0;
+        for (FileBucket bucket : fileBuckets) {
+            bucket.lockRead();
+            try {
+                for (FileInfo file : bucket.getFiles()) {
+                    synchronized (file) {
+                        AppendedValuesIndex index = file.getAppendedValuesIndex();
+                        if (index != null) {
+                            bytesReleased += index.getMemoryUsage();
+                            setAppendedValuesIndex(file, null);
+                        }
+                    }
+                }
+            } finally {
+                bucket.unlockRead();
+            }
+        }
+        return bytesReleased;
+    }
+
+    public FileContentsCache getFileContentsCache() {
+        return fileContentsCache;
+    }
+
+    List<FileBucket> getFileBuckets() {
+        return fileBuckets;
+    }
+
+    File getDirectory() {
+        return directory;
+    }
+
+    int getNumberOfReconstructedFiles() {
+        return numberOfReconstructedFiles.get();
+    }
+
+    public int getNumberOfBuckets() {
+        return fileBuckets.size();
+    }
+
+    /**
+     * Sums the number of keys of the files that are kept in the meta information. Only for files that were recovered without meta
+     * information, the number of keys is extrapolated from the keys of (at most 100 of) these files.
+     */
+
+    @Override
+    public long apprSize() {
+        int numOfFilesToSample = 100;
+        long numOfKeys = 0;
+        long numOfKeysInSampledFiles = 0;
         long sizeOfSampledFiles = 0;
         int numOfSampledFiles = 0;
-        long sizeOfAllFiles = 0;
+        long sizeOfFilesWithoutNumberOfKeys = 0;
         try {
             FileIterator fileIt = new FileIterator();
             Pair<FileBucket, FileInfo> next = fileIt.lockCurrentBucketAndGetNextFile();
             while (next != null) {
                 FileBucket bucket = next.getFirst();
                 FileInfo file = next.getSecond();
-                long fileSize = file.getReadSize();
-                if (numOfSampledFiles < numOfFilesToSample) {
-                    List<Long> keys = readKeys(file);
-                    numOfObjects += keys.size();
-                    sizeOfSampledFiles += fileSize;
-                    if (fileSize == 0 && !keys.isEmpty()) {
-                        Log.e("Something is wrong with file " + file.getFirstKey());
+                try {
+                    if (file.getNumberOfKeys() >= 0) {
+                        numOfKeys += file.getNumberOfKeys();
+                    } else {
+                        //file was recovered without meta information, estimate its number of keys from the files that were sampled
+                        long fileSize = file.getReadSize();
+                        if (numOfSampledFiles < numOfFilesToSample) {
+                            numOfKeysInSampledFiles += readKeys(file).size();
+                            sizeOfSampledFiles += fileSize;
+                            numOfSampledFiles++;
+                        }
+                        sizeOfFilesWithoutNumberOfKeys += fileSize;
                     }
-                    numOfSampledFiles++;
+                } finally {
+                    bucket.unlockRead();
                 }
-                bucket.unlockRead();
-                sizeOfAllFiles += fileSize;
                 next = fileIt.lockCurrentBucketAndGetNextFile();
             }
-            if (numOfObjects == 0) {
-                return 0;
-            } else {
-                return sizeOfAllFiles * numOfObjects / sizeOfSampledFiles;
+            if (numOfKeysInSampledFiles > 0) {
+                numOfKeys += sizeOfFilesWithoutNumberOfKeys * numOfKeysInSampledFiles / sizeOfSampledFiles;
             }
+            return numOfKeys;
         } catch (IOException exp) {
             throw new RuntimeException(exp);
         }
     }
 
+    /**
+     * The number of keys of every clean file is kept in the meta information, so only files that were recovered without meta information
+     * are read. Like {@link #keyIterator()}, only the keys in the clean part of the files are counted.
+     */
+
+    @Override
+    public long exactSize() {
+        long result = 0;
+        FileIterator fileIt = new FileIterator();
+        Pair<FileBucket, FileInfo> next = fileIt.lockCurrentBucketAndGetNextFile();
+        while (next != null) {
+            FileBucket bucket = next.getFirst();
+            FileInfo file = next.getSecond();
+            try {
+                result += file.getNumberOfKeys() >= 0 ? file.getNumberOfKeys() : readKeys(file).size();
+            } catch (IOException exp) {
+                throw new RuntimeException("Unexpected exception while reading keys from file " + toFile(file).getAbsolutePath(), exp);
+            } finally {
+                bucket.unlockRead();
+            }
+            next = fileIt.lockCurrentBucketAndGetNextFile();
+        }
+        return result;
+    }
+
     @Override
     public void flushImpl() {
+        flushAppendChannels();
         updateShouldBeCleanedInfo();
     }
 
     @Override
     public void optimizeForReading() {
-        rewriteAllFiles(true);
+        rewriteAllFiles();
     }
 
     @Override
     protected void doClose() {
         closeWasRequested = true;
+        compactionScheduler.cancel(compaction);
+        if (ownsCompactionScheduler) {
+            compactionScheduler.close();
+        }
+        try {
+            appendChannelPool.closeAll();
+        } catch (IOException exp) {
+            throw new RuntimeException("Failed to close append channels of " + getName(), exp);
+        }
         updateShouldBeCleanedInfo();
         if (metaFileOutOfSync) {
             writeMetaFile();
         }
+        if (writeAheadLog != null) {
+            writeAheadLog.close();
+        }
+        try {
+            manifest.close();
+        } catch (IOException exp) {
+            throw new RuntimeException("Failed to close manifest of " + getName(), exp);
+        }
+        fileContentsCache.clear();
         fileBuckets = null;
     }
 
     @Override
     public void dropAllData() {
-        writeLockAllBuckets();
-        for (FileBucket bucket : fileBuckets) {
+        List<FileBucket> oldBuckets = writeLockAllBuckets();
+        for (FileBucket bucket : oldBuckets) {
             for (FileInfo file : bucket.getFiles()) {
                 deleteFile(file);
             }
             bucket.getFiles().clear();
             bucket.setShouldBeCleanedBeforeRead(false);
+            bucket.setRemoved(true);
+        }
+        List<FileBucket> newBuckets = createEmptyFileBuckets();
+        makeSureAllFileBucketsHaveAtLeastOneFile(newBuckets);
+        if (writeAheadLog != null) {
+            writeAheadLog.logBucketsChanged(newBuckets);
         }
-        makeSureAllFileBucketsHaveAtLeastOneFile();
-        writeUnlockAllBuckets();
+        fileBuckets = newBuckets;
+        writeUnlockAllBuckets(oldBuckets);
         writeMetaFile();
     }
 
@@ -475,101 +1503,538 @@ public class FileDataInterface<T extends Object> extends CoreDataInterface<T> im
     private void updateShouldBeCleanedInfo() {
         for (FileBucket fileBucket : fileBuckets) {
             fileBucket.lockWrite();
-            if (!allFilesClean(fileBucket)) {
+            if (!allFilesClean(fileBucket) && !fileBucket.shouldBeCleanedBeforeRead()) {
                 fileBucket.setShouldBeCleanedBeforeRead(true);
+                fileBucket.markChanged();
             }
             fileBucket.unlockWrite();
         }
     }
 
-    private synchronized void rewriteAllFiles(boolean forceClean) {
-        //Don't remove the next line
-        int numOfFilesRewritten = fileBuckets.parallelStream().mapToInt(bucket -> rewriteBucket(bucket, forceClean)).sum();
+    private synchronized void rewriteAllFiles() {
+        compactionScheduler.compactNow(compaction, fileBuckets);
         if (metaFileOutOfSync) {
             writeMetaFile();
         }
-        if (DBUtils.DEBUG && numOfFilesRewritten > 0) {
-            Log.i("Rewritten " + numOfFilesRewritten + " files for " + getName());
+    }
+
+    /**
+     * Schedules a background compaction of all buckets with dirty files. Buckets that are read often are compacted first, since reads
+     * only see the values in the clean part of a file. The other buckets are compacted in order of the fraction of their data that is
+     * dirty.
+     */
+
+    private void scheduleCompactions() {
+        for (FileBucket bucket : fileBuckets) {
+            if (!bucket.isValidated()) {
+                continue; //bucket was not used since the data interface was opened
+            }
+            if (!bucket.tryLockRead()) {
+                continue; //bucket is being written or rewritten, we'll be back soon
+            }
+            long sizeOfDirtyData = 0;
+            long sizeOfData = 0;
+            try {
+                for (FileInfo file : bucket.getFiles()) {
+                    sizeOfDirtyData += file.getWriteSize() - file.getReadSize();
+                    sizeOfData += file.getWriteSize();
+                }
+                if (allFilesClean(bucket)) {
+                    continue;
+                }
+            } finally {
+                bucket.unlockRead();
+            }
+            double dirtyRatio = sizeOfData == 0 ? 1.0 : sizeOfDirtyData / (double) sizeOfData;
+            boolean readHot = bucket.getNumberOfReads() >= MIN_READS_FOR_HOT_BUCKET;
+            compactionScheduler.schedule(compaction, bucket, (readHot ? 1.0 : 0.0) + dirtyRatio);
+        }
+    }
+
+    private boolean checkpointIsDue() {
+        if (writeAheadLog == null) {
+            return true; //the meta file is the only way to recover the data structures
+        }
+        return writeAheadLog.getSize() > MAX_SIZE_WRITE_AHEAD_LOG || System.currentTimeMillis() - timeOfLastCheckpoint > CHECKPOINT_INTERVAL;
+    }
+
+    private synchronized void rebalanceBucketsIfDue() {
+        if (System.currentTimeMillis() - timeOfLastRebalance >= REBALANCE_INTERVAL) {
+            rebalanceBuckets();
+        }
+    }
+
+    /**
+     * Splits buckets that receive a large share of the writes or that became too large, and merges adjacent buckets that are small and
+     * receive (almost) no writes. This keeps the writes spread over the locks of many buckets when keys are not uniformly distributed
+     * (e.g. sequential ids instead of hashed keys). Buckets are always split and merged at file boundaries. The writes are counted from
+     * the previous rebalance, which happens every {@link #REBALANCE_INTERVAL} milliseconds.
+     */
+
+    public synchronized void rebalanceBuckets() {
+        timeOfLastRebalance = System.currentTimeMillis();
+        List<FileBucket> currentBuckets = writeLockAllBuckets();
+        try {
+            if (numberOfSnapshotsBeingCopied.get() > 0) {
+                return; //the files of a snapshot are copied, these should stay in the buckets whose rewrite locks are held
+            }
+            long totalNumberOfWrites = 0;
+            for (FileBucket bucket : currentBuckets) {
+                totalNumberOfWrites += bucket.getNumberOfWrites();
+            }
+            long averageNumberOfWrites = totalNumberOfWrites / currentBuckets.size();
+            List<FileBucket> newBuckets = new ArrayList<>(currentBuckets.size());
+            int numberOfBuckets = currentBuckets.size();
+            boolean previousBucketWasSplit = false;
+            for (FileBucket bucket : currentBuckets) {
+                FileBucket previousBucket = newBuckets.isEmpty() ? null : newBuckets.get(newBuckets.size() - 1);
+                if (numberOfBuckets < MAX_NUMBER_OF_BUCKETS && shouldSplit(bucket, averageNumberOfWrites)) {
+                    newBuckets.add(bucket);
+                    newBuckets.add(splitBucket(bucket));
+                    numberOfBuckets++;
+                    previousBucketWasSplit = true;
+                } else if (numberOfBuckets > MIN_NUMBER_OF_BUCKETS && previousBucket != null && !previousBucketWasSplit && canMerge(previousBucket, bucket, averageNumberOfWrites)) {
+                    mergeBuckets(previousBucket, bucket);
+                    numberOfBuckets--;
+                } else {
+                    newBuckets.add(bucket);
+                    previousBucketWasSplit = false;
+                }
+            }
+            for (FileBucket bucket : newBuckets) {
+                bucket.resetNumberOfWrites();
+                bucket.resetNumberOfReads();
+            }
+            if (!newBuckets.equals(currentBuckets)) {
+                if (DBUtils.DEBUG) {
+                    Log.i("Rebalanced buckets of " + getName() + ", went from " + currentBuckets.size() + " to " + newBuckets.size() + " buckets");
+                }
+                if (writeAheadLog != null) {
+                    writeAheadLog.logBucketsChanged(newBuckets);
+                }
+                fileBuckets = newBuckets;
+                metaFileOutOfSync = true;
+            }
+        } finally {
+            writeUnlockAllBuckets(currentBuckets);
+        }
+    }
+
+    private boolean shouldSplit(FileBucket bucket, long averageNumberOfWrites) {
+        if (!bucket.isValidated() || bucket.getFiles().size() < 2) {
+            return false;
+        }
+        boolean receivesManyWrites = bucket.getNumberOfWrites() >= MIN_WRITES_FOR_SPLIT && bucket.getNumberOfWrites() > 4 * averageNumberOfWrites;
+        return receivesManyWrites || getSize(bucket) > MAX_BUCKET_SIZE;
+    }
+
+    private boolean canMerge(FileBucket first, FileBucket second, long averageNumberOfWrites) {
+        if (!first.isValidated() || !second.isValidated()) {
+            return false; //buckets that were not used since opening are left as they are
+        }
+        boolean fewWrites = (first.getNumberOfWrites() + second.getNumberOfWrites()) * 4 <= averageNumberOfWrites;
+        return fewWrites && getSize(first) + getSize(second) < MAX_BUCKET_SIZE / 2;
+    }
+
+    /**
+     * The files of the second half of the bucket are moved to a new bucket, which is returned.
+     */
+
+    private FileBucket splitBucket(FileBucket bucket) {
+        List<FileInfo> files = bucket.getFiles();
+        int splitInd = files.size() / 2;
+        long firstKeyOfNewBucket = files.get(splitInd).getFirstKey();
+        FileBucket newBucket = new FileBucket(firstKeyOfNewBucket, bucket.getLastKey());
+        newBucket.getFiles().addAll(files.subList(splitInd, files.size()));
+        newBucket.setShouldBeCleanedBeforeRead(bucket.shouldBeCleanedBeforeRead());
+        files.subList(splitInd, files.size()).clear();
+        bucket.setLastKey(firstKeyOfNewBucket - 1);
+        bucket.markChanged();
+        return newBucket;
+    }
+
+    /**
+     * All files of the second bucket are moved to the first bucket. The second bucket is marked as removed.
+     */
+
+    private void mergeBuckets(FileBucket first, FileBucket second) {
+        first.getFiles().addAll(second.getFiles());
+        first.setLastKey(second.getLastKey());
+        first.setShouldBeCleanedBeforeRead(first.shouldBeCleanedBeforeRead() || second.shouldBeCleanedBeforeRead());
+        first.markChanged();
+        second.setFiles(new ArrayList<>());
+        second.setRemoved(true);
+    }
+
+    private long getSize(FileBucket bucket) {
+        long size = 0;
+        for (FileInfo file : bucket.getFiles()) {
+            size += file.getWriteSize();
         }
+        return size;
     }
 
-    private int rewriteBucket(FileBucket bucket, boolean forceClean) {
+    /**
+     * Rewrites the dirty files of this bucket. The rewritten files are written while holding the read lock of the bucket, so the bucket
+     * can still be read and values can still be appended in the meantime. The write lock is only taken to swap in the rewritten files,
+     * see {@link #replaceByRewrittenFile(FileBucket, RewrittenFile)}. A forced rewrite leaves all files clean: the files that received
+     * values while they were rewritten are rewritten a second time while holding the write lock.
+     *
+     * @param ioBudget charged with the bytes that are read and written to rewrite the files of this bucket
+     */
+
+    void rewriteBucket(FileBucket bucket, boolean forceClean, CompactionScheduler.IOBudget ioBudget) {
+        validateBucket(bucket);
         if (forceClean) {
-            bucket.lockWrite();
+            bucket.lockRewrite();
         } else {
-            boolean success = bucket.tryLockWrite();
+            boolean success = bucket.tryLockRewrite();
             if (!success) {
-                return 0; //will not clean bucket now but continue with other buckets, we'll be back soon.
+                return; //will not clean bucket now but continue with other buckets, we'll be back soon.
             }
         }
         try {
-            int numOfRewrittenFiles = 0;
-            for (int fileInd = 0; fileInd < bucket.getFiles().size() && (!closeWasRequested || forceClean); fileInd++) {
-                FileInfo file = bucket.getFiles().get(fileInd);
-                boolean needsRewrite;
-                long targetSize;
-                if (inReadPhase() || forceClean) {
-                    //read phrase
-                    needsRewrite = !file.isClean();
-                    targetSize = MAX_FILE_SIZE_READ;
-                } else {
-                    //write phase
-                    double probOfRewriteForSize = file.getWriteSize() * 4.0 / MAX_FILE_SIZE_WRITE - 3.0;
-                    needsRewrite = !file.isClean() && Math.random() < probOfRewriteForSize;
-                    targetSize = MAX_FILE_SIZE_READ;
-                }
-                if (needsRewrite) {
-                    //                    Log.i("Will rewrite file " + file.getFirstKey() + " " + getName() + " clean=" + file.isClean() + " force=" + forceClean + " readSize=" + file.getReadSize() + " writeSize=" + file.getWriteSize() + " targetSize=" + targetSize);
-                    List<KeyValue<T>> values = readAllValues(file);
-                    int filesMergedWithThisFile = inWritePhase() ? 0 : mergeFileIfTooSmall(bucket.getFiles(), fileInd, file.getWriteSize(), targetSize, values);
-                    DataOutputStream dos = getOutputStreamToTempFile(file);
-                    List<Pair<Long, Integer>> fileLocations = new ArrayList<>();
-                    int currentSizeOfFile = 0;
-                    for (KeyValue<T> entry : values) {
-                        long key = entry.getKey();
-                        T value = entry.getValue();
-                        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-                        DataOutputStream tmpOutputStream = new DataOutputStream(bos);
-                        writeValue(tmpOutputStream, key, value);
-                        byte[] dataToWrite = bos.toByteArray();
-                        if (currentSizeOfFile > 0 && currentSizeOfFile + dataToWrite.length > targetSize) {
-                            //Create new file
-                            if (filesMergedWithThisFile > 0) {
-                                throw new RuntimeException("Something went wrong! Merged file and then created new file?");
-                            }
-                            dos.close();
-                            swapTempForReal(file);
-                            file.fileWasRewritten(sample(fileLocations, 100), currentSizeOfFile, currentSizeOfFile);
-                            fileLocations = new ArrayList<>();
-                            file = new FileInfo(key, 0, 0);
-                            currentSizeOfFile = 0;
-                            bucket.getFiles().add(fileInd + 1, file);
-                            fileInd++;
-                            dos = getOutputStreamToTempFile(file);
-                        }
-                        fileLocations.add(new Pair<>(key, currentSizeOfFile));
-                        dos.write(dataToWrite);
-                        currentSizeOfFile += dataToWrite.length;
+            rewriteFiles(bucket, forceClean, ioBudget);
+            if (forceClean) {
+                bucket.lockWrite();
+                try {
+                    if (!allFilesClean(bucket)) {
+                        rewriteFiles(bucket, true, ioBudget);
                     }
-                    swapTempForReal(file);
-                    file.fileWasRewritten(sample(fileLocations, 100), currentSizeOfFile, currentSizeOfFile);
-                    dos.close();
-                    numOfRewrittenFiles++;
+                    if (allFilesClean(bucket) && bucket.shouldBeCleanedBeforeRead()) {
+                        bucket.setShouldBeCleanedBeforeRead(false);
+                        bucket.markChanged();
+                    }
+                } finally {
+                    bucket.unlockWrite();
                 }
             }
-            boolean allFilesClean = allFilesClean(bucket);
-            if (allFilesClean) {
-                bucket.setShouldBeCleanedBeforeRead(false);
-            }
-            if (numOfRewrittenFiles > 0) {
-                metaFileOutOfSync = true;
-            }
-            return numOfRewrittenFiles;
         } catch (Exception exp) {
             Log.e("Unexpected exception while rewriting files", exp);
             throw new RuntimeException("Unexpected exception while rewriting files", exp);
         } finally {
-            bucket.unlockWrite();
+            bucket.unlockRewrite();
+        }
+    }
+
+    /**
+     * Should be called while holding the rewrite lock of the bucket. Each dirty file is written while holding the read lock, and swapped
+     * in while holding the write lock.
+     */
+
+    private void rewriteFiles(FileBucket bucket, boolean forceClean, CompactionScheduler.IOBudget ioBudget) throws IOException {
+        List<FileInfo> files;
+        int targetSizeOfBlock;
+        bucket.lockRead();
+        try {
+            files = new ArrayList<>(bucket.getFiles());
+            targetSizeOfBlock = getTargetSizeOfBlock(bucket);
+        } finally {
+            bucket.unlockRead();
+        }
+        for (int fileInd = 0; fileInd < files.size() && (!closeWasRequested || forceClean); fileInd++) {
+            FileInfo file = files.get(fileInd);
+            RewrittenFile rewrittenFile = null;
+            bucket.lockRead();
+            try {
+                if (needsRewrite(bucket, file, forceClean)) {
+                    //                    Log.i("Will rewrite file " + file.getFirstKey() + " " + getName() + " clean=" + file.isClean() + " force=" + forceClean + " readSize=" + file.getReadSize() + " writeSize=" + file.getWriteSize());
+                    rewrittenFile = writeRewrittenFile(bucket, file, targetSizeOfBlock, ioBudget);
+                }
+            } finally {
+                bucket.unlockRead();
+            }
+            if (rewrittenFile != null) {
+                bucket.lockWrite();
+                try {
+                    replaceByRewrittenFile(bucket, rewrittenFile);
+                } finally {
+                    bucket.unlockWrite();
+                }
+            }
+        }
+    }
+
+    /**
+     * Should be called while holding a (read or write) lock on the bucket
+     */
+
+    private boolean needsRewrite(FileBucket bucket, FileInfo file, boolean forceClean) {
+        if (bucket.isRemoved() || !bucket.getFiles().contains(file) || file.isClean()) {
+            return false; //the file was merged with the previous file, the buckets were rebalanced or the file is clean already
+        }
+        if (inReadPhase() || forceClean) {
+            //read phrase
+            return true;
+        } else {
+            //write phase
+            double probOfRewriteForSize = file.getWriteSize() * 4.0 / MAX_FILE_SIZE_WRITE - 3.0;
+            return Math.random() < probOfRewriteForSize;
+        }
+    }
+
+    /**
+     * Writes the values of this file (and of the next files of the bucket if they are small enough to merge them) to temporary clean
+     * files. Should be called while holding the read lock on the bucket, values can be appended to the files concurrently. Only the
+     * values that were appended before the write sizes were read are rewritten. All files are read and closed before this method
+     * returns, they are only replaced afterwards (see {@link #replaceByRewrittenFile(FileBucket, RewrittenFile)}). Every chunk of I/O
+     * is charged to the I/O budget.
+     */
+
+    private RewrittenFile writeRewrittenFile(FileBucket bucket, FileInfo file, int targetSizeOfBlock, CompactionScheduler.IOBudget ioBudget) throws IOException {
+        long targetSize = MAX_FILE_SIZE_READ;
+        RewrittenFile rewrittenFile = new RewrittenFile(bucket, ioBudget);
+        try {
+            if (file.getWriteSize() > targetSize) {
+                //combine the values in runs of bounded size. A file that is larger than the target size is never merged with the next file
+                int writeSize = file.getWriteSize();
+                rewrittenFile.addSource(file, writeSize);
+                try (SortedRunMerger<T> values = createSortedRunMerger(file, writeSize, rewrittenFile::useIO)) {
+                    writeSortedValues(rewrittenFile, values, targetSize, targetSizeOfBlock);
+                }
+            } else {
+                byte[] fileContents = readCompleteFile(file, rewrittenFile::useIO);
+                rewrittenFile.addSource(file, fileContents.length);
+                List<KeyValue<T>> values = readAllValues(file, fileContents);
+                if (!inWritePhase()) {
+                    addFilesToMerge(bucket, rewrittenFile, targetSize, values);
+                }
+                writeSortedValues(rewrittenFile, values.iterator(), targetSize, targetSizeOfBlock);
+            }
+            return rewrittenFile;
+        } catch (IOException | RuntimeException exp) {
+            deleteTempFiles(rewrittenFile);
+            throw exp;
+        }
+    }
+
+    /**
+     * Writes the sorted values to temporary clean files. When a file becomes larger than the target size, the remaining values are
+     * written to a new file. All records are serialized in the same buffer. The written bytes are charged to the I/O budget in chunks.
+     */
+
+    private void writeSortedValues(RewrittenFile rewrittenFile, Iterator<KeyValue<T>> values, long targetSize, int targetSizeOfBlock) throws IOException {
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        DataOutputStream recordStream = new DataOutputStream(record);
+        CleanFileWriter writer = rewrittenFile.addTarget(rewrittenFile.sources.get(0).getFirstKey(), createCleanFileWriter(rewrittenFile.sources.get(0).getFirstKey(), targetSizeOfBlock));
+        int chargedSize = 0;
+        while (values.hasNext()) {
+            KeyValue<T> entry = values.next();
+            record.reset();
+            writeValue(recordStream, entry.getKey(), entry.getValue());
+            //the size of the writer includes the header of the file, only start a new file when the current one has values
+            if (writer.getNumberOfValues() > 0 && writer.getSize() + record.size() > targetSize) {
+                //Create new file
+                if (rewrittenFile.sources.size() > 1) {
+                    throw new RuntimeException("Something went wrong! Merged file and then created new file?");
+                }
+                writer.close();
+                rewrittenFile.useIO(writer.getSize() - chargedSize);
+                chargedSize = 0;
+                writer = rewrittenFile.addTarget(entry.getKey(), createCleanFileWriter(entry.getKey(), targetSizeOfBlock));
+            }
+            writer.write(entry.getKey(), record);
+            if (writer.getSize() - chargedSize >= CompactionScheduler.IOBudget.CHUNK_SIZE) {
+                rewrittenFile.useIO(writer.getSize() - chargedSize);
+                chargedSize = writer.getSize();
+            }
+        }
+        writer.close();
+        rewrittenFile.useIO(writer.getSize() - chargedSize);
+    }
+
+    private CleanFileWriter createCleanFileWriter(long firstKey, int targetSizeOfBlock) throws IOException {
+        return new CleanFileWriter(getOutputStreamToTempFile(firstKey), cleanFileCodec, options.bloomFilterFpp, targetSizeOfBlock);
+    }
+
+    /**
+     * Buckets that are read often get a denser index, so a read scans fewer records. Buckets that are not read get a sparser index. All
+     * blocks become larger when the indexes use more memory than allowed.
+     */
+
+    private int getTargetSizeOfBlock(FileBucket bucket) {
+        long targetSizeOfBlock = options.sizeOfBlocks;
+        long numberOfReads = bucket.getNumberOfReads();
+        if (numberOfReads >= MIN_READS_FOR_HOT_BUCKET) {
+            targetSizeOfBlock /= 4;
+        } else if (numberOfReads == 0) {
+            targetSizeOfBlock *= 4;
+        }
+        if (sizeOfIndexes > maxSizeOfIndexes) {
+            targetSizeOfBlock *= 1 + sizeOfIndexes / Math.max(1, maxSizeOfIndexes);
+        }
+        return (int) Math.max(MIN_SIZE_OF_BLOCK, Math.min(MAX_SIZE_OF_BLOCK, targetSizeOfBlock));
+    }
+
+    /**
+     * Computes the memory used by the sparse indexes of all files. When this is more than allowed, the indexes of the buckets that are
+     * read least are thinned until the indexes fit in the budget. Only indexes of files with the RAW encoding can be thinned without rewriting the file, the indexes of other
+     * files become sparser when they are rewritten (see {@link #getTargetSizeOfBlock(FileBucket)}).
+     */
+
+    void enforceIndexBudget() {
+        List<FileBucket> buckets = fileBuckets;
+        long size = 0;
+        for (FileBucket bucket : buckets) {
+            bucket.lockRead();
+            try {
+                for (FileInfo file : bucket.getFiles()) {
+                    size += getSizeOfIndex(file);
+                }
+            } finally {
+                bucket.unlockRead();
+            }
+        }
+        if (size > maxSizeOfIndexes) {
+            List<FileBucket> leastReadFirst = new ArrayList<>(buckets);
+            leastReadFirst.sort(Comparator.comparingLong(FileBucket::getNumberOfReads));
+            for (FileBucket bucket : leastReadFirst) {
+                if (size <= maxSizeOfIndexes) {
+                    break;
+                }
+                if (!bucket.tryLockWrite()) {
+                    continue; //bucket is being read or written, we'll be back soon
+                }
+                try {
+                    for (FileInfo file : bucket.getFiles()) {
+                        while (size > maxSizeOfIndexes && file.getEncoding() == BlockCodec.RAW && file.getFileLocationsKeys() != null && file.getFileLocationsKeys().length > 1) {
+                            long sizeBefore = getSizeOfIndex(file);
+                            file.thinIndex();
+                            size -= sizeBefore - getSizeOfIndex(file);
+                            bucket.markChanged();
+                            metaFileOutOfSync = true;
+                        }
+                    }
+                } finally {
+                    bucket.unlockWrite();
+                }
+            }
+        }
+        sizeOfIndexes = size;
+    }
+
+    private long getSizeOfIndex(FileInfo file) {
+        long[] fileLocationsKeys = file.getFileLocationsKeys();
+        return fileLocationsKeys == null ? 0 : fileLocationsKeys.length * (long) (LONG_SIZE + INT_SIZE);
+    }
+
+    private SortedRunMerger<T> createSortedRunMerger(FileInfo file, int writeSize, LongConsumer ioListener) throws IOException {
+        AppendChannel appendChannel = file.getAppendChannel();
+        if (appendChannel != null) {
+            appendChannel.flush(); //the appended values should be in the file before we read it
+        }
+        String runFilePrefix = toTempFile(file).getAbsolutePath() + ".run";
+        return new SortedRunMerger<>(toFile(file), file, writeSize, getBlockCodec(file), sizeOfValues, getObjectClass(), getCombinator(), MAX_SIZE_OF_SORT_RUN, runFilePrefix, ioListener);
+    }
+
+    /**
+     * Replaces the files that were rewritten by the temporary clean files. Values that were appended to the rewritten files in the
+     * meantime are appended to the clean files, so these can be dirty again. Should be called while holding the write lock of the bucket.
+     * If the buckets were rebalanced or all data was dropped in the meantime, the rewritten files are discarded.
+     */
+
+    private void replaceByRewrittenFile(FileBucket bucket, RewrittenFile rewrittenFile) throws IOException {
+        if (!rewrittenFileMatchesBucket(bucket, rewrittenFile)) {
+            deleteTempFiles(rewrittenFile);
+            return;
+        }
+        byte[][] appendedRecords = getRecordsAppendedDuringRewrite(rewrittenFile);
+        FileInfo firstSource = rewrittenFile.sources.get(0);
+        int fileInd = bucket.getFiles().indexOf(firstSource);
+        for (int i = 0; i < rewrittenFile.targetKeys.size(); i++) {
+            FileInfo file = i == 0 ? firstSource : new FileInfo(rewrittenFile.targetKeys.get(i), 0, 0);
+            CleanFileWriter writer = rewrittenFile.writers.get(i);
+            if (appendedRecords[i].length > 0) {
+                try (FileOutputStream fos = new FileOutputStream(toTempFile(file), true)) {
+                    fos.write(appendedRecords[i]);
+                }
+            }
+            if (writeAheadLog != null) {
+                writeAheadLog.syncFile(toTempFile(file));
+                writeAheadLog.logRewriteStarted(file.getFirstKey());
+            }
+            swapTempForReal(file);
+            file.fileWasRewritten(writer.getFileLocations(), writer.getSize(), writer.getSize() + appendedRecords[i].length, cleanFileCodec.getEncoding(), writer.getNumberOfValues());
+            file.setBloomFilter(writer.createBloomFilter());
+            if (writeAheadLog != null) {
+                writeAheadLog.logFileRewritten(file);
+            }
+            if (i > 0) {
+                bucket.getFiles().add(fileInd + i, file);
+            }
+        }
+        for (FileInfo mergedFile : rewrittenFile.sources.subList(1, rewrittenFile.sources.size())) {
+            bucket.getFiles().remove(mergedFile);
+            deleteFile(mergedFile);
+        }
+        if (allFilesClean(bucket) && bucket.shouldBeCleanedBeforeRead()) {
+            bucket.setShouldBeCleanedBeforeRead(false);
+        }
+        metaFileOutOfSync = true;
+        bucket.markChanged();
+    }
+
+    private boolean rewrittenFileMatchesBucket(FileBucket bucket, RewrittenFile rewrittenFile) {
+        if (bucket.isRemoved()) {
+            return false;
+        }
+        for (int i = 0; i < rewrittenFile.sources.size(); i++) {
+            FileInfo source = rewrittenFile.sources.get(i);
+            boolean sameFile = source.getReadSize() == rewrittenFile.readSizes.get(i) && source.getWriteSize() >= rewrittenFile.rewrittenSizes.get(i);
+            if (!sameFile || !bucket.getFiles().contains(source)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return for every clean file of the rewritten file, the records that were appended to the source files after they were read
+     */
+
+    private byte[][] getRecordsAppendedDuringRewrite(RewrittenFile rewrittenFile) throws IOException {
+        ByteArrayOutputStream[] records = new ByteArrayOutputStream[rewrittenFile.targetKeys.size()];
+        for (int i = 0; i < records.length; i++) {
+            records[i] = new ByteArrayOutputStream();
+        }
+        for (int i = 0; i < rewrittenFile.sources.size(); i++) {
+            FileInfo source = rewrittenFile.sources.get(i);
+            int start = rewrittenFile.rewrittenSizes.get(i);
+            if (source.getWriteSize() == start) {
+                continue;
+            }
+            AppendChannel appendChannel = source.getAppendChannel();
+            if (appendChannel != null) {
+                appendChannel.flush();
+            }
+            byte[] appended = new byte[source.getWriteSize() - start];
+            try (RandomAccessFile raf = new RandomAccessFile(toFile(source), "r")) {
+                raf.seek(start);
+                raf.readFully(appended);
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(appended);
+            int position = 0;
+            while (position < appended.length) {
+                long key = buffer.getLong(position);
+                int sizeOfRecord = LONG_SIZE + skipValue(buffer, position + LONG_SIZE);
+                int targetInd = Collections.binarySearch(rewrittenFile.targetKeys, key);
+                if (targetInd < 0) {
+                    targetInd = -(targetInd + 2);
+                }
+                records[Math.max(0, targetInd)].write(appended, position, sizeOfRecord);
+                position += sizeOfRecord;
+            }
+        }
+        byte[][] result = new byte[records.length][];
+        for (int i = 0; i < records.length; i++) {
+            result[i] = records[i].toByteArray();
+        }
+        return result;
+    }
+
+    private void deleteTempFiles(RewrittenFile rewrittenFile) {
+        for (long targetKey : rewrittenFile.targetKeys) {
+            FileUtils.deleteQuietly(toTempFile(targetKey));
         }
     }
 
@@ -582,6 +2047,10 @@ public class FileDataInterface<T extends Object> extends CoreDataInterface<T> im
     }
 
     private void deleteFile(FileInfo file) {
+        if (writeAheadLog != null) {
+            writeAheadLog.logFileDeleted(file.getFirstKey());
+        }
+        discardFileContents(file);
         boolean success = toFile(file).delete();
         if (!success) {
             throw new RuntimeException("Failed to delete file " + toFile(file).getAbsolutePath());
@@ -594,7 +2063,11 @@ public class FileDataInterface<T extends Object> extends CoreDataInterface<T> im
     }
 
     private void dataWasRead() {
-        timeOfLastRead = System.currentTimeMillis();
+        long now = System.currentTimeMillis();
+        if (timeOfLastRead != now) {
+            //don't write the field if it did not change, so concurrent readers don't keep invalidating each other's cache line
+            timeOfLastRead = now;
+        }
     }
 
     private boolean inReadPhase() {
@@ -605,63 +2078,229 @@ public class FileDataInterface<T extends Object> extends CoreDataInterface<T> im
         return timeOfLastWrite > timeOfLastRead && System.currentTimeMillis() - timeOfLastRead > 10 * 1000;
     }
 
-    private void updateSizeOfCachedFileContents(long byteDiff) {
-        synchronized (sizeOfCachedFileContentsLock) {
-            currentSizeOfCachedFileContents += byteDiff;
+    /**
+     * @return the buckets that were locked. These are the current buckets, they can only be replaced by a thread that holds all locks.
+     */
+
+    private List<FileBucket> writeLockAllBuckets() {
+        while (true) {
+            List<FileBucket> buckets = fileBuckets;
+            for (FileBucket fileBucket : buckets) {
+                fileBucket.lockWrite();
+            }
+            if (buckets == fileBuckets) {
+                return buckets;
+            }
+            //buckets were rebalanced while we were acquiring the locks
+            writeUnlockAllBuckets(buckets);
         }
     }
 
-    private void writeLockAllBuckets() {
-        for (FileBucket fileBucket : fileBuckets) {
-            fileBucket.lockWrite();
+    private void writeUnlockAllBuckets(List<FileBucket> buckets) {
+        for (FileBucket fileBucket : buckets) {
+            fileBucket.unlockWrite();
         }
     }
 
-    private void writeUnlockAllBuckets() {
-        for (FileBucket fileBucket : fileBuckets) {
-            fileBucket.unlockWrite();
+    /**
+     * @return the buckets that were locked. These are the current buckets, they can only be replaced by a thread that holds all locks.
+     */
+
+    private List<FileBucket> readLockAllBuckets() {
+        while (true) {
+            List<FileBucket> buckets = fileBuckets;
+            for (FileBucket fileBucket : buckets) {
+                fileBucket.lockRead();
+            }
+            if (buckets == fileBuckets) {
+                return buckets;
+            }
+            //buckets were rebalanced while we were acquiring the locks
+            readUnlockAllBuckets(buckets);
         }
     }
 
-    private void readLockAllBuckets() {
-        for (FileBucket fileBucket : fileBuckets) {
-            fileBucket.lockRead();
+    /**
+     * Like {@link #readLockAllBuckets()}, but the rewrite lock of every bucket is taken before its read lock
+     */
+
+    private List<FileBucket> lockRewriteAndReadOfAllBuckets() {
+        while (true) {
+            List<FileBucket> buckets = fileBuckets;
+            for (FileBucket fileBucket : buckets) {
+                fileBucket.lockRewrite();
+            }
+            for (FileBucket fileBucket : buckets) {
+                fileBucket.lockRead();
+            }
+            if (buckets == fileBuckets) {
+                return buckets;
+            }
+            //buckets were rebalanced while we were acquiring the locks
+            readUnlockAllBuckets(buckets);
+            for (FileBucket fileBucket : buckets) {
+                fileBucket.unlockRewrite();
+            }
         }
     }
 
-    private void readUnlockAllBuckets() {
-        for (FileBucket fileBucket : fileBuckets) {
+    private void readUnlockAllBuckets(List<FileBucket> buckets) {
+        for (FileBucket fileBucket : buckets) {
             fileBucket.unlockRead();
         }
     }
 
+    private FileBucket lockBucketForRead(long key) {
+        while (true) {
+            FileBucket bucket = getBucket(key);
+            lockForRead(bucket);
+            if (bucket.containsKey(key)) {
+                bucket.increaseNumberOfReads();
+                return bucket;
+            }
+            //buckets were rebalanced while we were waiting for the lock
+            bucket.unlockRead();
+        }
+    }
+
+    /**
+     * Like {@link #lockBucketForRead(long)}, but the bucket is only rewritten first if the file of this key can not be read by
+     * {@link #read(long)} as it is. Rewriting the other dirty files of the bucket is left to the compaction scheduler.
+     */
+
+    private FileBucket lockBucketForPointRead(long key) {
+        while (true) {
+            FileBucket bucket = getBucket(key);
+            validateBucket(bucket);
+            bucket.lockRead();
+            if (!bucket.containsKey(key)) {
+                //buckets were rebalanced while we were waiting for the lock
+                bucket.unlockRead();
+                continue;
+            }
+            if (canBeReadWithoutRewrite(bucket.getFile(key))) {
+                bucket.increaseNumberOfReads();
+                return bucket;
+            }
+            bucket.unlockRead();
+            rewriteBucket(bucket, true, CompactionScheduler.IOBudget.UNLIMITED);
+        }
+    }
+
+    private boolean canBeReadWithoutRewrite(FileInfo file) {
+        if (file.isClean()) {
+            return true;
+        }
+        if (file.getFileLocationsKeys() == null) {
+            return false; //file was recovered without meta information and has no index yet
+        }
+        AppendedValuesIndex index = file.getAppendedValuesIndex();
+        boolean indexExists = index != null && index.getStartPosition() == file.getReadSize();
+        return file.getWriteSize() - file.getReadSize() <= MAX_SIZE_OF_INDEXED_APPENDED_VALUES && (indexExists || memoryManager.getMemoryStatus() == MemoryStatus.FREE);
+    }
+
+    /**
+     * Locks the bucket of this key for reading, the file of the key should then be locked for appending with {@link FileInfo#lockAppend()}
+     */
+
+    private FileBucket lockBucketForAppend(long key) {
+        while (true) {
+            FileBucket bucket = getBucket(key);
+            validateBucket(bucket);
+            bucket.lockRead();
+            if (bucket.containsKey(key)) {
+                return bucket;
+            }
+            //buckets were rebalanced while we were waiting for the lock
+            bucket.unlockRead();
+        }
+    }
+
     private void lockForRead(FileBucket bucket) {
+        validateBucket(bucket);
         bucket.lockRead();
         while (bucket.shouldBeCleanedBeforeRead()) {
             bucket.unlockRead();
-            rewriteBucket(bucket, true);
+            rewriteBucket(bucket, true, CompactionScheduler.IOBudget.UNLIMITED);
             bucket.lockRead();
         }
     }
 
+    /**
+     * Should be called while holding the write lock of the bucket of the file. No stream on the file is open then: the append channel is
+     * closed below, and readers and {@link SortedRunMerger}s only open the file while holding the read lock. Buffers of memory mapped
+     * files are only unmapped when they are garbage collected, replacing a mapped file is only possible on file systems that allow this
+     * (e.g. not on Windows).
+     */
+
     private void swapTempForReal(FileInfo file) throws IOException {
+        discardFileContents(file);
+        Files.move(toTempFile(file).toPath(), toFile(file).toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private void discardFileContents(FileInfo file) {
         synchronized (file) {
-            long releasedBytes = file.discardFileContents();
-            updateSizeOfCachedFileContents(-releasedBytes);
+            fileContentsCache.remove(file);
+            file.discardMappedFileContents();
+            setAppendedValuesIndex(file, null);
+        }
+        AppendChannel appendChannel = file.getAppendChannel();
+        if (appendChannel != null) {
+            try {
+                appendChannel.close();
+            } catch (IOException exp) {
+                throw new RuntimeException("Failed to close append channel of file " + toFile(file).getAbsolutePath(), exp);
+            }
         }
-        Files.move(toTempFile(file).toPath(), toFile(file).toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
     }
 
-    private int mergeFileIfTooSmall(List<FileInfo> fileList, int currentFileInd, long combinedSize, long maxFileSize, List<KeyValue<T>> values) {
-        int nextFileInd = currentFileInd + 1;
+    private AppendChannel getAppendChannel(FileInfo file) {
+        AppendChannel appendChannel = file.getAppendChannel();
+        if (appendChannel == null) {
+            synchronized (file) {
+                appendChannel = file.getAppendChannel();
+                if (appendChannel == null) {
+                    appendChannel = new AppendChannel(toFile(file), appendChannelPool);
+                    file.setAppendChannel(appendChannel);
+                }
+            }
+        }
+        return appendChannel;
+    }
+
+    private void flushAppendChannels() {
+        try {
+            appendChannelPool.flushAll();
+            appendChannelPool.closeIdleChannels(MAX_IDLE_TIME_APPEND_CHANNEL);
+        } catch (IOException exp) {
+            throw new RuntimeException("Failed to flush append channels of " + getName(), exp);
+        }
+    }
+
+    /**
+     * Adds the values of the next files of the bucket to the values of the rewritten file, as long as the combined size stays below the
+     * maximum file size. The merged files are only removed from the bucket when the rewritten file is swapped in.
+     */
+
+    private void addFilesToMerge(FileBucket bucket, RewrittenFile rewrittenFile, long maxFileSize, List<KeyValue<T>> values) throws IOException {
+        List<FileInfo> fileList = bucket.getFiles();
+        long combinedSize = rewrittenFile.rewrittenSizes.get(0);
+        int nextFileInd = fileList.indexOf(rewrittenFile.sources.get(0)) + 1;
         while (nextFileInd < fileList.size() && combinedSize + fileList.get(nextFileInd).getWriteSize() < maxFileSize) {
             //Combine the files
-            FileInfo nextFile = fileList.remove(nextFileInd);
-            values.addAll(readAllValues(nextFile));
-            combinedSize += nextFile.getWriteSize();
-            deleteFile(nextFile);
+            FileInfo nextFile = fileList.get(nextFileInd);
+            byte[] fileContents = readCompleteFile(nextFile, rewrittenFile::useIO);
+            rewrittenFile.addSource(nextFile, fileContents.length);
+            values.addAll(readAllValues(nextFile, fileContents));
+            combinedSize += fileContents.length;
+            nextFileInd++;
         }
-        return nextFileInd - currentFileInd - 1;
+    }
+
+    private byte[] valueToBytes(long key, T value) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        writeValue(new DataOutputStream(bos), key, value);
+        return bos.toByteArray();
     }
 
     private int writeValue(DataOutputStream dos, long key, T value) throws IOException {
@@ -677,11 +2316,11 @@ public class FileDataInterface<T extends Object> extends CoreDataInterface<T> im
         }
     }
 
-    private ReadValue<T> readValue(byte[] buffer, int position, boolean readActualValue) throws IOException {
+    private ReadValue<T> readValue(ByteBuffer buffer, int position, boolean readActualValue) throws IOException {
         int lengthOfObject;
         int lenghtOfLengthValue;
         if (sizeOfValues == -1) {
-            lengthOfObject = SerializationUtils.bytesToInt(buffer, position);
+            lengthOfObject = readLengthOfValue(buffer, position);
             lenghtOfLengthValue = INT_SIZE;
         } else {
             lengthOfObject = sizeOfValues;
@@ -689,13 +2328,26 @@ public class FileDataInterface<T extends Object> extends CoreDataInterface<T> im
         }
         T value;
         if (readActualValue) {
-            value = SerializationUtils.bytesToObjectCheckForNull(buffer, position + lenghtOfLengthValue, lengthOfObject, getObjectClass());
+            value = bytesToObject(buffer, position + lenghtOfLengthValue, lengthOfObject);
         } else {
             value = null;
         }
         return new ReadValue<>(lengthOfObject + lenghtOfLengthValue, value);
     }
 
+    private T bytesToObject(ByteBuffer buffer, int position, int length) {
+        if (buffer.hasArray()) {
+            return SerializationUtils.bytesToObjectCheckForNull(buffer.array(), buffer.arrayOffset() + position, length, getObjectClass());
+        } else {
+            //memory mapped file, only copy the bytes of this value
+            byte[] objectAsBytes = new byte[length];
+            ByteBuffer duplicate = buffer.duplicate();
+            duplicate.position(position);
+            duplicate.get(objectAsBytes);
+            return SerializationUtils.bytesToObjectCheckForNull(objectAsBytes, 0, length, getObjectClass());
+        }
+    }
+
     private List<FileBucket> createEmptyFileBuckets() {
         List<FileBucket> bucket = new ArrayList<>(1 << (64 - BITS_TO_DISCARD_FOR_FILE_BUCKETS));
         long start = Long.MIN_VALUE >> BITS_TO_DISCARD_FOR_FILE_BUCKETS;
@@ -712,6 +2364,15 @@ public class FileDataInterface<T extends Object> extends CoreDataInterface<T> im
         return bucket;
     }
 
+    private List<FileBucket> createFileBuckets(List<Long> bucketFirstKeys) {
+        List<FileBucket> buckets = new ArrayList<>(bucketFirstKeys.size());
+        for (int i = 0; i < bucketFirstKeys.size(); i++) {
+            long lastKey = i + 1 < bucketFirstKeys.size() ? bucketFirstKeys.get(i + 1) - 1 : Long.MAX_VALUE;
+            buckets.add(new FileBucket(bucketFirstKeys.get(i), lastKey));
+        }
+        return buckets;
+    }
+
     private void checkDataDir() {
         if (!directory.exists()) {
             boolean success = directory.mkdirs();
@@ -724,25 +2385,21 @@ public class FileDataInterface<T extends Object> extends CoreDataInterface<T> im
         }
     }
 
-    private boolean metaFileUpToDate(MetaFile metaFile, String[] filesInDir) {
-        for (String file : filesInDir) {
-            if (file.matches("-?[0-9]+")) {
-                long key = Long.parseLong(file);
-                FileBucket bucket = getBucket(metaFile.getFileBuckets(), key);
-                long sizeOnDisk = new File(directory, file).length();
-                FileInfo fileInfo = bucket.getFile(key);
-                if (fileInfo.getFirstKey() != key) {
-                    return false; //the name of the file on disk should be equal to the first key
-                }
-                if (fileInfo.getWriteSize() != sizeOnDisk) {
-                    return false; //the file write size should be equal to the size on disk
-                }
-                if (!fileInfo.isClean() && !bucket.shouldBeCleanedBeforeRead()) {
-                    return false; //if the file is dirty, the bucket should be marked as 'shouldBeCleanedBeforeRead'
-                }
+    /**
+     * Checks the meta information without touching the files on disk
+     */
+
+    private boolean metaFileIsConsistent(MetaFile metaFile) {
+        List<FileBucket> buckets = metaFile.getFileBuckets();
+        if (buckets == null || buckets.isEmpty() || buckets.get(0).getFirstKey() != Long.MIN_VALUE || buckets.get(buckets.size() - 1).getLastKey() != Long.MAX_VALUE) {
+            return false; //buckets should cover all keys
+        }
+        for (int i = 0; i < buckets.size() - 1; i++) {
+            if (buckets.get(i).getLastKey() + 1 != buckets.get(i + 1).getFirstKey()) {
+                return false; //buckets should be sorted and adjacent
             }
         }
-        for (FileBucket fileBucket : metaFile.getFileBuckets()) {
+        for (FileBucket fileBucket : buckets) {
             if (fileBucket.getFiles().isEmpty()) {
                 return false; //every bucket should contain at least one file
             }
@@ -758,20 +2415,156 @@ public class FileDataInterface<T extends Object> extends CoreDataInterface<T> im
         return true; //all good!
     }
 
+    private boolean filesOfBucketMatchDisk(FileBucket bucket) {
+        int indOfFileOnDisk = getIndOfFirstFileAtOpen(bucket.getFirstKey());
+        for (FileInfo fileInfo : bucket.getFiles()) {
+            if (indOfFileOnDisk == firstKeysOfFilesAtOpen.length || firstKeysOfFilesAtOpen[indOfFileOnDisk] != fileInfo.getFirstKey()) {
+                return false; //the file is not on disk, or there is a file on disk that is not in the bucket
+            }
+            indOfFileOnDisk++;
+            File fileOnDisk = toFile(fileInfo);
+            if (!fileOnDisk.isFile() || fileOnDisk.length() != fileInfo.getWriteSize()) {
+                return false; //the file write size should be equal to the size on disk
+            }
+            if (!fileInfo.isClean() && !bucket.shouldBeCleanedBeforeRead()) {
+                return false; //if the file is dirty, the bucket should be marked as 'shouldBeCleanedBeforeRead'
+            }
+        }
+        //no other files on disk in the range of this bucket
+        return indOfFileOnDisk == firstKeysOfFilesAtOpen.length || firstKeysOfFilesAtOpen[indOfFileOnDisk] > bucket.getLastKey();
+    }
+
+    /**
+     * @return the index of the first file that was found when this data interface was opened with a first key &gt;= this key
+     */
+
+    private int getIndOfFirstFileAtOpen(long key) {
+        int ind = Arrays.binarySearch(firstKeysOfFilesAtOpen, key);
+        return ind >= 0 ? ind : -ind - 1;
+    }
+
+    private static long[] getFirstKeysOfFiles(String[] filesInDir) {
+        long[] firstKeys = new long[filesInDir.length];
+        int numberOfFiles = 0;
+        for (String name : filesInDir) {
+            if (name.matches("-?[0-9]+")) {
+                firstKeys[numberOfFiles++] = Long.parseLong(name);
+            }
+        }
+        firstKeys = Arrays.copyOf(firstKeys, numberOfFiles);
+        Arrays.sort(firstKeys);
+        return firstKeys;
+    }
+
+    /**
+     * Compares the files of a bucket that was read from the meta information with the files on disk, the first time the bucket is used.
+     * If they don't match, the files of the bucket are reconstructed from the files on disk. The directory is only listed once, when the
+     * data interface is opened. This listing stays correct for the buckets that were not validated yet, since files are only created or
+     * removed in a bucket after it was validated.
+     */
+
+    private void validateBucket(FileBucket bucket) {
+        if (bucket.isValidated()) {
+            return;
+        }
+        bucket.lockWrite();
+        try {
+            if (bucket.isValidated() || bucket.isRemoved()) {
+                return;
+            }
+            if (!filesOfBucketMatchDisk(bucket)) {
+                Log.i("Meta information of bucket " + bucket.getFirstKey() + " of " + getName() + " is not up-to-date, will reconstruct its files from files found in directory.");
+                List<FileInfo> files = new ArrayList<>();
+                boolean shouldBeCleaned = false;
+                for (int ind = getIndOfFirstFileAtOpen(bucket.getFirstKey()); ind < firstKeysOfFilesAtOpen.length && firstKeysOfFilesAtOpen[ind] <= bucket.getLastKey(); ind++) {
+                    long key = firstKeysOfFilesAtOpen[ind];
+                    FileInfo fileInfo = createFileInfoFromFile(key, new File(directory, Long.toString(key)));
+                    files.add(fileInfo);
+                    shouldBeCleaned |= fileInfo.getWriteSize() > 0; //no index for this file
+                }
+                bucket.setFiles(files);
+                bucket.setShouldBeCleanedBeforeRead(shouldBeCleaned);
+                makeSureAllFileBucketsHaveAtLeastOneFile(Collections.singletonList(bucket));
+                bucket.markChanged();
+                metaFileOutOfSync = true;
+            }
+            bucket.markValidated();
+        } finally {
+            bucket.unlockWrite();
+        }
+    }
+
     private void updateBucketsFromFiles(String[] filesInDir) {
+        boolean foundFiles = false;
         for (String file : filesInDir) {
             if (file.matches("-?[0-9]+")) {
                 long key = Long.parseLong(file);
                 FileBucket bucket = getBucket(key);
                 long sizeOnDisk = new File(directory, file).length();
-                FileInfo fileInfo = new FileInfo(key, 0, (int) sizeOnDisk);
+                FileInfo fileInfo = createFileInfoFromFile(key, new File(directory, file));
                 bucket.getFiles().add(fileInfo);
                 bucket.setShouldBeCleanedBeforeRead(bucket.shouldBeCleanedBeforeRead() || sizeOnDisk > 0);
+                foundFiles = true;
+            }
+        }
+        if (foundFiles) {
+            mergeBucketsWithoutFirstFile();
+        }
+    }
+
+    /**
+     * Buckets might have been merged before. If a bucket has no file that starts at its first key, its keys are stored in the files of
+     * the previous bucket.
+     */
+
+    private void mergeBucketsWithoutFirstFile() {
+        List<FileBucket> mergedBuckets = new ArrayList<>();
+        for (FileBucket bucket : fileBuckets) {
+            Collections.sort(bucket.getFiles());
+            boolean hasFirstFile = !bucket.getFiles().isEmpty() && bucket.getFiles().get(0).getFirstKey() == bucket.getFirstKey();
+            if (!hasFirstFile && !mergedBuckets.isEmpty()) {
+                mergeBuckets(mergedBuckets.get(mergedBuckets.size() - 1), bucket);
+            } else {
+                mergedBuckets.add(bucket);
+            }
+        }
+        fileBuckets = mergedBuckets;
+    }
+
+    /**
+     * Reconstructs the meta information of a file from its contents on disk. The file has no index, the index is only created when the
+     * file is rewritten.
+     */
+
+    private FileInfo createFileInfoFromFile(long key, File file) {
+        numberOfReconstructedFiles.incrementAndGet();
+        int sizeOnDisk = (int) file.length();
+        if (sizeOnDisk < BlockCodec.HEADER_SIZE) {
+            return new FileInfo(key, 0, sizeOnDisk);
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            if (raf.readLong() != BlockCodec.MAGIC_NUMBER) {
+                return new FileInfo(key, 0, sizeOnDisk);
             }
+            //Find the end of the encoded blocks, everything after that are values that were appended to the file
+            int encoding = raf.readInt();
+            long position = BlockCodec.HEADER_SIZE;
+            int lengthOfBlock = raf.readInt();
+            while (lengthOfBlock != BlockCodec.END_OF_BLOCKS) {
+                position += INT_SIZE + lengthOfBlock;
+                raf.seek(position);
+                lengthOfBlock = raf.readInt();
+            }
+            position += INT_SIZE;
+            FileInfo fileInfo = new FileInfo(key, (int) position, sizeOnDisk);
+            fileInfo.setEncoding(encoding);
+            return fileInfo;
+        } catch (IOException exp) {
+            throw new RuntimeException("Failed to read file " + file.getAbsolutePath(), exp);
         }
     }
 
-    private void makeSureAllFileBucketsHaveAtLeastOneFile() {
+    private void makeSureAllFileBucketsHaveAtLeastOneFile(List<FileBucket> fileBuckets) {
         for (FileBucket bucket : fileBuckets) {
             if (bucket.getFiles().isEmpty()) {
                 //We need at least one file per bucket..
@@ -796,34 +2589,98 @@ public class FileDataInterface<T extends Object> extends CoreDataInterface<T> im
     }
 
     private MetaFile readMetaInfo() {
-        File cleanFilesFile = new File(directory, META_FILE);
-        if (cleanFilesFile.exists()) {
+        if (manifest.exists()) {
+            return manifest.read();
+        }
+        File jsonMetaFile = new File(directory, META_FILE);
+        if (jsonMetaFile.exists()) {
             try {
-                InputStream fis = new BufferedInputStream(new FileInputStream(cleanFilesFile));
+                InputStream fis = new BufferedInputStream(new FileInputStream(jsonMetaFile));
                 MetaFile result = SerializationUtils.readObject(MetaFile.class, fis);
                 IOUtils.closeQuietly(fis);
                 return result;
             } catch (Exception exp) {
-                Log.e("Received exception while reading " + cleanFilesFile.getAbsolutePath(), exp);
+                Log.e("Received exception while reading " + jsonMetaFile.getAbsolutePath(), exp);
             }
         }
         return null;
     }
 
+    /**
+     * Appends the buckets that changed since the last write to the manifest. A complete snapshot is written when the layout of the buckets
+     * is unknown in the manifest, or when the appended changes became too large. Every bucket is only locked while it is serialized.
+     */
+
     private synchronized void writeMetaFile() {
-        readLockAllBuckets();
+        List<FileBucket> buckets = fileBuckets;
         metaFileOutOfSync = false;
-        File outputFile = new File(directory, META_FILE);
         try {
-            MetaFile metaFile = new MetaFile(fileBuckets, timeOfLastWrite, timeOfLastRead);
-            FileOutputStream fos = new FileOutputStream(outputFile);
-            SerializationUtils.writeObject(metaFile, fos);
-            IOUtils.closeQuietly(fos);
+            //files can be rewritten while the buckets are serialized, only the changes logged before this point are part of the checkpoint
+            long sizeOfWriteAheadLog = writeAheadLog == null ? 0 : writeAheadLog.getSize();
+            boolean writeSnapshot = bucketsInManifest == null || manifest.shouldWriteSnapshot();
+            Manifest.Entry entry = new Manifest.Entry(timeOfLastWrite, timeOfLastRead);
+            if (writeSnapshot || buckets != bucketsInManifest) {
+                entry.setLayout(buckets);
+            }
+            for (FileBucket bucket : buckets) {
+                if (writeSnapshot || bucket.isChanged()) {
+                    bucket.lockRead();
+                    lockAppendsOfBucket(bucket);
+                    try {
+                        flushAppendChannels(bucket); //the sizes of the files on disk should match the sizes in the manifest
+                        entry.addBucket(bucket);
+                        bucket.clearChanged();
+                    } finally {
+                        unlockAppendsOfBucket(bucket);
+                        bucket.unlockRead();
+                    }
+                }
+            }
+            boolean sync = writeAheadLog != null && writeAheadLog.getSyncPolicy() == WalSyncPolicy.ALWAYS;
+            if (writeSnapshot) {
+                manifest.writeSnapshot(entry, sync);
+                File jsonMetaFile = new File(directory, META_FILE);
+                if (jsonMetaFile.exists() && !jsonMetaFile.delete()) {
+                    Log.e("Failed to delete old meta file " + jsonMetaFile.getAbsolutePath());
+                }
+            } else {
+                manifest.append(entry, sync);
+            }
+            bucketsInManifest = buckets;
+            if (writeAheadLog != null) {
+                writeAheadLog.checkpointWasWritten(sizeOfWriteAheadLog);
+            }
+            timeOfLastCheckpoint = System.currentTimeMillis();
         } catch (Exception exp) {
             metaFileOutOfSync = true;
-            throw new RuntimeException("Received exception while writing list of clean files to " + outputFile.getAbsolutePath(), exp);
-        } finally {
-            readUnlockAllBuckets();
+            bucketsInManifest = null; //some buckets might not be marked as changed anymore
+            throw new RuntimeException("Received exception while writing manifest of " + getName(), exp);
+        }
+    }
+
+    /**
+     * Blocks the appends to the files of this bucket, so the sizes of the files don't change. Should be called while holding a read lock
+     * on the bucket. The files are always locked in the order of the bucket, so threads that lock several files don't deadlock.
+     */
+
+    private void lockAppendsOfBucket(FileBucket bucket) {
+        for (FileInfo file : bucket.getFiles()) {
+            file.lockAppend();
+        }
+    }
+
+    private void unlockAppendsOfBucket(FileBucket bucket) {
+        for (FileInfo file : bucket.getFiles()) {
+            file.unlockAppend();
+        }
+    }
+
+    private void flushAppendChannels(FileBucket bucket) throws IOException {
+        for (FileInfo file : bucket.getFiles()) {
+            AppendChannel appendChannel = file.getAppendChannel();
+            if (appendChannel != null) {
+                appendChannel.flush();
+            }
         }
     }
 
@@ -832,53 +2689,133 @@ public class FileDataInterface<T extends Object> extends CoreDataInterface<T> im
     }
 
     private FileBucket getBucket(List<FileBucket> fileBuckets, long key) {
-        int ind = (int) ((key >> BITS_TO_DISCARD_FOR_FILE_BUCKETS) + fileBuckets.size() / 2);
-        return fileBuckets.get(ind);
+        //the first key of a bucket never changes, so we can search the bucket without holding any lock
+        int low = 0;
+        int high = fileBuckets.size() - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (fileBuckets.get(mid).getFirstKey() <= key) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return fileBuckets.get(low);
     }
 
     private ReadBuffer getReadBuffer(FileInfo file, int requestedStartPos, int requestedEndPos) throws IOException {
+        if (options.memoryMapFiles) {
+            return new ReadBuffer(getMappedFileContents(file), 0);
+        }
         byte[] fileContents = file.getCachedFileContents();
-        if (fileContents == null) {
-            if (memoryManager.getMemoryStatus() == MemoryStatus.FREE && currentSizeOfCachedFileContents < maxSizeOfCachedFileContents) {
-                //cache file contents. Lock on file object to make sure we don't read the content in parallel (this messes up the currentSizeOfCachedFileContents variable and is not very efficient)
-                synchronized (file) {
-                    fileContents = file.getCachedFileContents();
-                    if (fileContents == null) {
-                        fileContents = new byte[file.getReadSize()];
-                        FileInputStream fis = new FileInputStream(toFile(file));
-                        int bytesRead = fis.read(fileContents);
-                        if (bytesRead != file.getReadSize()) {
-                            throw new RuntimeException("Read " + bytesRead + " bytes, while we expected " + file.getReadSize() + " bytes in file " + toFile(file).getAbsolutePath() + " which currently has size " + toFile(file).length());
-                        }
-                        updateSizeOfCachedFileContents(fileContents.length);
-                        IOUtils.closeQuietly(fis);
+        if (fileContents != null) {
+            fileContentsCache.registerHit(file);
+            if (fileContents.length != file.getReadSize()) {
+                throw new RuntimeException("Buffer and file size don't match!");
+            }
+            return new ReadBuffer(ByteBuffer.wrap(fileContents), 0);
+        }
+        fileContentsCache.registerMiss();
+        if (memoryManager.getMemoryStatus() == MemoryStatus.FREE && fileContentsCache.canCache(file.getReadSize())) {
+            //cache file contents. Lock on file object to make sure we don't read the content in parallel
+            synchronized (file) {
+                fileContents = file.getCachedFileContents();
+                if (fileContents == null) {
+                    fileContents = new byte[file.getReadSize()];
+                    FileInputStream fis = new FileInputStream(toFile(file));
+                    int bytesRead = fis.read(fileContents);
+                    IOUtils.closeQuietly(fis);
+                    if (bytesRead != file.getReadSize() && !(bytesRead == -1 && file.getReadSize() == 0)) {
+                        throw new RuntimeException("Read " + bytesRead + " bytes, while we expected " + file.getReadSize() + " bytes in file " + toFile(file).getAbsolutePath() + " which currently has size " + toFile(file).length());
                     }
-                    file.setCachedFileContents(fileContents);
-                }
-                return new ReadBuffer(fileContents, 0);
-            } else {
-                FileInputStream fis = new FileInputStream(toFile(file));
-                long bytesSkipped = fis.skip(requestedStartPos);
-                if (bytesSkipped != requestedStartPos) {
-                    throw new RuntimeException("Skipped " + bytesSkipped + " bytes, while we expected to skip " + requestedStartPos + " bytes in file " + toFile(file).getAbsolutePath() + " which currently has size " + toFile(file).length());
+                    fileContentsCache.add(file, fileContents);
                 }
-                byte[] buffer = new byte[requestedEndPos - requestedStartPos];
-                int bytesRead = fis.read(buffer);
-                if (bytesRead != buffer.length) {
-                    throw new RuntimeException("Read " + bytesRead + " bytes, while we expected " + file.getReadSize() + " bytes in file " + toFile(file).getAbsolutePath() + " which currently has size " + toFile(file).length());
+            }
+            return new ReadBuffer(ByteBuffer.wrap(fileContents), 0);
+        } else {
+            FileInputStream fis = new FileInputStream(toFile(file));
+            long bytesSkipped = fis.skip(requestedStartPos);
+            if (bytesSkipped != requestedStartPos) {
+                throw new RuntimeException("Skipped " + bytesSkipped + " bytes, while we expected to skip " + requestedStartPos + " bytes in file " + toFile(file).getAbsolutePath() + " which currently has size " + toFile(file).length());
+            }
+            byte[] buffer = new byte[requestedEndPos - requestedStartPos];
+            int bytesRead = fis.read(buffer);
+            if (bytesRead != buffer.length) {
+                throw new RuntimeException("Read " + bytesRead + " bytes, while we expected " + file.getReadSize() + " bytes in file " + toFile(file).getAbsolutePath() + " which currently has size " + toFile(file).length());
+            }
+            IOUtils.closeQuietly(fis);
+            return new ReadBuffer(ByteBuffer.wrap(buffer), requestedStartPos);
+        }
+    }
+
+    private ByteBuffer getMappedFileContents(FileInfo file) throws IOException {
+        ByteBuffer mappedContents = file.getMappedFileContents();
+        if (mappedContents == null) {
+            synchronized (file) {
+                mappedContents = file.getMappedFileContents();
+                if (mappedContents == null) {
+                    //Only the clean part of the file is mapped, values that are appended later on are never read through this buffer
+                    try (FileChannel channel = FileChannel.open(toFile(file).toPath())) {
+                        mappedContents = channel.map(FileChannel.MapMode.READ_ONLY, 0, file.getReadSize());
+                    }
+                    file.setMappedFileContents(mappedContents);
                 }
-                IOUtils.closeQuietly(fis);
-                return new ReadBuffer(buffer, requestedStartPos);
             }
+        }
+        if (mappedContents.limit() != file.getReadSize()) {
+            throw new RuntimeException("Mapped buffer and file size don't match!");
+        }
+        return mappedContents;
+    }
+
+    private static int getCleanFileEncoding(FileDataInterfaceOptions options, Class objectClass) {
+        int encoding = BlockCodec.RAW;
+        if (options.compressFiles) {
+            encoding |= BlockCodec.SNAPPY;
+        }
+        if (options.columnarLayout && SerializationUtils.getWidth(objectClass) != -1) {
+            encoding |= BlockCodec.COLUMNAR;
         } else {
-            if (fileContents.length != file.getReadSize()) {
-                throw new RuntimeException("Buffer and file size don't match!");
+            if (options.deltaEncodeKeys) {
+                encoding |= BlockCodec.DELTA_KEYS;
+            }
+            if (options.compactValues && (objectClass == Long.class || objectClass == Integer.class)) {
+                encoding |= BlockCodec.COMPACT_VALUES;
             }
-            return new ReadBuffer(fileContents, 0);
         }
+        return encoding;
+    }
+
+    private BlockCodec getBlockCodec(FileInfo file) {
+        if (file.getEncoding() == cleanFileCodec.getEncoding()) {
+            return cleanFileCodec;
+        } else {
+            //file was written with other options
+            return new BlockCodec(file.getEncoding(), sizeOfValues);
+        }
+    }
+
+    private ByteBuffer readCleanRecords(FileInfo file) throws IOException {
+        ByteBuffer fileContents = getReadBuffer(file, 0, file.getReadSize()).getBuffer();
+        return getBlockCodec(file).decodeAllBlocks(fileContents, file.getReadSize());
+    }
+
+    private ByteBuffer readAllRecords(FileInfo file, byte[] fileContents) throws IOException {
+        BlockCodec codec = getBlockCodec(file);
+        if (codec.isRaw()) {
+            return ByteBuffer.wrap(fileContents);
+        }
+        //decode the clean part of the file, the values appended after it are not encoded
+        ByteBuffer cleanRecords = codec.decodeAllBlocks(ByteBuffer.wrap(fileContents), file.getReadSize());
+        int sizeOfAppendedRecords = fileContents.length - file.getReadSize();
+        ByteBuffer result = ByteBuffer.allocate(cleanRecords.remaining() + sizeOfAppendedRecords);
+        result.put(cleanRecords);
+        result.put(fileContents, file.getReadSize(), sizeOfAppendedRecords);
+        result.flip();
+        return result;
     }
 
-    private int skipValue(byte[] buffer, int position) throws IOException {
+    private int skipValue(ByteBuffer buffer, int position) throws IOException {
         //Skip some bytes
         Class<T> objectClass = getObjectClass();
         if (objectClass == Long.class || objectClass == Double.class) {
@@ -886,17 +2823,24 @@ public class FileDataInterface<T extends Object> extends CoreDataInterface<T> im
         } else if (objectClass == Integer.class || objectClass == Float.class) {
             return INT_SIZE;
         } else {
-            int length = SerializationUtils.bytesToInt(buffer, position);
-            return INT_SIZE + length;
+            return INT_SIZE + readLengthOfValue(buffer, position);
         }
     }
 
-    private DataOutputStream getAppendingOutputStream(FileInfo fileInfo) throws FileNotFoundException {
-        return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(toFile(fileInfo), true)));
+    /**
+     * Checks the length of a value against the bytes that remain in the buffer, so a corrupt length never causes a large allocation
+     */
+
+    private int readLengthOfValue(ByteBuffer buffer, int position) throws IOException {
+        int length = buffer.getInt(position);
+        if (length < 0 || length > buffer.limit() - position - INT_SIZE) {
+            throw new IOException("Invalid length " + length + " of value at position " + position + ", only " + (buffer.limit() - position - INT_SIZE) + " bytes remain");
+        }
+        return length;
     }
 
-    private DataOutputStream getOutputStreamToTempFile(FileInfo fileInfo) throws FileNotFoundException {
-        return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(toTempFile(fileInfo), false)));
+    private DataOutputStream getOutputStreamToTempFile(long firstKey) throws FileNotFoundException {
+        return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(toTempFile(firstKey), false)));
     }
 
     private File toFile(FileInfo fileInfo) {
@@ -907,29 +2851,24 @@ public class FileDataInterface<T extends Object> extends CoreDataInterface<T> im
     }
 
     private File toTempFile(FileInfo fileInfo) {
-        if (directory == null) {
-            throw new RuntimeException("Directory is null, probably the data interface was closed already!");
-        }
-        return new File(directory, "tmp." + Long.toString(fileInfo.getFirstKey()));
+        return toTempFile(fileInfo.getFirstKey());
     }
 
-    private Map<Long, T> readMap(FileInfo file) {
-        List<KeyValue<T>> values = readCleanValues(file);
-        Map<Long, T> result = new HashMap<>(values.size());
-        for (KeyValue<T> value : values) {
-            result.put(value.getKey(), value.getValue());
+    private File toTempFile(long firstKey) {
+        if (directory == null) {
+            throw new RuntimeException("Directory is null, probably the data interface was closed already!");
         }
-        return result;
+        return new File(directory, "tmp." + Long.toString(firstKey));
     }
 
     private List<KeyValue<T>> readCleanValues(FileInfo file) {
         try {
-            byte[] buffer = getReadBuffer(file, 0, file.getReadSize()).getBuffer();
-            int expectedNumberOfValues = getLowerBoundOnNumberOfValues(file.getReadSize());
+            ByteBuffer buffer = readCleanRecords(file);
+            int expectedNumberOfValues = getLowerBoundOnNumberOfValues(buffer.remaining());
             List<KeyValue<T>> result = new ArrayList<>(expectedNumberOfValues);
-            int position = 0;
-            while (position < buffer.length) {
-                long key = SerializationUtils.bytesToLong(buffer, position);
+            int position = buffer.position();
+            while (position < buffer.limit()) {
+                long key = buffer.getLong(position);
                 position += LONG_SIZE;
                 ReadValue<T> readValue = readValue(buffer, position, true);
                 position += readValue.getSize();
@@ -942,21 +2881,38 @@ public class FileDataInterface<T extends Object> extends CoreDataInterface<T> im
         }
     }
 
+    /**
+     * Only decodes the blocks that can contain keys accepted by the filter. The first block is found with a binary search on the sparse
+     * index, using {@link KeyFilter#acceptKeysAboveOrEqual(long)} and {@link KeyFilter#acceptKeysBelow(long)} as bounds of the keys that
+     * the filter accepts. Reading stops at the first key above these bounds.
+     */
+
     private List<KeyValue<T>> readCleanValuesWithKeyFilter(FileInfo file, KeyFilter keyFilter) {
         try {
-            byte[] buffer = getReadBuffer(file, 0, file.getReadSize()).getBuffer();
-            int expectedNumberOfValues = getLowerBoundOnNumberOfValues(file.getReadSize());
-            List<KeyValue<T>> result = new ArrayList<>(expectedNumberOfValues);
-            int position = 0;
-            while (position < buffer.length) {
-                long key = SerializationUtils.bytesToLong(buffer, position);
-                position += LONG_SIZE;
-                boolean readActualValue = keyFilter.acceptKey(key);
-                ReadValue<T> readValue = readValue(buffer, position, readActualValue);
-                position += readValue.getSize();
-                if (readActualValue) {
-                    result.add(new KeyValue<>(key, readValue.getValue()));
+            long[] indexKeys = file.getFileLocationsKeys();
+            int[] indexValues = file.getFileLocationsValues();
+            List<KeyValue<T>> result = new ArrayList<>();
+            if (indexKeys != null && indexKeys.length > 0) {
+                int firstBlock = findFirstBlockInRange(indexKeys, keyFilter);
+                int endBlock = firstBlock;
+                while (endBlock < indexKeys.length && keyFilter.acceptKeysBelow(indexKeys[endBlock])) {
+                    endBlock++;
                 }
+                if (firstBlock < endBlock) {
+                    int startPos = indexValues[firstBlock];
+                    int endPos = getEndOfBlock(file, endBlock - 1);
+                    ReadBuffer readBuffer = getReadBuffer(file, startPos, endPos);
+                    BlockCodec codec = getBlockCodec(file);
+                    for (int block = firstBlock; block < endBlock; block++) {
+                        ByteBuffer buffer = codec.decodeBlock(readBuffer.getBuffer(), indexValues[block] - readBuffer.getOffset(), getEndOfBlock(file, block) - readBuffer.getOffset());
+                        if (!readValuesWithKeyFilter(buffer, keyFilter, result)) {
+                            break;
+                        }
+                    }
+                }
+            } else {
+                //file has no index yet
+                readValuesWithKeyFilter(readCleanRecords(file), keyFilter, result);
             }
             dataWasRead();
             return result;
@@ -965,11 +2921,65 @@ public class FileDataInterface<T extends Object> extends CoreDataInterface<T> im
         }
     }
 
+    /**
+     * @return the first block of the sparse index that can contain keys accepted by the filter
+     */
+
+    private int findFirstBlockInRange(long[] indexKeys, KeyFilter keyFilter) {
+        int low = 0;
+        int high = indexKeys.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            long lastKeyOfBlock = mid + 1 < indexKeys.length ? indexKeys[mid + 1] - 1 : Long.MAX_VALUE;
+            if (keyFilter.acceptKeysAboveOrEqual(lastKeyOfBlock)) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @return false if a key above the bounds of the filter was found, the following records don't need to be read
+     */
+
+    private boolean readValuesWithKeyFilter(ByteBuffer buffer, KeyFilter keyFilter, List<KeyValue<T>> result) throws IOException {
+        int position = buffer.position();
+        while (position < buffer.limit()) {
+            long key = buffer.getLong(position);
+            if (!keyFilter.acceptKeysBelow(key)) {
+                return false;
+            }
+            position += LONG_SIZE;
+            boolean readActualValue = keyFilter.acceptKey(key);
+            ReadValue<T> readValue = readValue(buffer, position, readActualValue);
+            position += readValue.getSize();
+            if (readActualValue) {
+                result.add(new KeyValue<>(key, readValue.getValue()));
+            }
+        }
+        return true;
+    }
+
     private List<KeyValue<T>> readAllValues(FileInfo file) {
         try {
-            byte[] buffer = readCompleteFile(file);
-            if (buffer.length > 0) {
-                int expectedNumberOfValues = getLowerBoundOnNumberOfValues(file.getWriteSize());
+            return readAllValues(file, readCompleteFile(file));
+        } catch (IOException exp) {
+            throw new RuntimeException("Unexpected exception while reading values from file " + toFile(file).getAbsolutePath(), exp);
+        }
+    }
+
+    /**
+     * @param fileContents the clean part of the file followed by the appended values
+     * @return the values of the file, sorted on key, with the values of the same key combined
+     */
+
+    private List<KeyValue<T>> readAllValues(FileInfo file, byte[] fileContents) {
+        try {
+            ByteBuffer buffer = readAllRecords(file, fileContents);
+            if (buffer.limit() > 0) {
+                int expectedNumberOfValues = getLowerBoundOnNumberOfValues(buffer.limit());
                 List<KeyValue<T>> result = new ArrayList<>(expectedNumberOfValues);
                 //read values in buckets
                 int numberOfBuckets = Math.max(1, expectedNumberOfValues / 1000);
@@ -980,15 +2990,13 @@ public class FileDataInterface<T extends Object> extends CoreDataInterface<T> im
                 long start = file.getFirstKey();
                 long density = (1l << BITS_TO_DISCARD_FOR_FILE_BUCKETS) / numberOfBuckets;
                 int position = 0;
-                while (position < buffer.length) {
-                    long key = SerializationUtils.bytesToLong(buffer, position);
+                while (position < buffer.limit()) {
+                    long key = buffer.getLong(position);
                     position += LONG_SIZE;
                     ReadValue<T> readValue = readValue(buffer, position, true);
                     position += readValue.getSize();
-                    int bucketInd = (int) ((key - start) / density);
-                    if (bucketInd == buckets.length) {
-                        bucketInd--; //rounding error?
-                    }
+                    //files of merged buckets can span a larger key range, the last bucket then contains more values
+                    int bucketInd = (int) Math.min(buckets.length - 1, Long.divideUnsigned(key - start, density));
                     buckets[bucketInd].add(new KeyValue<>(key, readValue.getValue()));
                 }
                 for (int bucketInd = 0; bucketInd < buckets.length; bucketInd++) {
@@ -1006,15 +3014,35 @@ public class FileDataInterface<T extends Object> extends CoreDataInterface<T> im
     }
 
     private byte[] readCompleteFile(FileInfo file) throws IOException {
-        FileInputStream fis = new FileInputStream(toFile(file));
+        return readCompleteFile(file, bytesRead -> {
+        });
+    }
+
+    /**
+     * @param ioListener called after every chunk of at most {@link CompactionScheduler.IOBudget#CHUNK_SIZE} bytes that was read
+     */
+
+    private byte[] readCompleteFile(FileInfo file, LongConsumer ioListener) throws IOException {
+        //values can be appended concurrently, we read the values that were appended before the write size was read
         byte[] buffer = new byte[file.getWriteSize()];
-        int bytesRead = fis.read(buffer);
-        if (bytesRead != buffer.length) {
-            if (!(buffer.length == 0 && bytesRead == -1)) {
-                throw new RuntimeException("Read " + bytesRead + " bytes, while we expected " + buffer.length + " bytes in file " + toFile(file).getAbsolutePath() + " which currently has size " + toFile(file).length());
+        AppendChannel appendChannel = file.getAppendChannel();
+        if (appendChannel != null) {
+            appendChannel.flush(); //the appended values should be in the file before we read it
+        }
+        FileInputStream fis = new FileInputStream(toFile(file));
+        try {
+            int position = 0;
+            while (position < buffer.length) {
+                int bytesRead = fis.read(buffer, position, Math.min(buffer.length - position, CompactionScheduler.IOBudget.CHUNK_SIZE));
+                if (bytesRead == -1) {
+                    throw new RuntimeException("Read " + position + " bytes, while we expected " + buffer.length + " bytes in file " + toFile(file).getAbsolutePath() + " which currently has size " + toFile(file).length());
+                }
+                position += bytesRead;
+                ioListener.accept(bytesRead);
             }
+        } finally {
+            IOUtils.closeQuietly(fis);
         }
-        IOUtils.closeQuietly(fis);
         return buffer;
     }
 
@@ -1027,11 +3055,18 @@ public class FileDataInterface<T extends Object> extends CoreDataInterface<T> im
     }
 
     private List<Long> readKeys(FileInfo file) throws IOException {
+        BlockCodec codec = getBlockCodec(file);
+        if (codec.isColumnar()) {
+            //only read the keys of every block
+            List<Long> result = codec.decodeAllKeys(getReadBuffer(file, 0, file.getReadSize()).getBuffer(), file.getReadSize());
+            dataWasRead();
+            return result;
+        }
         List<Long> result = new ArrayList<>();
-        byte[] buffer = getReadBuffer(file, 0, file.getReadSize()).getBuffer();
-        int position = 0;
-        while (position < buffer.length) {
-            result.add(SerializationUtils.bytesToLong(buffer, position));
+        ByteBuffer buffer = readCleanRecords(file);
+        int position = buffer.position();
+        while (position < buffer.limit()) {
+            result.add(buffer.getLong(position));
             position += LONG_SIZE;
             position += skipValue(buffer, position);
         }
@@ -1039,16 +3074,6 @@ public class FileDataInterface<T extends Object> extends CoreDataInterface<T> im
         return result;
     }
 
-    private List<Pair<Long, Integer>> sample(List<Pair<Long, Integer>> fileLocations, int invSampleRate) {
-        List<Pair<Long, Integer>> result = new ArrayList<>(fileLocations.size() / invSampleRate);
-        for (int i = 0; i < fileLocations.size(); i++) {
-            if (i % invSampleRate == 0) {
-                result.add(fileLocations.get(i));
-            }
-        }
-        return result;
-    }
-
     private void checkLock() {
         File lockFile = new File(directory, LOCK_FILE);
         try {
@@ -1080,16 +3105,59 @@ public class FileDataInterface<T extends Object> extends CoreDataInterface<T> im
         return SerializationUtils.getWidth(getObjectClass()) == -1 ? BATCH_SIZE_NON_PRIMITIVE_VALUES : BATCH_SIZE_PRIMITIVE_VALUES;
     }
 
+    /**
+     * Clean files that replace one or more dirty files of a bucket. They are written to temporary files while holding the read lock of
+     * the bucket, and swapped in while holding the write lock.
+     */
+
+    private static class RewrittenFile {
+        //The rewritten file followed by the files that were merged with it
+        private final List<FileInfo> sources = new ArrayList<>();
+        private final List<Integer> readSizes = new ArrayList<>();
+        //Number of bytes of every source that were rewritten, values that were appended after these bytes are not in the clean files
+        private final List<Integer> rewrittenSizes = new ArrayList<>();
+        //The first keys of the clean files, the first clean file replaces the first source
+        private final List<Long> targetKeys = new ArrayList<>();
+        private final List<CleanFileWriter> writers = new ArrayList<>();
+        private final FileBucket bucket;
+        private final CompactionScheduler.IOBudget ioBudget;
+
+        private RewrittenFile(FileBucket bucket, CompactionScheduler.IOBudget ioBudget) {
+            this.bucket = bucket;
+            this.ioBudget = ioBudget;
+        }
+
+        private void addSource(FileInfo file, int rewrittenSize) {
+            sources.add(file);
+            readSizes.add(file.getReadSize());
+            rewrittenSizes.add(rewrittenSize);
+        }
+
+        /**
+         * The rewrite holds the read lock of the bucket, it only waits for the I/O budget while no other threads wait for the bucket
+         */
+
+        private void useIO(long bytesOfIO) {
+            ioBudget.use(bytesOfIO, !bucket.hasQueuedThreads());
+        }
+
+        private CleanFileWriter addTarget(long firstKey, CleanFileWriter writer) {
+            targetKeys.add(firstKey);
+            writers.add(writer);
+            return writer;
+        }
+    }
+
     private static class ReadBuffer {
-        private final byte[] buffer;
+        private final ByteBuffer buffer;
         private final int offset;
 
-        private ReadBuffer(byte[] buffer, int offset) {
+        private ReadBuffer(ByteBuffer buffer, int offset) {
             this.buffer = buffer;
             this.offset = offset;
         }
 
-        public byte[] getBuffer() {
+        public ByteBuffer getBuffer() {
             return buffer;
         }
 
@@ -1118,29 +3186,176 @@ public class FileDataInterface<T extends Object> extends CoreDataInterface<T> im
 
     private class FileIterator {
 
-        private int currentBucketInd = 0;
-        private int fileInd = 0;
+        private long nextKey = Long.MIN_VALUE;
+        private boolean finished = false;
 
         public Pair<FileBucket, FileInfo> lockCurrentBucketAndGetNextFile() {
-            if (currentBucketInd < fileBuckets.size()) {
-                FileBucket bucket = fileBuckets.get(currentBucketInd);
-                lockForRead(bucket);
-                while (currentBucketInd < fileBuckets.size() && fileInd >= bucket.getFiles().size()) {
-                    fileInd = 0;
-                    bucket.unlockRead();
-                    currentBucketInd++;
-                    if (currentBucketInd < fileBuckets.size()) {
-                        bucket = fileBuckets.get(currentBucketInd);
-                        lockForRead(bucket);
+            //Keep track of the next key instead of the index of the bucket, buckets might be rebalanced in between calls
+            while (!finished) {
+                FileBucket bucket = lockBucketForRead(nextKey);
+                List<FileInfo> files = bucket.getFiles();
+                int fileInd = bucket.getFileInd(nextKey);
+                if (files.get(fileInd).getFirstKey() < nextKey) {
+                    fileInd++;
+                }
+                if (fileInd < files.size()) {
+                    FileInfo file = files.get(fileInd);
+                    if (file.getFirstKey() == Long.MAX_VALUE) {
+                        finished = true;
+                    } else {
+                        nextKey = file.getFirstKey() + 1;
                     }
+                    return new Pair<>(bucket, file);
                 }
-                if (currentBucketInd < fileBuckets.size()) {
-                    return new Pair<>(bucket, bucket.getFiles().get(fileInd++));
+                if (bucket.getLastKey() == Long.MAX_VALUE) {
+                    finished = true;
+                } else {
+                    nextKey = bucket.getLastKey() + 1;
                 }
+                bucket.unlockRead();
             }
             return null;
         }
 
+        public void finish() {
+            finished = true;
+        }
+
+    }
+
+    /**
+     * Iterates over the values with keys in [firstKey, lastKey]. The range is split at the first key of the bucket in the middle of the
+     * range, or, if the range lies within a single bucket, at the first key of the file in the middle of the range. Since the range is
+     * defined by keys, the spliterator stays correct when buckets are rebalanced or files are split during the scan.
+     */
+
+    private class FileSpliterator implements Spliterator<KeyValue<T>> {
+
+        private final long lastKey;
+        private final KeyFilter keyFilter;
+        private long nextKey;
+        private boolean finished;
+        private Iterator<KeyValue<T>> valuesInFileIt = Collections.emptyIterator();
+
+        public FileSpliterator(long firstKey, long lastKey, KeyFilter keyFilter) {
+            this.nextKey = firstKey;
+            this.lastKey = lastKey;
+            this.keyFilter = keyFilter;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super KeyValue<T>> action) {
+            while (!valuesInFileIt.hasNext()) {
+                if (finished) {
+                    return false;
+                }
+                readNextFile();
+            }
+            action.accept(valuesInFileIt.next());
+            return true;
+        }
+
+        private void readNextFile() {
+            long firstKeyToRead = nextKey;
+            FileBucket bucket = lockBucketForRead(firstKeyToRead);
+            try {
+                List<FileInfo> files = bucket.getFiles();
+                int fileInd = bucket.getFileInd(firstKeyToRead);
+                FileInfo file = files.get(fileInd);
+                long endOfFile = fileInd + 1 < files.size() ? files.get(fileInd + 1).getFirstKey() - 1 : bucket.getLastKey();
+                if (endOfFile >= lastKey) {
+                    finished = true;
+                } else {
+                    nextKey = endOfFile + 1;
+                }
+                if (keyFilter == null || (keyFilter.acceptKeysAboveOrEqual(endOfFile) && keyFilter.acceptKeysBelow(file.getFirstKey()))) {
+                    List<KeyValue<T>> values = keyFilter == null ? readCleanValues(file) : readCleanValuesWithKeyFilter(file, keyFilter);
+                    if (file.getFirstKey() < firstKeyToRead || endOfFile > lastKey) {
+                        //the file was split or is shared with another spliterator
+                        values = values.stream().filter(value -> value.getKey() >= firstKeyToRead && value.getKey() <= lastKey).collect(Collectors.toList());
+                    }
+                    valuesInFileIt = values.iterator();
+                }
+            } finally {
+                bucket.unlockRead();
+            }
+        }
+
+        @Override
+        public Spliterator<KeyValue<T>> trySplit() {
+            if (finished) {
+                return null;
+            }
+            long splitKey = findSplitKey();
+            if (splitKey <= nextKey || splitKey > lastKey) {
+                return null;
+            }
+            FileSpliterator prefix = new FileSpliterator(nextKey, splitKey - 1, keyFilter);
+            prefix.valuesInFileIt = valuesInFileIt;
+            valuesInFileIt = Collections.emptyIterator();
+            nextKey = splitKey;
+            return prefix;
+        }
+
+        private long findSplitKey() {
+            List<Long> candidates = new ArrayList<>();
+            for (FileBucket bucket : fileBuckets) {
+                if (bucket.getFirstKey() > nextKey && bucket.getFirstKey() <= lastKey) {
+                    candidates.add(bucket.getFirstKey());
+                }
+            }
+            if (candidates.isEmpty()) {
+                FileBucket bucket = getBucket(nextKey);
+                bucket.lockRead();
+                try {
+                    for (FileInfo file : bucket.getFiles()) {
+                        if (file.getFirstKey() > nextKey && file.getFirstKey() <= lastKey) {
+                            candidates.add(file.getFirstKey());
+                        }
+                    }
+                } finally {
+                    bucket.unlockRead();
+                }
+            }
+            return candidates.isEmpty() ? nextKey : candidates.get(candidates.size() / 2);
+        }
+
+        /**
+         * @return an estimate of the number of values that were not yet read, based on the sizes of the files in the remaining range
+         */
+
+        @Override
+        public long estimateSize() {
+            if (finished) {
+                return 0;
+            }
+            long sizeOfFiles = 0;
+            for (FileBucket bucket : fileBuckets) {
+                if (bucket.getLastKey() >= nextKey && bucket.getFirstKey() <= lastKey) {
+                    bucket.lockRead();
+                    try {
+                        for (FileInfo file : bucket.getFiles()) {
+                            if (file.getFirstKey() <= lastKey) {
+                                sizeOfFiles += file.getWriteSize();
+                            }
+                        }
+                    } finally {
+                        bucket.unlockRead();
+                    }
+                }
+            }
+            return sizeOfFiles / (LONG_SIZE + Math.max(INT_SIZE, sizeOfValues));
+        }
+
+        @Override
+        public int characteristics() {
+            return ORDERED | SORTED | DISTINCT | NONNULL;
+        }
+
+        @Override
+        public Comparator<? super KeyValue<T>> getComparator() {
+            return Comparator.comparingLong(KeyValue::getKey);
+        }
     }
 
     public static class MetaFile {
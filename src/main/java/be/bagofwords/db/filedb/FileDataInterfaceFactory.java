@@ -1,6 +1,7 @@
 package be.bagofwords.db.filedb;
 
 import be.bagofwords.db.DataInterface;
+import be.bagofwords.db.DataInterfaceConfig;
 import be.bagofwords.db.combinator.Combinator;
 import be.bagofwords.db.impl.BaseDataInterface;
 import be.bagofwords.db.impl.BaseDataInterfaceFactory;
@@ -12,21 +13,53 @@ public class FileDataInterfaceFactory extends BaseDataInterfaceFactory {
 
     private final MemoryManager memoryManager;
     private final String directory;
+    //Shared by all data interfaces of this factory, so the limits on threads and I/O apply to all of them together
+    private final CompactionScheduler compactionScheduler;
 
     public FileDataInterfaceFactory(ApplicationContext context) {
         super(context);
         this.memoryManager = context.getBean(MemoryManager.class);
         this.directory = context.getProperty("data_directory");
+        this.compactionScheduler = new CompactionScheduler("files", CompactionScheduler.DEFAULT_NUMBER_OF_THREADS, -1);
+    }
+
+    /**
+     * Limits the rewrites of dirty files in the background, for all data interfaces of this factory together.
+     *
+     * @param maxNumberOfThreads number of threads that rewrite dirty files. Defaults to half of the available processors. Threads are only
+     *                           started when there are files to rewrite.
+     * @param maxBytesPerSecond  number of bytes that are read and written per second, so the rewrites don't slow down reads on slow
+     *                           (e.g. spinning) disks. Rewrites that are needed to answer a read or that were requested with
+     *                           optimizeForReading() are not limited. A value &lt;= 0 (the default) means no limit.
+     */
+
+    public void setCompactionLimits(int maxNumberOfThreads, long maxBytesPerSecond) {
+        compactionScheduler.setLimits(maxNumberOfThreads, maxBytesPerSecond);
     }
 
     @Override
     protected <T extends Object> BaseDataInterface<T> createBaseDataInterface(final String name, final Class<T> objectClass, final Combinator<T> combinator, boolean isTemporaryDataInterface) {
+        return createFileDataInterface(name, objectClass, combinator, isTemporaryDataInterface, new FileDataInterfaceOptions());
+    }
+
+    @Override
+    protected <T extends Object> BaseDataInterface<T> createBaseDataInterface(String name, DataInterfaceConfig<T> config) {
+        return createFileDataInterface(name, config.objectClass, config.combinator, config.isTemporary, config.fileOptions);
+    }
+
+    private <T extends Object> BaseDataInterface<T> createFileDataInterface(String name, Class<T> objectClass, Combinator<T> combinator, boolean isTemporaryDataInterface, FileDataInterfaceOptions options) {
         Log.i("Creating file data interface " + name);
-        FileDataInterface<T> result = new FileDataInterface<>(memoryManager, combinator, objectClass, directory, name, isTemporaryDataInterface, taskScheduler);
+        FileDataInterface<T> result = new FileDataInterface<>(memoryManager, combinator, objectClass, directory, name, isTemporaryDataInterface, taskScheduler, options, compactionScheduler);
         memoryManager.registerMemoryGobbler(result);
         return result;
     }
 
+    @Override
+    public synchronized void terminate() {
+        super.terminate();
+        compactionScheduler.close();
+    }
+
     @Override
     protected Class<? extends DataInterface> getBaseDataInterfaceClass() {
         return FileDataInterface.class;
@@ -0,0 +1,198 @@
+package be.bagofwords.db.filedb;
+
+/**
+ * Options that only apply to data interfaces that are stored with the {@link FileDataInterface}. Other backends ignore these options.
+ */
+
+public class FileDataInterfaceOptions {
+
+    public boolean memoryMapFiles;
+    public long maxSizeOfCachedFileContents;
+    public boolean compressFiles;
+    public boolean deltaEncodeKeys;
+    public boolean compactValues;
+    public boolean columnarLayout;
+    public double bloomFilterFpp;
+    public boolean writeAheadLog;
+    public WalSyncPolicy walSyncPolicy;
+    public int sizeOfBlocks;
+    public long maxSizeOfIndexes;
+    public int appendBufferSize;
+
+    public FileDataInterfaceOptions() {
+        this.memoryMapFiles = false;
+        this.maxSizeOfCachedFileContents = -1;
+        this.compressFiles = false;
+        this.deltaEncodeKeys = false;
+        this.compactValues = false;
+        this.columnarLayout = false;
+        this.bloomFilterFpp = -1;
+        this.writeAheadLog = false;
+        this.walSyncPolicy = WalSyncPolicy.PERIODIC;
+        this.sizeOfBlocks = 2 * 1024;
+        this.maxSizeOfIndexes = -1;
+        this.appendBufferSize = 0;
+    }
+
+    /**
+     * Map clean files in memory and read values directly from the mapped buffers, instead of copying the file contents to the heap. The
+     * OS page cache then takes care of caching the files. Rewritten files replace mapped files, this is not possible on all platforms
+     * (e.g. not on Windows).
+     */
+
+    public FileDataInterfaceOptions memoryMapFiles() {
+        this.memoryMapFiles = true;
+        return this;
+    }
+
+    public FileDataInterfaceOptions memoryMapFiles(boolean memoryMapFiles) {
+        this.memoryMapFiles = memoryMapFiles;
+        return this;
+    }
+
+    /**
+     * Maximum number of bytes of file contents that this data interface keeps in memory. When the cache is full, the files that were
+     * not read recently are evicted first. Defaults to 1/3 of the available memory.
+     */
+
+    public FileDataInterfaceOptions maxSizeOfCachedFileContents(long maxSizeOfCachedFileContents) {
+        this.maxSizeOfCachedFileContents = maxSizeOfCachedFileContents;
+        return this;
+    }
+
+    /**
+     * Store clean files as blocks that are compressed with Snappy. Reading a single value only decompresses the block that contains the
+     * value. Files that were written before this option was changed remain readable.
+     */
+
+    public FileDataInterfaceOptions compressFiles() {
+        this.compressFiles = true;
+        return this;
+    }
+
+    public FileDataInterfaceOptions compressFiles(boolean compressFiles) {
+        this.compressFiles = compressFiles;
+        return this;
+    }
+
+    /**
+     * Store the keys in clean files as the (variable length) difference with the previous key. Every block of the file starts with a
+     * complete key, so a read only needs to decode the block that contains the value.
+     */
+
+    public FileDataInterfaceOptions deltaEncodeKeys() {
+        this.deltaEncodeKeys = true;
+        return this;
+    }
+
+    public FileDataInterfaceOptions deltaEncodeKeys(boolean deltaEncodeKeys) {
+        this.deltaEncodeKeys = deltaEncodeKeys;
+        return this;
+    }
+
+    /**
+     * Store Long and Integer values in clean files with a variable number of bytes, small counts only need a single byte. Ignored for
+     * other value types.
+     */
+
+    public FileDataInterfaceOptions compactValues() {
+        this.compactValues = true;
+        return this;
+    }
+
+    public FileDataInterfaceOptions compactValues(boolean compactValues) {
+        this.compactValues = compactValues;
+        return this;
+    }
+
+    /**
+     * Store every block of a clean file as a sorted array of keys followed by the array of values. Reads do a binary search over the keys
+     * and iterating over the keys does not touch the values. Only applies to values with a fixed width (e.g. Long, Double), and takes
+     * precedence over {@link #deltaEncodeKeys()} and {@link #compactValues()}.
+     */
+
+    public FileDataInterfaceOptions columnarLayout() {
+        this.columnarLayout = true;
+        return this;
+    }
+
+    public FileDataInterfaceOptions columnarLayout(boolean columnarLayout) {
+        this.columnarLayout = columnarLayout;
+        return this;
+    }
+
+    /**
+     * Create a bloom filter for every clean file, so reads of missing keys don't need to touch the contents of the file. The bloom
+     * filters are stored in the meta file.
+     */
+
+    public FileDataInterfaceOptions bloomFilters() {
+        return bloomFilters(0.01);
+    }
+
+    /**
+     * @param fpp the expected false positive probability of the bloom filters, a value &lt;= 0 disables the bloom filters
+     */
+
+    public FileDataInterfaceOptions bloomFilters(double fpp) {
+        this.bloomFilterFpp = fpp;
+        return this;
+    }
+
+    /**
+     * Log the rewrites of files and changes of the bucket layout to a write-ahead log. After an unclean shutdown the data interface
+     * replays this log on top of the last written meta file, instead of reconstructing (and later rewriting) all files.
+     */
+
+    public FileDataInterfaceOptions writeAheadLog() {
+        this.writeAheadLog = true;
+        return this;
+    }
+
+    public FileDataInterfaceOptions writeAheadLog(WalSyncPolicy walSyncPolicy) {
+        this.writeAheadLog = true;
+        this.walSyncPolicy = walSyncPolicy;
+        return this;
+    }
+
+    /**
+     * Number of bytes of records between two entries of the sparse index of a clean file, i.e. the number of bytes that a read scans
+     * (or decodes) to find a value. Files of buckets that are read often get 4 times smaller blocks, files of buckets that are not read
+     * get 4 times larger blocks. Defaults to 2KB.
+     */
+
+    public FileDataInterfaceOptions sizeOfBlocks(int sizeOfBlocks) {
+        if (sizeOfBlocks < 1) {
+            throw new IllegalArgumentException("Size of blocks should be positive, got " + sizeOfBlocks);
+        }
+        this.sizeOfBlocks = sizeOfBlocks;
+        return this;
+    }
+
+    /**
+     * Maximum number of bytes used by the sparse indexes of all files of this data interface. When the indexes are larger, the indexes
+     * of the files that are read least are thinned, and files are rewritten with larger blocks. Defaults to 1/20 of the available memory.
+     */
+
+    public FileDataInterfaceOptions maxSizeOfIndexes(long maxSizeOfIndexes) {
+        this.maxSizeOfIndexes = maxSizeOfIndexes;
+        return this;
+    }
+
+    /**
+     * Collect values that are appended to a file in a buffer of this many bytes, and write the buffer with a single system call. This
+     * speeds up many small writes that don't go through a cache, but values that are still in a buffer are lost when the process
+     * crashes. The buffers are written every second, and when the data interface is flushed or closed. A value of 0 (the default) writes
+     * every value to the file before the write returns, the values of threads that write to the same file at the same time are then
+     * written with a single system call.
+     */
+
+    public FileDataInterfaceOptions appendBufferSize(int appendBufferSize) {
+        if (appendBufferSize < 0) {
+            throw new IllegalArgumentException("Size of append buffers should not be negative, got " + appendBufferSize);
+        }
+        this.appendBufferSize = appendBufferSize;
+        return this;
+    }
+
+}
@@ -1,19 +1,40 @@
 package be.bagofwords.db.filedb;
 
+import be.bagofwords.db.bloomfilter.LongBloomFilter;
 import be.bagofwords.util.Pair;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
 
 class FileInfo implements Comparable {
 
     private long firstKey;
     private int readSize;
-    private int writeSize;
-    private byte[] cachedFileContents;
+    //Increased by writers that only hold a read lock on the bucket of this file and the append lock of this file
+    private volatile int writeSize;
+    //Number of keys in the clean part of the file, -1 if unknown (the file was recovered without meta information)
+    private int numberOfKeys = -1;
+    private int encoding;
+    private volatile byte[] cachedFileContents;
+    private volatile int cacheUsageCount;
+    //Slot of this file in the FileContentsCache, -1 if its contents are not cached. Only used while holding the lock of the cache
+    private int cacheSlot = -1;
+    private volatile ByteBuffer mappedFileContents;
+    private volatile AppendChannel appendChannel;
+    //Index of the values that were appended after the clean part, only created when a dirty file is read
+    private volatile AppendedValuesIndex appendedValuesIndex;
     //This field is only filled in when the file is clean (i.e. not isDirty)
     private long[] fileLocationsKeys;
     private int[] fileLocationsValues;
+    //Set when the keys of the sparse index are close to uniformly distributed, the index is then searched with an interpolation search
+    private boolean uniformKeys;
+    //Bloom filter of the keys in the clean part of the file, null if no bloom filter was created
+    private LongBloomFilter bloomFilter;
+    //Held while values are appended to this file, so appends to different files of the same bucket don't block each other
+    private final ReentrantLock appendLock = new ReentrantLock();
 
     public FileInfo(long firstKey, int readSize, int writeSize) {
         this.firstKey = firstKey;
@@ -22,6 +43,7 @@ class FileInfo implements Comparable {
         if (readSize == 0) {
             fileLocationsKeys = new long[0];
             fileLocationsValues = new int[0];
+            numberOfKeys = 0;
         }
     }
 
@@ -33,15 +55,18 @@ class FileInfo implements Comparable {
         return readSize;
     }
 
-    public void fileWasRewritten(List<Pair<Long, Integer>> fileLocations, int newReadSize, int newWriteSize) {
+    public void fileWasRewritten(List<Pair<Long, Integer>> fileLocations, int newReadSize, int newWriteSize, int newEncoding, int newNumberOfKeys) {
         this.readSize = newReadSize;
         this.writeSize = newWriteSize;
+        this.encoding = newEncoding;
+        this.numberOfKeys = newNumberOfKeys;
         this.fileLocationsKeys = new long[fileLocations.size()];
         this.fileLocationsValues = new int[fileLocations.size()];
         for (int i = 0; i < fileLocations.size(); i++) {
             fileLocationsKeys[i] = fileLocations.get(i).getFirst();
             fileLocationsValues[i] = fileLocations.get(i).getSecond();
         }
+        this.uniformKeys = KeySearch.isCloseToUniform(fileLocationsKeys);
     }
 
     @Override
@@ -59,6 +84,10 @@ class FileInfo implements Comparable {
         return super.toString() + " " + getFirstKey() + " " + getReadSize() + " " + getWriteSize();
     }
 
+    /**
+     * Should be called while holding the append lock of this file, after the values were appended
+     */
+
     public void increaseWriteSize(int diff) {
         this.writeSize += diff;
     }
@@ -71,13 +100,44 @@ class FileInfo implements Comparable {
         return fileLocationsValues;
     }
 
-    public long discardFileContents() {
-        int bytesReleased = 0;
-        if (cachedFileContents != null) {
-            bytesReleased = cachedFileContents.length;
-            cachedFileContents = null;
+    /**
+     * Removes every other entry of the sparse index, halving its memory usage. Only valid for files with the RAW encoding, where the
+     * blocks are plain records that can be read as a single block. Should be called while holding the write lock on the bucket.
+     */
+
+    public void thinIndex() {
+        int newLength = (fileLocationsKeys.length + 1) / 2;
+        long[] newKeys = new long[newLength];
+        int[] newValues = new int[newLength];
+        for (int i = 0; i < newLength; i++) {
+            newKeys[i] = fileLocationsKeys[2 * i];
+            newValues[i] = fileLocationsValues[2 * i];
         }
-        return bytesReleased;
+        this.fileLocationsKeys = newKeys;
+        this.fileLocationsValues = newValues;
+        this.uniformKeys = KeySearch.isCloseToUniform(newKeys);
+    }
+
+    /**
+     * @return the position of the block that could contain this key in the sparse index, with the same result as
+     * {@link java.util.Arrays#binarySearch(long[], long)}
+     */
+
+    public int searchIndex(long key) {
+        return uniformKeys ? KeySearch.search(fileLocationsKeys, key) : Arrays.binarySearch(fileLocationsKeys, key);
+    }
+
+    public LongBloomFilter getBloomFilter() {
+        return bloomFilter;
+    }
+
+    public void setBloomFilter(LongBloomFilter bloomFilter) {
+        this.bloomFilter = bloomFilter;
+    }
+
+    public void discardMappedFileContents() {
+        //mapped buffers don't use heap memory, they are unmapped when garbage collected
+        mappedFileContents = null;
     }
 
     @JsonIgnore
@@ -90,13 +150,94 @@ class FileInfo implements Comparable {
         this.cachedFileContents = cachedFileContents;
     }
 
+    @JsonIgnore
+    public int getCacheUsageCount() {
+        return cacheUsageCount;
+    }
+
+    @JsonIgnore
+    public void setCacheUsageCount(int cacheUsageCount) {
+        this.cacheUsageCount = cacheUsageCount;
+    }
+
+    @JsonIgnore
+    public int getCacheSlot() {
+        return cacheSlot;
+    }
+
+    @JsonIgnore
+    public void setCacheSlot(int cacheSlot) {
+        this.cacheSlot = cacheSlot;
+    }
+
+    @JsonIgnore
+    public ByteBuffer getMappedFileContents() {
+        return mappedFileContents;
+    }
+
+    @JsonIgnore
+    public void setMappedFileContents(ByteBuffer mappedFileContents) {
+        this.mappedFileContents = mappedFileContents;
+    }
+
+    @JsonIgnore
+    public AppendChannel getAppendChannel() {
+        return appendChannel;
+    }
+
+    @JsonIgnore
+    public void setAppendChannel(AppendChannel appendChannel) {
+        this.appendChannel = appendChannel;
+    }
+
+    @JsonIgnore
+    public AppendedValuesIndex getAppendedValuesIndex() {
+        return appendedValuesIndex;
+    }
+
+    @JsonIgnore
+    public void setAppendedValuesIndex(AppendedValuesIndex appendedValuesIndex) {
+        this.appendedValuesIndex = appendedValuesIndex;
+    }
+
     public int getWriteSize() {
         return writeSize;
     }
 
+    /**
+     * @return the number of keys in the clean part of this file, or -1 if this is not known because the file was recovered without meta
+     * information. Values that were appended to the file are not counted.
+     */
+
+    public int getNumberOfKeys() {
+        return numberOfKeys;
+    }
+
+    /**
+     * @return the encoding of the clean part of this file (see {@link BlockCodec})
+     */
+
+    public int getEncoding() {
+        return encoding;
+    }
+
+    /**
+     * Appending values to a file requires a read lock on its bucket and the append lock of the file. Replacing a file by its rewritten
+     * version requires the write lock on its bucket, so no values are appended while the file is swapped.
+     */
+
+    public void lockAppend() {
+        appendLock.lock();
+    }
+
+    public void unlockAppend() {
+        appendLock.unlock();
+    }
+
     @JsonIgnore
     public boolean isClean() {
-        return readSize == writeSize;
+        //files that were recovered without meta information don't have an index yet
+        return readSize == writeSize && fileLocationsKeys != null;
     }
 
 
@@ -119,8 +260,17 @@ class FileInfo implements Comparable {
         this.writeSize = writeSize;
     }
 
+    public void setEncoding(int encoding) {
+        this.encoding = encoding;
+    }
+
+    public void setNumberOfKeys(int numberOfKeys) {
+        this.numberOfKeys = numberOfKeys;
+    }
+
     public void setFileLocationsKeys(long[] fileLocationsKeys) {
         this.fileLocationsKeys = fileLocationsKeys;
+        this.uniformKeys = fileLocationsKeys != null && KeySearch.isCloseToUniform(fileLocationsKeys);
     }
 
     public void setFileLocationsValues(int[] fileLocationsValues) {
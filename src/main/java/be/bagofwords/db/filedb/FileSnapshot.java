@@ -0,0 +1,166 @@
+package be.bagofwords.db.filedb;
+
+import be.bagofwords.logging.Log;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Point-in-time view of the files of a {@link FileDataInterface}. Every file of the snapshot is a hard link to the generation of the file
+ * at the time the snapshot was taken. Values are only ever appended to a file and a compaction replaces a file by moving a new file over
+ * it, so the linked generation stays on disk, unchanged up to its recorded size, until the snapshot is released. On file systems that
+ * don't support hard links the files are copied up to their recorded size, see {@link #copyFile(FileInfo, File)}.
+ * <p>
+ * A snapshot that is not released keeps these files on disk, so the iterator over a snapshot should always be closed. Snapshots that
+ * become unreachable without being released are released by {@link #releaseUnreachableSnapshots()}.
+ */
+
+class FileSnapshot {
+
+    //References to the snapshots that were not released, a reference is enqueued when its snapshot becomes unreachable
+    private static final ReferenceQueue<FileSnapshot> unreachableSnapshots = new ReferenceQueue<>();
+    private static final Set<SnapshotReference> unreleasedSnapshots = ConcurrentHashMap.newKeySet();
+
+    private final File directory;
+    private final List<FileInfo> files;
+    //Files that could not be linked, with their entry in this snapshot
+    private final Map<FileInfo, FileInfo> filesToCopy;
+    private final SnapshotReference reference;
+
+    public FileSnapshot(File directory) {
+        this.directory = directory;
+        this.files = new ArrayList<>();
+        this.filesToCopy = new IdentityHashMap<>();
+        if (!directory.mkdirs()) {
+            throw new RuntimeException("Failed to create directory " + directory.getAbsolutePath());
+        }
+        this.reference = new SnapshotReference(this, directory);
+        unreleasedSnapshots.add(reference);
+    }
+
+    /**
+     * Adds the file to the snapshot and links it. Should be called while holding a lock on the bucket of the file and the append lock of
+     * the file, after the values that were appended to the file were flushed.
+     *
+     * @return false if the file could not be linked because the file system does not support hard links. The file should then be copied
+     * with {@link #copyFile(FileInfo, File)} before it is replaced.
+     */
+
+    public boolean linkFile(FileInfo file, File fileOnDisk) throws IOException {
+        FileInfo fileInSnapshot = new FileInfo(file.getFirstKey(), file.getReadSize(), file.getWriteSize());
+        fileInSnapshot.setEncoding(file.getEncoding());
+        files.add(fileInSnapshot);
+        if (file.getWriteSize() > 0) {
+            try {
+                Files.createLink(toFile(fileInSnapshot).toPath(), fileOnDisk.toPath());
+            } catch (UnsupportedOperationException | FileSystemException exp) {
+                filesToCopy.put(file, fileInSnapshot);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Copies a file that could not be linked, up to its size when it was added to the snapshot. Values can be appended to the file in the
+     * meantime, but it should not be replaced (rewritten) before it is copied.
+     */
+
+    public void copyFile(FileInfo file, File fileOnDisk) throws IOException {
+        FileInfo fileInSnapshot = filesToCopy.remove(file);
+        try (FileChannel source = FileChannel.open(fileOnDisk.toPath(), StandardOpenOption.READ);
+             FileChannel target = FileChannel.open(toFile(fileInSnapshot).toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            long position = 0;
+            while (position < fileInSnapshot.getWriteSize()) {
+                long bytesCopied = source.transferTo(position, fileInSnapshot.getWriteSize() - position, target);
+                if (bytesCopied <= 0) {
+                    throw new IOException("File " + fileOnDisk.getAbsolutePath() + " is smaller than the size recorded in the snapshot");
+                }
+                position += bytesCopied;
+            }
+        }
+    }
+
+    /**
+     * @return the files of the snapshot, sorted on their first key
+     */
+
+    public List<FileInfo> getFiles() {
+        return files;
+    }
+
+    /**
+     * @return the contents of the file (the clean part and the appended values) when the snapshot was taken
+     */
+
+    public byte[] readFile(FileInfo file) throws IOException {
+        byte[] contents = new byte[file.getWriteSize()];
+        if (contents.length > 0) {
+            try (RandomAccessFile raf = new RandomAccessFile(toFile(file), "r")) {
+                raf.readFully(contents);
+            }
+        }
+        return contents;
+    }
+
+    /**
+     * Removes the links to the files, the generations of files that were replaced since the snapshot was taken are then removed from disk
+     */
+
+    public void release() {
+        reference.release();
+    }
+
+    /**
+     * Safety net for iterators over a snapshot that were not closed, the links would otherwise keep replaced files on disk until the data
+     * interface is opened again. Releases the snapshots that were garbage collected without being released.
+     */
+
+    public static void releaseUnreachableSnapshots() {
+        SnapshotReference reference = (SnapshotReference) unreachableSnapshots.poll();
+        while (reference != null) {
+            Log.i("Releasing snapshot " + reference.directory.getAbsolutePath() + " because it was garbage collected, was its iterator closed?");
+            reference.release();
+            reference = (SnapshotReference) unreachableSnapshots.poll();
+        }
+    }
+
+    private File toFile(FileInfo file) {
+        return new File(directory, Long.toString(file.getFirstKey()));
+    }
+
+    /**
+     * Does not refer to the snapshot itself, so the snapshot can become unreachable
+     */
+
+    private static class SnapshotReference extends PhantomReference<FileSnapshot> {
+
+        private final File directory;
+
+        private SnapshotReference(FileSnapshot snapshot, File directory) {
+            super(snapshot, unreachableSnapshots);
+            this.directory = directory;
+        }
+
+        private void release() {
+            if (unreleasedSnapshots.remove(this)) {
+                clear();
+                try {
+                    FileUtils.deleteDirectory(directory);
+                } catch (IOException exp) {
+                    Log.e("Failed to remove snapshot " + directory.getAbsolutePath(), exp);
+                }
+            }
+        }
+    }
+}
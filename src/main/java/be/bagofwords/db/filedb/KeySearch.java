@@ -0,0 +1,95 @@
+package be.bagofwords.db.filedb;
+
+import java.util.function.IntToLongFunction;
+
+/**
+ * Searches a key in sorted, distinct keys. Most keys are hashes and are uniformly distributed, so the position of a key can be estimated
+ * from the first and last key of the range that is searched (interpolation search). This typically needs 2 or 3 probes instead of the
+ * log2(n) probes of a binary search. After a few interpolation steps the search falls back to a binary search on the remaining range, so
+ * keys that are not uniformly distributed never cost more than a few extra probes.
+ */
+
+class KeySearch {
+
+    private static final int MAX_INTERPOLATION_STEPS = 3;
+    private static final int NUMBER_OF_SAMPLES_FOR_UNIFORMITY = 16;
+
+    /**
+     * @return the same result as {@link java.util.Arrays#binarySearch(long[], long)}
+     */
+
+    public static int search(long[] keys, long key) {
+        return search(i -> keys[i], keys.length, key);
+    }
+
+    /**
+     * @param keyAt returns the key at a position, the keys should be sorted and distinct
+     * @return the position of the key if found, otherwise (-(insertion point) - 1)
+     */
+
+    public static int search(IntToLongFunction keyAt, int size, long key) {
+        int low = 0;
+        int high = size - 1;
+        for (int step = 0; step < MAX_INTERPOLATION_STEPS && low <= high; step++) {
+            long lowKey = keyAt.applyAsLong(low);
+            long highKey = keyAt.applyAsLong(high);
+            if (key < lowKey) {
+                return -(low + 1);
+            }
+            if (key > highKey) {
+                return -(high + 2);
+            }
+            if (lowKey == highKey) {
+                return low;
+            }
+            //computed with doubles, the difference between two keys can overflow a long
+            double fraction = ((double) key - (double) lowKey) / ((double) highKey - (double) lowKey);
+            int mid = Math.min(high, Math.max(low, low + (int) (fraction * (high - low))));
+            long midKey = keyAt.applyAsLong(mid);
+            if (midKey < key) {
+                low = mid + 1;
+            } else if (midKey > key) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long midKey = keyAt.applyAsLong(mid);
+            if (midKey < key) {
+                low = mid + 1;
+            } else if (midKey > key) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    /**
+     * @return true if the position of a sample of the keys is close to the position that is estimated by interpolating between the first
+     * and the last key
+     */
+
+    public static boolean isCloseToUniform(long[] keys) {
+        int size = keys.length;
+        if (size < NUMBER_OF_SAMPLES_FOR_UNIFORMITY) {
+            return false; //a binary search only needs a few probes anyway
+        }
+        double range = (double) keys[size - 1] - (double) keys[0];
+        if (range <= 0) {
+            return false;
+        }
+        double maxDeviation = size / (double) NUMBER_OF_SAMPLES_FOR_UNIFORMITY;
+        for (int i = 0; i < NUMBER_OF_SAMPLES_FOR_UNIFORMITY; i++) {
+            int position = (int) ((long) i * (size - 1) / (NUMBER_OF_SAMPLES_FOR_UNIFORMITY - 1));
+            double estimatedPosition = ((double) keys[position] - (double) keys[0]) / range * (size - 1);
+            if (Math.abs(estimatedPosition - position) > maxDeviation) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
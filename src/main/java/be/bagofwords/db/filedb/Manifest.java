@@ -0,0 +1,298 @@
+package be.bagofwords.db.filedb;
+
+import be.bagofwords.db.bloomfilter.LongBloomFilter;
+import be.bagofwords.logging.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Binary meta information of a {@link FileDataInterface}: the layout of the buckets and the files of every bucket. The manifest starts
+ * with a snapshot of all buckets, after that only the buckets that changed are appended. When the appended entries become larger than
+ * the snapshot, a new snapshot replaces the manifest. Every entry is written in the format of {@link ChecksummedEntries}, so an entry
+ * that was only partially appended is ignored when the manifest is read.
+ */
+
+class Manifest {
+
+    private static final long MAGIC_NUMBER = 0x434f554e544d4632L; //"COUNTMF2"
+    //Manifests of older versions don't contain the number of keys of every file
+    private static final long MAGIC_NUMBER_WITHOUT_NUMBER_OF_KEYS = 0x434f554e544d4631L; //"COUNTMF1"
+    private static final int LONG_SIZE = 8;
+    private static final long MIN_SIZE_FOR_SNAPSHOT = 1024 * 1024;
+
+    private final File file;
+    private FileChannel appendChannel;
+    private long sizeOfSnapshot;
+    private long validSize;
+    //Set when the manifest that was read has an older format, entries in the new format should then not be appended to it
+    private boolean hasOlderFormat;
+
+    public Manifest(File file) {
+        this.file = file;
+    }
+
+    public boolean exists() {
+        return file.exists();
+    }
+
+    /**
+     * @return the buckets of the last complete entry, or null if the manifest could not be read
+     */
+
+    public FileDataInterface.MetaFile read() {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer contents = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            long magicNumber = contents.remaining() < LONG_SIZE ? 0 : contents.getLong();
+            if (magicNumber != MAGIC_NUMBER && magicNumber != MAGIC_NUMBER_WITHOUT_NUMBER_OF_KEYS) {
+                Log.e("Manifest " + file.getAbsolutePath() + " has no valid header");
+                return null;
+            }
+            hasOlderFormat = magicNumber != MAGIC_NUMBER;
+            long lastWrite = 0;
+            long lastRead = 0;
+            List<Long> layout = null;
+            Map<Long, FileBucket> buckets = new HashMap<>();
+            ByteBuffer entry = ChecksummedEntries.read(contents);
+            sizeOfSnapshot = contents.position();
+            while (entry != null) {
+                lastWrite = entry.getLong();
+                lastRead = entry.getLong();
+                int numberOfBucketsInLayout = entry.getInt();
+                if (numberOfBucketsInLayout >= 0) {
+                    layout = new ArrayList<>(numberOfBucketsInLayout);
+                    for (int i = 0; i < numberOfBucketsInLayout; i++) {
+                        layout.add(entry.getLong());
+                    }
+                    buckets.keySet().retainAll(new HashSet<>(layout));
+                }
+                int numberOfBuckets = entry.getInt();
+                for (int i = 0; i < numberOfBuckets; i++) {
+                    FileBucket bucket = readBucket(entry, !hasOlderFormat);
+                    buckets.put(bucket.getFirstKey(), bucket);
+                }
+                validSize = contents.position();
+                entry = ChecksummedEntries.read(contents);
+            }
+            if (layout == null) {
+                return null;
+            }
+            List<FileBucket> result = new ArrayList<>(layout.size());
+            for (int i = 0; i < layout.size(); i++) {
+                long firstKey = layout.get(i);
+                long lastKey = i + 1 < layout.size() ? layout.get(i + 1) - 1 : Long.MAX_VALUE;
+                FileBucket bucket = buckets.get(firstKey);
+                if (bucket == null) {
+                    bucket = new FileBucket(firstKey, lastKey); //will not pass the validation of the meta information
+                }
+                bucket.setLastKey(lastKey);
+                result.add(bucket);
+            }
+            return new FileDataInterface.MetaFile(result, lastWrite, lastRead);
+        } catch (Exception exp) {
+            Log.e("Received exception while reading manifest " + file.getAbsolutePath(), exp);
+            return null;
+        }
+    }
+
+    /**
+     * @return true if the entries that were appended since the last snapshot are larger than the snapshot
+     */
+
+    public boolean shouldWriteSnapshot() {
+        return hasOlderFormat || validSize - sizeOfSnapshot > Math.max(MIN_SIZE_FOR_SNAPSHOT, sizeOfSnapshot);
+    }
+
+    /**
+     * Replaces the manifest by a new manifest that only contains this entry. The entry should contain the layout and all buckets.
+     */
+
+    public synchronized void writeSnapshot(Entry entry, boolean sync) throws IOException {
+        closeAppendChannel();
+        File tempFile = new File(file.getParentFile(), "tmp." + file.getName());
+        ByteBuffer header = ByteBuffer.allocate(LONG_SIZE);
+        header.putLong(MAGIC_NUMBER);
+        header.flip();
+        try (FileChannel channel = FileChannel.open(tempFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeFully(channel, header);
+            writeFully(channel, entry.encode());
+            if (sync) {
+                channel.force(true);
+            }
+            sizeOfSnapshot = validSize = channel.size();
+        }
+        hasOlderFormat = false;
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Appends the buckets that changed since the last entry
+     */
+
+    public synchronized void append(Entry entry, boolean sync) throws IOException {
+        if (appendChannel == null) {
+            appendChannel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+            appendChannel.truncate(validSize); //remove an entry that was only partially written
+            appendChannel.position(validSize);
+        }
+        writeFully(appendChannel, entry.encode());
+        if (sync) {
+            appendChannel.force(false);
+        }
+        validSize = appendChannel.position();
+    }
+
+    public synchronized void close() throws IOException {
+        closeAppendChannel();
+    }
+
+    private void closeAppendChannel() throws IOException {
+        if (appendChannel != null) {
+            appendChannel.close();
+            appendChannel = null;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static FileBucket readBucket(ByteBuffer entry, boolean withNumberOfKeys) {
+        FileBucket bucket = new FileBucket();
+        bucket.setFirstKey(entry.getLong());
+        bucket.setShouldBeCleanedBeforeRead(entry.get() != 0);
+        int numberOfFiles = entry.getInt();
+        List<FileInfo> files = new ArrayList<>(numberOfFiles);
+        for (int i = 0; i < numberOfFiles; i++) {
+            FileInfo file = new FileInfo();
+            file.setFirstKey(entry.getLong());
+            file.setReadSize(entry.getInt());
+            file.setWriteSize(entry.getInt());
+            file.setEncoding(entry.getInt());
+            if (withNumberOfKeys) {
+                file.setNumberOfKeys(entry.getInt());
+            }
+            int numberOfLocations = entry.getInt();
+            if (numberOfLocations >= 0) {
+                long[] fileLocationsKeys = new long[numberOfLocations];
+                int[] fileLocationsValues = new int[numberOfLocations];
+                for (int j = 0; j < numberOfLocations; j++) {
+                    fileLocationsKeys[j] = entry.getLong();
+                    fileLocationsValues[j] = entry.getInt();
+                }
+                file.setFileLocationsKeys(fileLocationsKeys);
+                file.setFileLocationsValues(fileLocationsValues);
+            }
+            int numOfHashFunctions = entry.getInt();
+            if (numOfHashFunctions > 0) {
+                long[] data = new long[entry.getInt()];
+                int bitCount = 0;
+                for (int j = 0; j < data.length; j++) {
+                    data[j] = entry.getLong();
+                    bitCount += Long.bitCount(data[j]);
+                }
+                LongBloomFilter.BitArray bits = new LongBloomFilter.BitArray();
+                bits.setData(data);
+                bits.setBitCount(bitCount);
+                file.setBloomFilter(new LongBloomFilter(bits, numOfHashFunctions));
+            }
+            files.add(file);
+        }
+        bucket.setFiles(files);
+        return bucket;
+    }
+
+    /**
+     * The times of the last read and write, optionally the layout of the buckets, and the buckets that should be (re)written
+     */
+
+    public static class Entry {
+
+        private final ByteArrayOutputStream buckets;
+        private final DataOutputStream bucketsStream;
+        private final long lastWrite;
+        private final long lastRead;
+        private List<FileBucket> layout;
+        private int numberOfBuckets;
+
+        public Entry(long lastWrite, long lastRead) {
+            this.lastWrite = lastWrite;
+            this.lastRead = lastRead;
+            this.buckets = new ByteArrayOutputStream();
+            this.bucketsStream = new DataOutputStream(buckets);
+        }
+
+        public void setLayout(List<FileBucket> layout) {
+            this.layout = layout;
+        }
+
+        /**
+         * Should be called while holding a lock on the bucket
+         */
+
+        public void addBucket(FileBucket bucket) throws IOException {
+            bucketsStream.writeLong(bucket.getFirstKey());
+            bucketsStream.writeByte(bucket.shouldBeCleanedBeforeRead() ? 1 : 0);
+            bucketsStream.writeInt(bucket.getFiles().size());
+            for (FileInfo file : bucket.getFiles()) {
+                bucketsStream.writeLong(file.getFirstKey());
+                bucketsStream.writeInt(file.getReadSize());
+                bucketsStream.writeInt(file.getWriteSize());
+                bucketsStream.writeInt(file.getEncoding());
+                bucketsStream.writeInt(file.getNumberOfKeys());
+                long[] fileLocationsKeys = file.getFileLocationsKeys();
+                int[] fileLocationsValues = file.getFileLocationsValues();
+                if (fileLocationsKeys == null) {
+                    bucketsStream.writeInt(-1); //file was recovered without meta information and has no index yet
+                } else {
+                    bucketsStream.writeInt(fileLocationsKeys.length);
+                    for (int i = 0; i < fileLocationsKeys.length; i++) {
+                        bucketsStream.writeLong(fileLocationsKeys[i]);
+                        bucketsStream.writeInt(fileLocationsValues[i]);
+                    }
+                }
+                LongBloomFilter bloomFilter = file.getBloomFilter();
+                if (bloomFilter == null) {
+                    bucketsStream.writeInt(0);
+                } else {
+                    bucketsStream.writeInt(bloomFilter.getNumOfHashFunctions());
+                    long[] data = bloomFilter.getBits().getData();
+                    bucketsStream.writeInt(data.length);
+                    for (long value : data) {
+                        bucketsStream.writeLong(value);
+                    }
+                }
+            }
+            numberOfBuckets++;
+        }
+
+        private ByteBuffer encode() throws IOException {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream(buckets.size() + 1024);
+            DataOutputStream dos = new DataOutputStream(bos);
+            dos.writeLong(lastWrite);
+            dos.writeLong(lastRead);
+            if (layout == null) {
+                dos.writeInt(-1);
+            } else {
+                dos.writeInt(layout.size());
+                for (FileBucket bucket : layout) {
+                    dos.writeLong(bucket.getFirstKey());
+                }
+            }
+            dos.writeInt(numberOfBuckets);
+            buckets.writeTo(dos);
+            dos.close();
+            return ChecksummedEntries.encode(bos.toByteArray());
+        }
+    }
+}
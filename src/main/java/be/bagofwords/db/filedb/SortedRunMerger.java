@@ -0,0 +1,371 @@
+package be.bagofwords.db.filedb;
+
+import be.bagofwords.db.combinator.Combinator;
+import be.bagofwords.util.KeyValue;
+import be.bagofwords.util.SerializationUtils;
+import org.apache.commons.io.IOUtils;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.function.LongConsumer;
+
+/**
+ * Iterates over the combined values of a dirty file in sorted order, without loading the complete file in memory. The values that were
+ * appended to the file are read in runs of at most maxSizeOfRun bytes. Every run is sorted and combined, and all runs but the last are
+ * written to a temporary run file. The clean part of the file, the run files and the last run are then merged, values with the same key
+ * are combined in the order in which they were written. The clean part is read from an open stream while merging, so the merger should
+ * be closed before the file is replaced by its rewritten version. Not all file systems allow to replace a file that is open.
+ */
+
+class SortedRunMerger<T> implements Iterator<KeyValue<T>>, Closeable {
+
+    private static final int LONG_SIZE = 8;
+    private static final int INT_SIZE = 4;
+
+    private final Class<T> objectClass;
+    private final Combinator<T> combinator;
+    private final int sizeOfValues;
+    private final List<File> runFiles;
+    private final List<RunReader> runReaders;
+    private final PriorityQueue<RunReader> runsByKey;
+    private final LongConsumer ioListener;
+    private KeyValue<T> next;
+
+    /**
+     * @param file          the dirty file. Its appended values should be flushed to disk before this merger is created.
+     * @param writeSize     the values that were appended up to this size are read. Values can still be appended to the file while it is
+     *                      read, these are not included.
+     * @param runFilePrefix the prefix of the temporary run files, which are removed when this merger is closed
+     * @param ioListener    called with the number of bytes after every chunk (see {@link CompactionScheduler.IOBudget#CHUNK_SIZE}) that
+     *                      was read, and after every run file that was written
+     */
+
+    public SortedRunMerger(File file, FileInfo fileInfo, int writeSize, BlockCodec codec, int sizeOfValues, Class<T> objectClass, Combinator<T> combinator, long maxSizeOfRun, String runFilePrefix, LongConsumer ioListener) throws IOException {
+        this.ioListener = ioListener;
+        this.objectClass = objectClass;
+        this.combinator = combinator;
+        this.sizeOfValues = sizeOfValues;
+        this.runFiles = new ArrayList<>();
+        this.runReaders = new ArrayList<>();
+        try {
+            //the clean part is the oldest run, it is already sorted and combined
+            runReaders.add(new CleanPartReader(file, fileInfo.getReadSize(), codec));
+            List<KeyValue<T>> lastRun = createRuns(file, fileInfo.getReadSize(), writeSize, maxSizeOfRun, runFilePrefix);
+            for (File runFile : runFiles) {
+                runReaders.add(new RecordsReader(new DataInputStream(openInputStream(runFile)), runFile.length()));
+            }
+            runReaders.add(new InMemoryRunReader(lastRun));
+            this.runsByKey = new PriorityQueue<>(runReaders.size(), (first, second) -> {
+                int result = Long.compare(first.current.getKey(), second.current.getKey());
+                return result != 0 ? result : Integer.compare(first.order, second.order);
+            });
+            for (int i = 0; i < runReaders.size(); i++) {
+                RunReader runReader = runReaders.get(i);
+                runReader.order = i;
+                advanceAndRequeue(runReader);
+            }
+            findNext();
+        } catch (IOException | RuntimeException exp) {
+            close();
+            throw exp;
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        return next != null;
+    }
+
+    @Override
+    public KeyValue<T> next() {
+        if (next == null) {
+            throw new NoSuchElementException();
+        }
+        KeyValue<T> result = next;
+        try {
+            findNext();
+        } catch (IOException exp) {
+            throw new RuntimeException("Failed to read sorted runs", exp);
+        }
+        return result;
+    }
+
+    @Override
+    public void close() {
+        for (RunReader runReader : runReaders) {
+            runReader.close();
+        }
+        for (File runFile : runFiles) {
+            if (runFile.exists() && !runFile.delete()) {
+                throw new RuntimeException("Failed to delete run file " + runFile.getAbsolutePath());
+            }
+        }
+    }
+
+    private void findNext() throws IOException {
+        next = null;
+        while (next == null && !runsByKey.isEmpty()) {
+            //runs with the same key are polled in the order in which they were written
+            RunReader runReader = runsByKey.poll();
+            long key = runReader.current.getKey();
+            T value = runReader.current.getValue();
+            advanceAndRequeue(runReader);
+            while (!runsByKey.isEmpty() && runsByKey.peek().current.getKey() == key) {
+                RunReader sameKey = runsByKey.poll();
+                value = combine(value, sameKey.current.getValue());
+                advanceAndRequeue(sameKey);
+            }
+            if (value != null) {
+                next = new KeyValue<>(key, value);
+            }
+        }
+    }
+
+    private void advanceAndRequeue(RunReader runReader) throws IOException {
+        if (runReader.advance()) {
+            runsByKey.add(runReader);
+        }
+    }
+
+    private List<KeyValue<T>> createRuns(File file, int start, int end, long maxSizeOfRun, String runFilePrefix) throws IOException {
+        List<KeyValue<T>> run = new ArrayList<>();
+        long sizeOfRun = 0;
+        try (InputStream is = openInputStream(file)) {
+            IOUtils.skipFully(is, start);
+            DataInputStream dis = new DataInputStream(is);
+            long position = start;
+            while (position < end) {
+                long key = dis.readLong();
+                int lengthOfValue = sizeOfValues == -1 ? dis.readInt() : sizeOfValues;
+                byte[] objectAsBytes = new byte[lengthOfValue];
+                dis.readFully(objectAsBytes);
+                int sizeOfRecord = LONG_SIZE + (sizeOfValues == -1 ? INT_SIZE : 0) + lengthOfValue;
+                position += sizeOfRecord;
+                run.add(new KeyValue<>(key, SerializationUtils.bytesToObjectCheckForNull(objectAsBytes, 0, lengthOfValue, objectClass)));
+                sizeOfRun += sizeOfRecord;
+                if (sizeOfRun >= maxSizeOfRun && position < end) {
+                    writeRun(sortAndCombine(run), new File(runFilePrefix + runFiles.size()));
+                    run = new ArrayList<>();
+                    sizeOfRun = 0;
+                }
+            }
+        }
+        return sortAndCombine(run);
+    }
+
+    /**
+     * Unlike DBUtils.mergeValues, keeps the null values. They remove the values of the same key in the older runs.
+     */
+
+    private List<KeyValue<T>> sortAndCombine(List<KeyValue<T>> run) {
+        run.sort(Comparator.comparingLong(KeyValue::getKey)); //stable, values with the same key stay in the order in which they were written
+        List<KeyValue<T>> result = new ArrayList<>(run.size());
+        for (KeyValue<T> keyValue : run) {
+            KeyValue<T> previous = result.isEmpty() ? null : result.get(result.size() - 1);
+            if (previous != null && previous.getKey() == keyValue.getKey()) {
+                previous.setValue(combine(previous.getValue(), keyValue.getValue()));
+            } else {
+                result.add(keyValue);
+            }
+        }
+        return result;
+    }
+
+    private void writeRun(List<KeyValue<T>> run, File runFile) throws IOException {
+        runFiles.add(runFile);
+        try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(runFile)))) {
+            for (KeyValue<T> keyValue : run) {
+                dos.writeLong(keyValue.getKey());
+                byte[] objectAsBytes = SerializationUtils.objectToBytesCheckForNull(keyValue.getValue(), objectClass);
+                if (sizeOfValues == -1) {
+                    dos.writeInt(objectAsBytes.length);
+                }
+                dos.write(objectAsBytes);
+            }
+        }
+        ioListener.accept(runFile.length());
+    }
+
+    private InputStream openInputStream(File file) throws IOException {
+        return new BufferedInputStream(new ChunkCountingInputStream(new FileInputStream(file)), CompactionScheduler.IOBudget.CHUNK_SIZE);
+    }
+
+    private T combine(T first, T second) {
+        if (first == null || second == null) {
+            return second;
+        } else {
+            return combinator.combine(first, second);
+        }
+    }
+
+    private abstract class RunReader {
+        protected KeyValue<T> current;
+        private int order;
+
+        /**
+         * @return false if there are no more values in this run
+         */
+
+        protected abstract boolean advance() throws IOException;
+
+        protected void close() {
+            //nothing to close
+        }
+    }
+
+    private class InMemoryRunReader extends RunReader {
+        private final Iterator<KeyValue<T>> values;
+
+        private InMemoryRunReader(List<KeyValue<T>> values) {
+            this.values = values.iterator();
+        }
+
+        @Override
+        protected boolean advance() {
+            current = values.hasNext() ? values.next() : null;
+            return current != null;
+        }
+    }
+
+    /**
+     * Reads plain records (key, optional length, value) from a stream
+     */
+
+    private class RecordsReader extends RunReader {
+        private final DataInputStream dis;
+        private long remaining;
+
+        private RecordsReader(DataInputStream dis, long size) {
+            this.dis = dis;
+            this.remaining = size;
+        }
+
+        @Override
+        protected boolean advance() throws IOException {
+            if (remaining <= 0) {
+                current = null;
+                return false;
+            }
+            long key = dis.readLong();
+            int lengthOfValue = sizeOfValues == -1 ? dis.readInt() : sizeOfValues;
+            byte[] objectAsBytes = new byte[lengthOfValue];
+            dis.readFully(objectAsBytes);
+            remaining -= LONG_SIZE + (sizeOfValues == -1 ? INT_SIZE : 0) + lengthOfValue;
+            current = new KeyValue<>(key, SerializationUtils.bytesToObjectCheckForNull(objectAsBytes, 0, lengthOfValue, objectClass));
+            return true;
+        }
+
+        @Override
+        protected void close() {
+            IOUtils.closeQuietly(dis);
+        }
+    }
+
+    /**
+     * Reads the clean part of a file one block at a time
+     */
+
+    private class CleanPartReader extends RunReader {
+        private final DataInputStream dis;
+        private final BlockCodec codec;
+        private final int cleanSize;
+        private long position;
+        private ByteBuffer currentBlock;
+
+        private CleanPartReader(File file, int cleanSize, BlockCodec codec) throws IOException {
+            this.dis = new DataInputStream(openInputStream(file));
+            this.codec = codec;
+            this.cleanSize = cleanSize;
+            if (!codec.isRaw() && cleanSize > 0) {
+                IOUtils.skipFully(dis, BlockCodec.HEADER_SIZE);
+                this.position = BlockCodec.HEADER_SIZE;
+            }
+        }
+
+        @Override
+        protected boolean advance() throws IOException {
+            if (codec.isRaw()) {
+                return advanceRaw();
+            }
+            while (currentBlock == null || !currentBlock.hasRemaining()) {
+                if (!readNextBlock()) {
+                    current = null;
+                    return false;
+                }
+            }
+            long key = currentBlock.getLong();
+            int lengthOfValue = sizeOfValues == -1 ? currentBlock.getInt() : sizeOfValues;
+            byte[] objectAsBytes = new byte[lengthOfValue];
+            currentBlock.get(objectAsBytes);
+            current = new KeyValue<>(key, SerializationUtils.bytesToObjectCheckForNull(objectAsBytes, 0, lengthOfValue, objectClass));
+            return true;
+        }
+
+        private boolean advanceRaw() throws IOException {
+            if (position >= cleanSize) {
+                current = null;
+                return false;
+            }
+            long key = dis.readLong();
+            int lengthOfValue = sizeOfValues == -1 ? dis.readInt() : sizeOfValues;
+            byte[] objectAsBytes = new byte[lengthOfValue];
+            dis.readFully(objectAsBytes);
+            position += LONG_SIZE + (sizeOfValues == -1 ? INT_SIZE : 0) + lengthOfValue;
+            current = new KeyValue<>(key, SerializationUtils.bytesToObjectCheckForNull(objectAsBytes, 0, lengthOfValue, objectClass));
+            return true;
+        }
+
+        private boolean readNextBlock() throws IOException {
+            if (position >= cleanSize) {
+                return false;
+            }
+            int length = dis.readInt();
+            position += INT_SIZE;
+            if (length == BlockCodec.END_OF_BLOCKS) {
+                return false;
+            }
+            byte[] block = new byte[INT_SIZE + length];
+            ByteBuffer.wrap(block).putInt(length);
+            dis.readFully(block, INT_SIZE, length);
+            position += length;
+            currentBlock = codec.decodeBlock(ByteBuffer.wrap(block), 0, block.length);
+            return true;
+        }
+
+        @Override
+        protected void close() {
+            IOUtils.closeQuietly(dis);
+        }
+    }
+
+    /**
+     * Reports the number of bytes that were read to the I/O listener. Wrapped in a buffer of one chunk, so the underlying stream is
+     * (usually) read one chunk at a time.
+     */
+
+    private class ChunkCountingInputStream extends FilterInputStream {
+
+        private ChunkCountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int result = super.read();
+            if (result != -1) {
+                ioListener.accept(1);
+            }
+            return result;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int bytesRead = super.read(b, off, len);
+            if (bytesRead > 0) {
+                ioListener.accept(bytesRead);
+            }
+            return bytesRead;
+        }
+    }
+}
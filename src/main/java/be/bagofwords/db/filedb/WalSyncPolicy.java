@@ -0,0 +1,24 @@
+package be.bagofwords.db.filedb;
+
+/**
+ * Specify when the write-ahead log of a {@link FileDataInterface} is forced to disk
+ */
+
+public enum WalSyncPolicy {
+
+    /**
+     * Never force the log to disk. Recovery after a crash of the process is fast, after a crash of the operating system some files
+     * might need to be reconstructed.
+     */
+    NEVER,
+    /**
+     * Force the log to disk about once every second
+     */
+    PERIODIC,
+    /**
+     * Force every entry of the log to disk before the change it describes is made, and force rewritten files to disk before they
+     * replace the old files
+     */
+    ALWAYS
+
+}
@@ -0,0 +1,258 @@
+package be.bagofwords.db.filedb;
+
+import be.bagofwords.logging.Log;
+import be.bagofwords.util.Pair;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Logs the changes to the structure of a {@link FileDataInterface} since the last time the meta file was written (the checkpoint):
+ * files that are rewritten or deleted and changes to the layout of the buckets. Values that are appended to files are not logged, the
+ * appended part of a file is found by comparing the size on disk with the size at the checkpoint. After a crash the state of the data
+ * interface is the checkpoint with the changes in this log replayed, only files that were being rewritten at the moment of the crash
+ * need to be reconstructed.
+ * <p>
+ * Entries are written in the format of {@link ChecksummedEntries}, so a partially written entry at the end of the log is detected and
+ * ignored.
+ */
+
+class WriteAheadLog {
+
+    private static final byte REWRITE_STARTED = 1;
+    private static final byte FILE_REWRITTEN = 2;
+    private static final byte FILE_DELETED = 3;
+    private static final byte BUCKETS_CHANGED = 4;
+
+    private final File file;
+    private final WalSyncPolicy syncPolicy;
+    private FileChannel channel;
+
+    public WriteAheadLog(File file, WalSyncPolicy syncPolicy) {
+        this.file = file;
+        this.syncPolicy = syncPolicy;
+        try {
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        } catch (IOException exp) {
+            throw new RuntimeException("Failed to open write-ahead log " + file.getAbsolutePath(), exp);
+        }
+    }
+
+    public void logRewriteStarted(long firstKeyOfFile) {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bos);
+        try {
+            dos.writeByte(REWRITE_STARTED);
+            dos.writeLong(firstKeyOfFile);
+        } catch (IOException exp) {
+            throw new RuntimeException(exp);
+        }
+        writeEntry(bos.toByteArray());
+    }
+
+    public void logFileRewritten(FileInfo fileInfo) {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bos);
+        try {
+            dos.writeByte(FILE_REWRITTEN);
+            dos.writeLong(fileInfo.getFirstKey());
+            dos.writeInt(fileInfo.getReadSize());
+            dos.writeInt(fileInfo.getWriteSize());
+            dos.writeInt(fileInfo.getEncoding());
+            long[] fileLocationsKeys = fileInfo.getFileLocationsKeys();
+            int[] fileLocationsValues = fileInfo.getFileLocationsValues();
+            dos.writeInt(fileLocationsKeys.length);
+            for (int i = 0; i < fileLocationsKeys.length; i++) {
+                dos.writeLong(fileLocationsKeys[i]);
+                dos.writeInt(fileLocationsValues[i]);
+            }
+            dos.writeInt(fileInfo.getNumberOfKeys());
+        } catch (IOException exp) {
+            throw new RuntimeException(exp);
+        }
+        writeEntry(bos.toByteArray());
+    }
+
+    public void logFileDeleted(long firstKeyOfFile) {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bos);
+        try {
+            dos.writeByte(FILE_DELETED);
+            dos.writeLong(firstKeyOfFile);
+        } catch (IOException exp) {
+            throw new RuntimeException(exp);
+        }
+        writeEntry(bos.toByteArray());
+    }
+
+    public void logBucketsChanged(List<FileBucket> buckets) {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bos);
+        try {
+            dos.writeByte(BUCKETS_CHANGED);
+            dos.writeInt(buckets.size());
+            for (FileBucket bucket : buckets) {
+                dos.writeLong(bucket.getFirstKey());
+            }
+        } catch (IOException exp) {
+            throw new RuntimeException(exp);
+        }
+        writeEntry(bos.toByteArray());
+    }
+
+    /**
+     * Called after the meta file was written. The changes that were logged before the meta file was started are part of the checkpoint
+     * and are removed from the log. Changes that were logged while the buckets were serialized are kept, since a bucket might have been
+     * serialized before it was changed. Replaying these changes on the new checkpoint is harmless, every entry describes a complete state.
+     *
+     * @param sizeAtStartOfCheckpoint the size of the log (see {@link #getSize()}) before the first bucket of the meta file was serialized
+     */
+
+    public synchronized void checkpointWasWritten(long sizeAtStartOfCheckpoint) {
+        try {
+            long size = channel.size();
+            if (size == sizeAtStartOfCheckpoint) {
+                channel.truncate(0);
+                channel.position(0);
+                return;
+            }
+            ByteBuffer remainingEntries = ByteBuffer.allocate((int) (size - sizeAtStartOfCheckpoint));
+            while (remainingEntries.hasRemaining()) {
+                channel.read(remainingEntries, sizeAtStartOfCheckpoint + remainingEntries.position());
+            }
+            remainingEntries.flip();
+            //write the remaining entries to a new log, so the log stays valid when we crash in the meantime
+            File tempFile = new File(file.getParentFile(), "tmp." + file.getName());
+            try (FileChannel tempChannel = FileChannel.open(tempFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                while (remainingEntries.hasRemaining()) {
+                    tempChannel.write(remainingEntries);
+                }
+                if (syncPolicy == WalSyncPolicy.ALWAYS) {
+                    tempChannel.force(false);
+                }
+            }
+            channel.close();
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            channel.position(channel.size());
+        } catch (IOException exp) {
+            throw new RuntimeException("Failed to truncate write-ahead log " + file.getAbsolutePath(), exp);
+        }
+    }
+
+    public synchronized long getSize() {
+        try {
+            return channel.size();
+        } catch (IOException exp) {
+            throw new RuntimeException(exp);
+        }
+    }
+
+    public synchronized void sync() {
+        try {
+            channel.force(false);
+        } catch (IOException exp) {
+            throw new RuntimeException("Failed to sync write-ahead log " + file.getAbsolutePath(), exp);
+        }
+    }
+
+    /**
+     * Forces a (rewritten) file to disk if required by the sync policy of this log
+     */
+
+    public void syncFile(File fileToSync) throws IOException {
+        if (syncPolicy == WalSyncPolicy.ALWAYS) {
+            try (FileChannel fileChannel = FileChannel.open(fileToSync.toPath(), StandardOpenOption.WRITE)) {
+                fileChannel.force(true);
+            }
+        }
+    }
+
+    public WalSyncPolicy getSyncPolicy() {
+        return syncPolicy;
+    }
+
+    public synchronized void close() {
+        try {
+            channel.close();
+        } catch (IOException exp) {
+            throw new RuntimeException("Failed to close write-ahead log " + file.getAbsolutePath(), exp);
+        }
+    }
+
+    private synchronized void writeEntry(byte[] entry) {
+        ByteBuffer buffer = ChecksummedEntries.encode(entry);
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            if (syncPolicy == WalSyncPolicy.ALWAYS) {
+                channel.force(false);
+            }
+        } catch (IOException exp) {
+            throw new RuntimeException("Failed to write to write-ahead log " + file.getAbsolutePath(), exp);
+        }
+    }
+
+    /**
+     * Applies all changes in the log to the state of the last checkpoint.
+     *
+     * @param files           the files of the checkpoint, mapped by their first key. Files that were being rewritten when the log ended
+     *                        are mapped to null, since their state is unknown.
+     * @param bucketFirstKeys the first keys of the buckets of the checkpoint
+     */
+
+    public static void replay(File logFile, Map<Long, FileInfo> files, List<Long> bucketFirstKeys) throws IOException {
+        ByteBuffer log;
+        try (FileChannel logChannel = FileChannel.open(logFile.toPath(), StandardOpenOption.READ)) {
+            log = logChannel.map(FileChannel.MapMode.READ_ONLY, 0, logChannel.size());
+        }
+        int numberOfEntries = 0;
+        ByteBuffer entry = ChecksummedEntries.read(log);
+        while (entry != null) {
+            applyEntry(entry, files, bucketFirstKeys);
+            numberOfEntries++;
+            entry = ChecksummedEntries.read(log);
+        }
+        Log.i("Replayed " + numberOfEntries + " entries of write-ahead log " + logFile.getAbsolutePath());
+    }
+
+    private static void applyEntry(ByteBuffer entry, Map<Long, FileInfo> files, List<Long> bucketFirstKeys) {
+        byte type = entry.get();
+        if (type == REWRITE_STARTED) {
+            files.put(entry.getLong(), null);
+        } else if (type == FILE_REWRITTEN) {
+            long firstKey = entry.getLong();
+            int readSize = entry.getInt();
+            int writeSize = entry.getInt();
+            int encoding = entry.getInt();
+            int numberOfLocations = entry.getInt();
+            List<Pair<Long, Integer>> fileLocations = new ArrayList<>(numberOfLocations);
+            for (int i = 0; i < numberOfLocations; i++) {
+                fileLocations.add(new Pair<>(entry.getLong(), entry.getInt()));
+            }
+            int numberOfKeys = entry.hasRemaining() ? entry.getInt() : -1; //not logged by older versions
+            FileInfo fileInfo = new FileInfo(firstKey, readSize, writeSize);
+            fileInfo.fileWasRewritten(fileLocations, readSize, writeSize, encoding, numberOfKeys);
+            files.put(firstKey, fileInfo);
+        } else if (type == FILE_DELETED) {
+            files.remove(entry.getLong());
+        } else if (type == BUCKETS_CHANGED) {
+            int numberOfBuckets = entry.getInt();
+            bucketFirstKeys.clear();
+            for (int i = 0; i < numberOfBuckets; i++) {
+                bucketFirstKeys.add(entry.getLong());
+            }
+        } else {
+            throw new RuntimeException("Unknown entry type " + type + " in write-ahead log");
+        }
+    }
+
+}
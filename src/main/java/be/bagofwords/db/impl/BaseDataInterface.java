@@ -1,6 +1,8 @@
 package be.bagofwords.db.impl;
 
 import be.bagofwords.db.DataInterface;
+import be.bagofwords.db.LongCountCursor;
+import be.bagofwords.db.combinator.LongCombinator;
 import be.bagofwords.db.methods.KeyFilter;
 import be.bagofwords.db.combinator.Combinator;
 import be.bagofwords.iterator.CloseableIterator;
@@ -13,7 +15,9 @@ import be.bagofwords.util.KeyValue;
 import be.bagofwords.util.StreamUtils;
 import be.bagofwords.util.StringUtils;
 
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.stream.Stream;
 
 public abstract class BaseDataInterface<T extends Object> implements DataInterface<T> {
@@ -52,6 +56,31 @@ public abstract class BaseDataInterface<T extends Object> implements DataInterfa
             return result;
     }
 
+    /**
+     * This method can be overwritten in a subclass to improve efficiency
+     */
+
+    @Override
+    public List<T> readMany(long[] keys) {
+        List<T> result = new ArrayList<>(keys.length);
+        for (long key : keys) {
+            result.add(read(key));
+        }
+        return result;
+    }
+
+    @Override
+    public void readCounts(long[] keys, long[] counts) {
+        if (counts.length < keys.length) {
+            throw new IllegalArgumentException("Can not read " + keys.length + " counts into an array of length " + counts.length);
+        }
+        List<T> values = readMany(keys);
+        for (int i = 0; i < keys.length; i++) {
+            Long count = (Long) values.get(i);
+            counts[i] = count == null ? 0 : count;
+        }
+    }
+
     public Class<T> getObjectClass() {
         return objectClass;
     }
@@ -187,6 +216,64 @@ public abstract class BaseDataInterface<T extends Object> implements DataInterfa
         });
     }
 
+    /**
+     * By default this returns {@link #iterator()}, which is only a point-in-time view if no values are written while iterating.
+     * Subclasses that support snapshots should overwrite this method.
+     */
+
+    @Override
+    public CloseableIterator<KeyValue<T>> snapshotIterator() {
+        return iterator();
+    }
+
+    /**
+     * This method can be overwritten in a subclass to improve efficiency
+     */
+
+    @Override
+    public LongCountCursor countCursor() {
+        CloseableIterator<KeyValue<T>> iterator = iterator();
+        return new LongCountCursor() {
+
+            private long key;
+            private long count;
+
+            @Override
+            public boolean next() {
+                if (!iterator.hasNext()) {
+                    return false;
+                }
+                KeyValue<T> next = iterator.next();
+                key = next.getKey();
+                count = (Long) next.getValue();
+                return true;
+            }
+
+            @Override
+            public long getKey() {
+                return key;
+            }
+
+            @Override
+            public long getCount() {
+                return count;
+            }
+
+            @Override
+            public void close() {
+                iterator.close();
+            }
+        };
+    }
+
+    /**
+     * @return true if the values are counts that are added together, these interfaces can read and write counts without boxing them
+     */
+
+    protected boolean countsWithoutBoxing() {
+        return objectClass == Long.class && combinator instanceof LongCombinator;
+    }
+
     /**
      * This method can be overwritten in a subclass to improve efficiency
      */
@@ -248,6 +335,15 @@ public abstract class BaseDataInterface<T extends Object> implements DataInterfa
         write(key, (T) value);
     }
 
+    /**
+     * This method can be overwritten in a subclass to improve efficiency
+     */
+
+    @Override
+    public void increaseCount(long key, long value) {
+        write(key, (T) Long.valueOf(value));
+    }
+
     @Override
     public void increaseCount(String key) {
         increaseCount(key, 1l);
@@ -68,7 +68,7 @@ public abstract class BaseDataInterfaceFactory implements LifeCycleBean, DataInt
         if (config.inMemory) {
             dataInterface = new InMemoryDataInterface<>(name, config.objectClass, config.combinator);
         } else {
-            dataInterface = createBaseDataInterface(name, config.objectClass, config.combinator, config.isTemporary);
+            dataInterface = createBaseDataInterface(name, config);
         }
         setMetaDataStore(dataInterface);
         if (config.cache) {
@@ -96,6 +96,14 @@ public abstract class BaseDataInterfaceFactory implements LifeCycleBean, DataInt
 
     protected abstract <T extends Object> BaseDataInterface<T> createBaseDataInterface(String name, Class<T> objectClass, Combinator<T> combinator, boolean isTemporaryDataInterface);
 
+    /**
+     * This method can be overwritten in a subclass if the backend supports extra options from the config
+     */
+
+    protected <T extends Object> BaseDataInterface<T> createBaseDataInterface(String name, DataInterfaceConfig<T> config) {
+        return createBaseDataInterface(name, config.objectClass, config.combinator, config.isTemporary);
+    }
+
     protected abstract Class<? extends DataInterface> getBaseDataInterfaceClass();
 
     public DataInterface<Long> createCountDataInterface(String name) {
@@ -60,7 +60,28 @@ public class InMemoryDataInterface<T extends Object> extends CoreDataInterface<T
     public CloseableIterator<KeyValue<T>> iterator() {
         //We should probably add locking for this iterator, but do we want to
         //keep all the data locked until it is closed?
-        List<Map.Entry<Long, T>> sortedValues = new ArrayList<>(values.entrySet());
+        return sortedIterator(new ArrayList<>(values.entrySet()));
+    }
+
+    /**
+     * The values are copied while all writes are blocked, the copy is sorted after the writes were unblocked
+     */
+
+    @Override
+    public CloseableIterator<KeyValue<T>> snapshotIterator() {
+        List<Map.Entry<Long, T>> copiedValues = new ArrayList<>(values.size());
+        lock.lockWriteAll();
+        try {
+            for (Map.Entry<Long, T> entry : values.entrySet()) {
+                copiedValues.add(new AbstractMap.SimpleImmutableEntry<>(entry));
+            }
+        } finally {
+            lock.unlockWriteAll();
+        }
+        return sortedIterator(copiedValues);
+    }
+
+    private CloseableIterator<KeyValue<T>> sortedIterator(List<Map.Entry<Long, T>> sortedValues) {
         Collections.sort(sortedValues, (o1, o2) -> Long.compare(o1.getKey(), o2.getKey()));
         final Iterator<Map.Entry<Long, T>> valuesIt = sortedValues.iterator();
         return new CloseableIterator<KeyValue<T>>() {
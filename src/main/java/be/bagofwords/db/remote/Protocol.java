@@ -7,4 +7,6 @@ public class Protocol {
     public static final long LONG_OK = Long.MAX_VALUE - 1;
     public static final long LONG_ERROR = Long.MAX_VALUE - 2;
     public static final long LONG_END = Long.MAX_VALUE - 3;
+    //Clients send larger reads in several requests, so the server can reject lengths that would not fit in memory
+    public static final int MAX_NUMBER_OF_KEYS_PER_READ = 1000000;
 }
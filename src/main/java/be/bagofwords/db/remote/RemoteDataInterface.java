@@ -112,6 +112,32 @@ public class RemoteDataInterface<T> extends BaseDataInterface<T> {
         }
     }
 
+    @Override
+    public List<T> readMany(long[] keys) {
+        Connection connection = null;
+        try {
+            connection = selectLargeReadBufferConnection();
+            List<T> values = new ArrayList<>(keys.length);
+            for (int start = 0; start < keys.length; start += MAX_NUMBER_OF_KEYS_PER_READ) {
+                int end = Math.min(keys.length, start + MAX_NUMBER_OF_KEYS_PER_READ);
+                doAction(Action.READ_VALUES, connection);
+                connection.writeLong(end - start);
+                for (int i = start; i < end; i++) {
+                    connection.writeLong(keys[i]);
+                }
+                connection.flush();
+                for (int i = start; i < end; i++) {
+                    values.add(connection.readValue(getObjectClass()));
+                }
+            }
+            releaseConnection(connection);
+            return values;
+        } catch (Exception e) {
+            dropConnection(connection);
+            throw new RuntimeException(e);
+        }
+    }
+
     @Override
     public boolean mightContain(long key) {
         Connection connection = null;
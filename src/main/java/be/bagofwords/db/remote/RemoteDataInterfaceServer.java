@@ -153,6 +153,8 @@ public class RemoteDataInterfaceServer implements SocketRequestHandlerFactory {
                     handleLastFlush();
                 } else if (action == Action.READ_VALUE) {
                     handleReadValue();
+                } else if (action == Action.READ_VALUES) {
+                    handleReadValues();
                 } else if (action == Action.WRITE_VALUE) {
                     handleWriteValue();
                 } else if (action == Action.ITERATOR) {
@@ -438,6 +440,21 @@ public class RemoteDataInterfaceServer implements SocketRequestHandlerFactory {
             connection.writeValue(value, dataInterface.getObjectClass());
         }
 
+        private void handleReadValues() throws IOException {
+            long numberOfKeys = connection.readLong();
+            if (numberOfKeys < 0 || numberOfKeys > MAX_NUMBER_OF_KEYS_PER_READ) {
+                throw new IOException("Invalid number of keys to read " + numberOfKeys);
+            }
+            long[] keys = new long[(int) numberOfKeys];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = connection.readLong();
+            }
+            List values = dataInterface.readMany(keys);
+            for (Object value : values) {
+                connection.writeValue(value, dataInterface.getObjectClass());
+            }
+        }
+
         private void handleMightContain() throws IOException {
             long key = connection.readLong();
             boolean mightContain = dataInterface.mightContain(key);
@@ -461,7 +478,7 @@ public class RemoteDataInterfaceServer implements SocketRequestHandlerFactory {
     public enum Action {
         READ_VALUE, WRITE_VALUE, ITERATOR_WITH_KEY_ITERATOR, READ_KEYS, WRITE_VALUES, DROP_ALL_DATA, CLOSE_CONNECTION, FLUSH,
         ITERATOR, READ_CACHED_VALUES, APPROXIMATE_SIZE, MIGHT_CONTAIN, EXACT_SIZE, OPTMIZE_FOR_READING,
-        VALUES_ITERATOR_WITH_KEY_FILTER, ITERATOR_WITH_KEY_FILTER, LAST_FLUSH
+        VALUES_ITERATOR_WITH_KEY_FILTER, ITERATOR_WITH_KEY_FILTER, LAST_FLUSH, READ_VALUES
     }
 
     public enum ConnectionType {
@@ -1,5 +1,7 @@
 package be.bagofwords.db;
 
+import be.bagofwords.db.combinator.LongCombinator;
+import be.bagofwords.db.filedb.FileDataInterface;
 import be.bagofwords.db.methods.RangeKeyFilter;
 import be.bagofwords.db.helper.EvenKeysFilter;
 import be.bagofwords.db.helper.TestObject;
@@ -15,6 +17,8 @@ import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
 
 import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
 @RunWith(Parameterized.class)
@@ -156,6 +160,310 @@ public class TestDataInterface extends BaseTestDataInterface {
         }
     }
 
+    @Test
+    public void testLargeDirtyFile() throws Exception {
+        //all keys fall in the same file, which becomes larger than the size that is combined in memory when it is rewritten
+        int numOfKeys = 50000;
+        int numOfWritesPerKey = 20;
+        DataInterface<Long> db = createCountDataInterface("testLargeDirtyFile");
+        db.dropAllData();
+        for (int i = 0; i < numOfWritesPerKey; i++) {
+            db.write(IntStream.range(0, numOfKeys).mapToObj(key -> new KeyValue<>((long) key, 1l)).iterator());
+        }
+        for (int key = 0; key < numOfKeys; key += 3) {
+            db.write(key, null);
+        }
+        db.flush();
+        for (int key = 0; key < numOfKeys; key++) {
+            Assert.assertEquals(key % 3 == 0 ? 0 : numOfWritesPerKey, db.readCount(key));
+        }
+    }
+
+    @Test
+    public void testReadAfterWrite() throws Exception {
+        //values that were appended to a file are combined with its clean part while reading, the file is rewritten in the background
+        int numOfKeys = 1000;
+        DataInterface<Long> db = createCountDataInterface("testReadAfterWrite");
+        db.dropAllData();
+        for (int i = 0; i < 5; i++) {
+            for (int key = 0; key < numOfKeys; key++) {
+                db.write(key, 1l);
+            }
+            db.write(i, null);
+            db.flush();
+            for (int key = 0; key < numOfKeys; key++) {
+                Assert.assertEquals(key == i ? 0 : key < i ? i - key : i + 1, db.readCount(key));
+            }
+        }
+    }
+
+    @Test
+    public void testReadMany() throws Exception {
+        int numOfKeys = 10000;
+        DataInterface<Long> db = createCountDataInterface("testReadMany");
+        db.dropAllData();
+        for (int key = 0; key < numOfKeys; key += 2) {
+            db.write(key * 13l, (long) key);
+        }
+        db.flush();
+        Random random = new Random(1204);
+        long[] keys = new long[numOfKeys];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = random.nextInt(numOfKeys) * 13l; //unsorted, with duplicates and missing keys
+        }
+        List<Long> values = db.readMany(keys);
+        long[] counts = new long[keys.length];
+        db.readCounts(keys, counts);
+        Assert.assertEquals(keys.length, values.size());
+        for (int i = 0; i < keys.length; i++) {
+            Assert.assertEquals(db.read(keys[i]), values.get(i));
+            Assert.assertEquals(db.readCount(keys[i]), counts[i]);
+        }
+    }
+
+    @Test
+    public void testParallelStream() throws Exception {
+        int numOfExamples = 100000;
+        DataInterface<Long> db = createCountDataInterface("testParallelStream");
+        db.dropAllData();
+        db.write(IntStream.range(0, numOfExamples).mapToObj(i -> new KeyValue<>(HashUtils.hashCode(Integer.toString(i)), 1l)).iterator());
+        db.flush();
+        Assert.assertEquals(numOfExamples, db.stream().parallel().count());
+        Assert.assertEquals(numOfExamples, db.streamValues().parallel().mapToLong(Long::longValue).sum());
+        List<Long> keys = db.stream().parallel().map(KeyValue::getKey).collect(Collectors.toList());
+        for (int i = 1; i < keys.size(); i++) {
+            Assert.assertTrue(keys.get(i - 1) < keys.get(i));
+        }
+    }
+
+    @Test
+    public void testSnapshotIterator() throws Exception {
+        int numOfKeys = 10000;
+        DataInterface<Long> db = createCountDataInterface("testSnapshotIterator");
+        db.dropAllData();
+        for (int key = 0; key < numOfKeys; key++) {
+            db.write(key, 1l);
+        }
+        db.flush();
+        CloseableIterator<KeyValue<Long>> it = db.snapshotIterator();
+        //writes and compactions after the snapshot was taken are not visible in the snapshot
+        for (int key = 0; key < numOfKeys; key++) {
+            db.write(key, key % 2 == 0 ? null : 1l);
+            db.write(numOfKeys + key, 1l);
+        }
+        db.flush();
+        db.optimizeForReading();
+        int numOfValues = 0;
+        while (it.hasNext()) {
+            KeyValue<Long> next = it.next();
+            Assert.assertEquals(numOfValues, next.getKey());
+            Assert.assertEquals(1l, next.getValue().longValue());
+            numOfValues++;
+        }
+        it.close();
+        Assert.assertEquals(numOfKeys, numOfValues);
+        Assert.assertEquals(0, db.readCount(0));
+        Assert.assertEquals(2, db.readCount(1));
+    }
+
+    @Test
+    public void testPrimitiveCounts() throws Exception {
+        int numOfKeys = 10000;
+        DataInterface<Long> db = createCountDataInterface("testPrimitiveCounts");
+        db.dropAllData();
+        for (int i = 0; i < 3; i++) {
+            for (int key = 0; key < numOfKeys; key++) {
+                db.increaseCount(key, 2l);
+            }
+        }
+        for (int key = 0; key < numOfKeys; key += 5) {
+            db.remove(key);
+            db.increaseCount(key, 1l);
+        }
+        db.flush();
+        for (int key = 0; key < numOfKeys; key++) {
+            Assert.assertEquals(key % 5 == 0 ? 1 : 6, db.readCount(key));
+        }
+        int numOfCounts = 0;
+        try (LongCountCursor cursor = db.countCursor()) {
+            while (cursor.next()) {
+                Assert.assertEquals(numOfCounts, cursor.getKey());
+                Assert.assertEquals(numOfCounts % 5 == 0 ? 1 : 6, cursor.getCount());
+                numOfCounts++;
+            }
+        }
+        Assert.assertEquals(numOfKeys, numOfCounts);
+        long[] keys = new long[numOfKeys];
+        for (int i = 0; i < numOfKeys; i++) {
+            keys[i] = numOfKeys - i; //not sorted, the first key has no count
+        }
+        long[] counts = new long[numOfKeys];
+        db.readCounts(keys, counts);
+        for (int i = 0; i < numOfKeys; i++) {
+            Assert.assertEquals(keys[i] == numOfKeys ? 0 : keys[i] % 5 == 0 ? 1 : 6, counts[i]);
+        }
+        //a cursor that is closed before its end does not return any more counts
+        LongCountCursor cursor = db.countCursor();
+        Assert.assertTrue(cursor.next());
+        cursor.close();
+        Assert.assertFalse(cursor.next());
+    }
+
+    @Test
+    public void testConcurrentReadsDuringWrites() throws Exception {
+        int numOfKeys = 10000;
+        int numOfRounds = 20;
+        DataInterface<Long> db = createCountDataInterface("testConcurrentReadsDuringWrites");
+        db.dropAllData();
+        for (int key = 0; key < numOfKeys; key++) {
+            db.increaseCount(key, 1l);
+        }
+        db.flush();
+        db.readCount(0);
+        List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+        AtomicBoolean writesFinished = new AtomicBoolean(false);
+        List<Thread> readers = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            Random random = new Random(i);
+            Thread reader = new Thread(() -> {
+                try {
+                    while (!writesFinished.get()) {
+                        long count = db.readCount(random.nextInt(numOfKeys));
+                        if (count < 1 || count > 1 + numOfRounds) {
+                            throw new RuntimeException("Read unexpected count " + count);
+                        }
+                    }
+                } catch (Throwable exp) {
+                    errors.add(exp);
+                }
+            });
+            reader.start();
+            readers.add(reader);
+        }
+        for (int round = 0; round < numOfRounds; round++) {
+            for (int key = 0; key < numOfKeys; key += 7) {
+                db.increaseCount(key, 1l);
+            }
+            db.flush();
+        }
+        writesFinished.set(true);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        Assert.assertTrue(errors.toString(), errors.isEmpty());
+        for (int key = 0; key < numOfKeys; key++) {
+            Assert.assertEquals(key % 7 == 0 ? 1 + numOfRounds : 1, db.readCount(key));
+        }
+    }
+
+    @Test
+    public void testConcurrentWrites() throws Exception {
+        int numOfKeys = 10000;
+        int numOfWriters = 8;
+        DataInterface<Long> db = createCountDataInterface("testConcurrentWrites");
+        db.dropAllData();
+        List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+        List<Thread> writers = new ArrayList<>();
+        for (int i = 0; i < numOfWriters; i++) {
+            int offset = i;
+            Thread writer = new Thread(() -> {
+                try {
+                    for (int key = 0; key < numOfKeys; key++) {
+                        db.increaseCount((key + offset * 997) % numOfKeys, 1l);
+                    }
+                } catch (Throwable exp) {
+                    errors.add(exp);
+                }
+            });
+            writer.start();
+            writers.add(writer);
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        Assert.assertTrue(errors.toString(), errors.isEmpty());
+        db.flush();
+        for (int key = 0; key < numOfKeys; key++) {
+            Assert.assertEquals(numOfWriters, db.readCount(key));
+        }
+    }
+
+    @Test
+    public void testReopen() throws Exception {
+        //buckets of a reopened data interface are only checked against the files on disk when they are used
+        int numOfExamples = 10000;
+        String name = "testReopen_" + System.currentTimeMillis();
+        DataInterface<Long> db = dataInterfaceFactory.dataInterface(name, Long.class).combinator(new LongCombinator()).caching(type).create();
+        db.dropAllData();
+        for (int i = 0; i < numOfExamples; i++) {
+            db.write(i * 31l, (long) i);
+        }
+        db.close();
+        db = dataInterfaceFactory.dataInterface(name, Long.class).combinator(new LongCombinator()).caching(type).create();
+        for (int i = 0; i < numOfExamples; i++) {
+            Assert.assertEquals(i, db.readCount(i * 31l));
+        }
+        db.write(31l, 1l);
+        db.flush();
+        Assert.assertEquals(2, db.readCount(31l));
+    }
+
+    @Test
+    public void testRebalanceBuckets() throws Exception {
+        //sequential keys all fall in the same bucket, which is split once it has several files and receives most of the writes. The
+        //other buckets receive enough writes to not be merged in the same pass.
+        int numOfSequentialKeys = 1000000;
+        int numOfKeysInOtherBuckets = 5000;
+        String name = "testRebalanceBuckets_" + System.currentTimeMillis();
+        BaseDataInterface<Long> db = dataInterfaceFactory.dataInterface(name, Long.class).combinator(new LongCombinator()).caching(type).create();
+        db.dropAllData();
+        List<Long> keys = new ArrayList<>();
+        for (long key = 0; key < numOfSequentialKeys; key++) {
+            keys.add(key);
+        }
+        for (long bucket = -32; bucket < 32; bucket++) {
+            for (long key = 1; bucket != 0 && key <= numOfKeysInOtherBuckets; key++) {
+                keys.add((bucket << 58) + key);
+            }
+        }
+        db.write(keys.stream().map(key -> new KeyValue<>(key, key)).iterator());
+        db.flush();
+        db.optimizeForReading();
+        FileDataInterface<Long> fileDb = (FileDataInterface<Long>) db.getCoreDataInterface();
+        int numOfBucketsBeforeSplit = fileDb.getNumberOfBuckets();
+        fileDb.rebalanceBuckets();
+        int numOfBucketsAfterSplit = fileDb.getNumberOfBuckets();
+        Assert.assertTrue(numOfBucketsAfterSplit > numOfBucketsBeforeSplit);
+        assertValuesAreKeys(db, keys);
+        db.close();
+        db = dataInterfaceFactory.dataInterface(name, Long.class).combinator(new LongCombinator()).caching(type).create();
+        fileDb = (FileDataInterface<Long>) db.getCoreDataInterface();
+        Assert.assertEquals(numOfBucketsAfterSplit, fileDb.getNumberOfBuckets());
+        assertValuesAreKeys(db, keys);
+        //no writes since the data interface was opened, so buckets are merged again
+        fileDb.rebalanceBuckets();
+        Assert.assertTrue(fileDb.getNumberOfBuckets() < numOfBucketsAfterSplit);
+        assertValuesAreKeys(db, keys);
+        db.close();
+        db = dataInterfaceFactory.dataInterface(name, Long.class).combinator(new LongCombinator()).caching(type).create();
+        assertValuesAreKeys(db, keys);
+    }
+
+    private void assertValuesAreKeys(DataInterface<Long> db, List<Long> keys) {
+        CloseableIterator<KeyValue<Long>> it = db.iterator();
+        int numOfValues = 0;
+        while (it.hasNext()) {
+            KeyValue<Long> next = it.next();
+            Assert.assertEquals(next.getKey(), next.getValue().longValue());
+            numOfValues++;
+        }
+        it.close();
+        Assert.assertEquals(keys.size(), numOfValues);
+        for (int i = 0; i < keys.size(); i += 997) {
+            Assert.assertEquals(keys.get(i).longValue(), db.readCount(keys.get(i)));
+        }
+    }
+
     @Test
     public void testApproximateSize() throws Exception {
         int numOfExamples = 1000;
@@ -172,6 +480,30 @@ public class TestDataInterface extends BaseTestDataInterface {
         Assert.assertTrue(apprSize < 10000);
     }
 
+    @Test
+    public void testExactSize() throws Exception {
+        int numOfExamples = 10000;
+        String name = "testExactSize_" + System.currentTimeMillis();
+        DataInterface<Long> db = dataInterfaceFactory.dataInterface(name, Long.class).combinator(new LongCombinator()).caching(type).create();
+        db.dropAllData();
+        for (int i = 0; i < numOfExamples; i++) {
+            db.write(i * 31l, 1l);
+        }
+        db.flush();
+        Assert.assertEquals(numOfExamples, db.exactSize());
+        Assert.assertEquals(numOfExamples, db.apprSize());
+        for (int i = 0; i < numOfExamples; i += 2) {
+            db.remove(i * 31l);
+        }
+        db.flush();
+        Assert.assertEquals(numOfExamples / 2, db.exactSize());
+        db.close();
+        //the number of keys of every file is read from the meta information
+        db = dataInterfaceFactory.dataInterface(name, Long.class).combinator(new LongCombinator()).caching(type).create();
+        Assert.assertEquals(numOfExamples / 2, db.exactSize());
+        Assert.assertEquals(numOfExamples / 2, db.apprSize());
+    }
+
     @Test
     public void testReadValuesWithIterator() throws Exception {
         int numOfExamples = 100;
@@ -391,6 +723,21 @@ public class TestDataInterface extends BaseTestDataInterface {
         Assert.assertEquals(numOfItems / 2, numOfValuesRead.intValue());
     }
 
+    @Test
+    public void testNarrowRangeFilter() {
+        //the range covers a few blocks in the middle of a file
+        DataInterface<Long> dataInterface = createCountDataInterface("testNarrowRangeFilter");
+        dataInterface.dropAllData();
+        int numOfItems = 100000;
+        dataInterface.write(IntStream.range(0, numOfItems).mapToObj(i -> new KeyValue<>((long) i * 3, (long) i)).iterator());
+        dataInterface.flush();
+        List<Long> values = dataInterface.streamValues(new RangeKeyFilter(30001, 33001)).collect(Collectors.toList());
+        Assert.assertEquals(1000, values.size());
+        for (int i = 0; i < values.size(); i++) {
+            Assert.assertEquals(10001 + i, values.get(i).longValue());
+        }
+    }
+
     private boolean findValue(DataInterface<Long> dataInterface, long key, Long targetValue) {
         long started = System.currentTimeMillis();
         boolean foundValue = false;
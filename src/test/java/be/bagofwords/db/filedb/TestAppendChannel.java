@@ -0,0 +1,64 @@
+package be.bagofwords.db.filedb;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class TestAppendChannel {
+
+    @Test
+    public void testAppendedRecordsAreWrittenBeforeWaitReturns() throws Exception {
+        File file = Files.createTempFile("testAppendChannel", ".data").toFile();
+        file.deleteOnExit();
+        AppendChannelPool pool = new AppendChannelPool(1, 0);
+        AppendChannel channel = new AppendChannel(file, pool);
+        int numberOfThreads = 4;
+        int recordsPerThread = 1000;
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < numberOfThreads; i++) {
+            long thread = i;
+            threads.add(new Thread(() -> {
+                try {
+                    for (int j = 0; j < recordsPerThread; j++) {
+                        long endOfRecord = channel.append(thread, j);
+                        channel.waitUntilWritten(endOfRecord);
+                        //without a buffer, the record is in the file once the wait returns
+                        Assert.assertTrue(file.length() >= endOfRecord);
+                    }
+                } catch (Exception | AssertionError exp) {
+                    failure.set(new Exception(exp));
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertNull(failure.get());
+        Assert.assertEquals(numberOfThreads * recordsPerThread * 16, file.length());
+        //the records of every thread are in the file, in the order in which that thread appended them
+        byte[] contents = new byte[(int) file.length()];
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            raf.readFully(contents);
+        }
+        ByteBuffer records = ByteBuffer.wrap(contents);
+        long[] nextValues = new long[numberOfThreads];
+        while (records.hasRemaining()) {
+            int thread = (int) records.getLong();
+            Assert.assertEquals(nextValues[thread]++, records.getLong());
+        }
+        channel.close();
+        Assert.assertEquals(0, pool.getNumberOfOpenChannels());
+    }
+
+}
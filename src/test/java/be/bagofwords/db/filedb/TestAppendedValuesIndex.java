@@ -0,0 +1,33 @@
+package be.bagofwords.db.filedb;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+public class TestAppendedValuesIndex {
+
+    @Test
+    public void testRunsAreSortedOnKey() {
+        long[] keys = {5, 3, 5, 1, 3, 5, 2};
+        ByteBuffer records = ByteBuffer.allocate(keys.length * (8 + 8));
+        for (int i = 0; i < keys.length; i++) {
+            records.putLong(keys[i]);
+            records.putLong(i);
+        }
+        AppendedValuesIndex index = new AppendedValuesIndex(0, 8).withAppendedRecords(records.array());
+        AppendedValuesIndex.Run run = index.getRuns().get(0);
+        Assert.assertEquals(keys.length, run.size());
+        for (int i = 1; i < run.size(); i++) {
+            Assert.assertTrue(run.getKey(i - 1) <= run.getKey(i));
+        }
+        //values with the same key stay in the order in which they were appended
+        int first = run.firstIndexOf(5);
+        Assert.assertEquals(0, run.getRecords().getLong(run.getValuePosition(first)));
+        Assert.assertEquals(2, run.getRecords().getLong(run.getValuePosition(first + 1)));
+        Assert.assertEquals(5, run.getRecords().getLong(run.getValuePosition(first + 2)));
+        Assert.assertEquals(-1, run.firstIndexOf(4));
+        Assert.assertEquals(records.capacity() + keys.length * (8 + 4), index.getMemoryUsage());
+    }
+
+}
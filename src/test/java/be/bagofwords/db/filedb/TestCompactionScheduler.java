@@ -0,0 +1,74 @@
+package be.bagofwords.db.filedb;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class TestCompactionScheduler {
+
+    @Test
+    public void testThrottledCompactions() throws Exception {
+        int numberOfBuckets = 6;
+        int chunksPerCompaction = 4;
+        long maxBytesPerSecond = 1024 * 1024;
+        List<Long> startTimes = Collections.synchronizedList(new ArrayList<>());
+        List<Long> endTimes = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch allCompacted = new CountDownLatch(numberOfBuckets);
+        CompactionScheduler.Compaction compaction = (bucket, forceClean, ioBudget) -> {
+            startTimes.add(System.nanoTime());
+            for (int i = 0; i < chunksPerCompaction; i++) {
+                ioBudget.use(CompactionScheduler.IOBudget.CHUNK_SIZE, true);
+            }
+            endTimes.add(System.nanoTime());
+            allCompacted.countDown();
+        };
+        //the compactions of two data interfaces share the budget
+        CompactionScheduler.Compaction otherCompaction = (bucket, forceClean, ioBudget) -> compaction.compact(bucket, forceClean, ioBudget);
+        CompactionScheduler scheduler = new CompactionScheduler("testThrottledCompactions", 2, maxBytesPerSecond);
+        for (int i = 0; i < numberOfBuckets; i++) {
+            scheduler.schedule(i % 2 == 0 ? compaction : otherCompaction, new FileBucket(i, i), 1);
+        }
+        Assert.assertTrue(allCompacted.await(10, TimeUnit.SECONDS));
+        scheduler.close();
+        //every chunk has to wait until the bytes of the previous chunks fit in the budget
+        long minimumTime = numberOfBuckets * chunksPerCompaction * CompactionScheduler.IOBudget.CHUNK_SIZE * 1000000000L / maxBytesPerSecond;
+        Assert.assertTrue(Collections.max(endTimes) - Collections.min(startTimes) >= minimumTime);
+    }
+
+    @Test
+    public void testThreadsAreStartedLazily() throws Exception {
+        CompactionScheduler scheduler = new CompactionScheduler("testThreadsAreStartedLazily", 4, -1);
+        Assert.assertEquals(0, scheduler.getNumberOfThreads());
+        scheduler.compactNow((bucket, forceClean, ioBudget) -> {
+        }, Collections.singletonList(new FileBucket(0, 0)));
+        Assert.assertEquals(1, scheduler.getNumberOfThreads());
+        scheduler.close();
+    }
+
+    @Test
+    public void testFailedCompactionsAreReported() throws Exception {
+        CompactionScheduler scheduler = new CompactionScheduler("testFailedCompactionsAreReported", 2, -1);
+        CompactionScheduler.Compaction compaction = (bucket, forceClean, ioBudget) -> {
+            if (forceClean && bucket.getFirstKey() == 1) {
+                throw new RuntimeException("Failed to compact bucket " + bucket);
+            }
+        };
+        boolean failureWasReported = false;
+        try {
+            scheduler.compactNow(compaction, Arrays.asList(new FileBucket(0, 0), new FileBucket(1, 1)));
+        } catch (RuntimeException exp) {
+            failureWasReported = true;
+        }
+        Assert.assertTrue(failureWasReported);
+        //the scheduler can still be used after a failure
+        scheduler.compactNow(compaction, Collections.singletonList(new FileBucket(0, 0)));
+        scheduler.close();
+    }
+
+}
@@ -0,0 +1,58 @@
+package be.bagofwords.db.filedb;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestFileContentsCache {
+
+    @Test
+    public void testEvictColdFiles() {
+        FileContentsCache cache = new FileContentsCache(1000);
+        FileInfo[] files = new FileInfo[4];
+        for (int i = 0; i < files.length; i++) {
+            files[i] = new FileInfo(i, 100, 100);
+            cache.add(files[i], new byte[100]);
+        }
+        for (int i = 0; i < 5; i++) {
+            cache.registerHit(files[0]);
+        }
+        //every file was read since it was added, the first sweep of the clock only decreases the usage counts
+        long bytesReleased = cache.evictColdFiles(200);
+        Assert.assertEquals(200, bytesReleased);
+        Assert.assertEquals(200, cache.getCurrentSize());
+        Assert.assertNotNull(files[0].getCachedFileContents());
+        Assert.assertEquals(0, cache.evictColdFiles(200));
+        cache.evictColdFiles(0);
+        Assert.assertEquals(0, cache.getCurrentSize());
+        Assert.assertNull(files[0].getCachedFileContents());
+    }
+
+    @Test
+    public void testRemovedFilesFreeTheirSlot() {
+        FileContentsCache cache = new FileContentsCache(1000);
+        FileInfo[] files = new FileInfo[6];
+        for (int i = 0; i < 4; i++) {
+            files[i] = new FileInfo(i, 100, 100);
+            cache.add(files[i], new byte[100]);
+        }
+        Assert.assertEquals(100, cache.remove(files[1]));
+        Assert.assertEquals(0, cache.remove(files[1]));
+        Assert.assertEquals(-1, files[1].getCacheSlot());
+        //the slot of the removed file is reused
+        files[4] = new FileInfo(4, 100, 100);
+        cache.add(files[4], new byte[100]);
+        Assert.assertEquals(1, files[4].getCacheSlot());
+        files[5] = new FileInfo(5, 100, 100);
+        cache.add(files[5], new byte[100]);
+        Assert.assertEquals(4, files[5].getCacheSlot());
+        Assert.assertEquals(500, cache.getCurrentSize());
+        cache.remove(files[2]);
+        Assert.assertEquals(400, cache.evictColdFiles(0));
+        Assert.assertEquals(0, cache.getCurrentSize());
+        for (FileInfo file : files) {
+            Assert.assertNull(file.getCachedFileContents());
+            Assert.assertEquals(-1, file.getCacheSlot());
+        }
+    }
+
+}
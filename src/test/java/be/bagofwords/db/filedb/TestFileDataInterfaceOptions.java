@@ -0,0 +1,279 @@
+package be.bagofwords.db.filedb;
+
+import be.bagofwords.db.BaseTestDataInterface;
+import be.bagofwords.db.DataInterface;
+import be.bagofwords.db.DatabaseBackendType;
+import be.bagofwords.db.DatabaseCachingType;
+import be.bagofwords.db.combinator.LongCombinator;
+import be.bagofwords.iterator.CloseableIterator;
+import be.bagofwords.util.KeyValue;
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+@RunWith(Parameterized.class)
+public class TestFileDataInterfaceOptions extends BaseTestDataInterface {
+
+    private static final int NUM_OF_EXAMPLES = 10000;
+
+    public TestFileDataInterfaceOptions(DatabaseCachingType type, DatabaseBackendType backendType) throws Exception {
+        super(type, backendType);
+    }
+
+    @Test
+    public void testMemoryMappedFiles() {
+        DataInterface<Long> db = createCountDataInterface("testMemoryMappedFiles", new FileDataInterfaceOptions().memoryMapFiles());
+        writeCounts(db);
+        db.optimizeForReading();
+        assertCountsAreReadCorrectly(db);
+        List<FileInfo> files = getFilesWithKeys(db);
+        Assert.assertFalse(files.isEmpty());
+        for (FileInfo file : files) {
+            Assert.assertNotNull(file.getMappedFileContents());
+            Assert.assertNull(file.getCachedFileContents());
+        }
+        Assert.assertEquals(0, getFileDataInterface(db).getFileContentsCache().getCurrentSize());
+    }
+
+    @Test
+    public void testSmallFileContentsCache() {
+        int maxSizeOfCache = 10 * 1024;
+        DataInterface<Long> db = createCountDataInterface("testSmallFileContentsCache", new FileDataInterfaceOptions().maxSizeOfCachedFileContents(maxSizeOfCache));
+        db.dropAllData();
+        //spread the keys over the buckets, every file fits in the cache but all files together don't
+        long keySpacing = Long.MAX_VALUE / NUM_OF_EXAMPLES;
+        for (int i = 0; i < NUM_OF_EXAMPLES; i++) {
+            db.write(i * keySpacing, (long) i + 1);
+        }
+        db.optimizeForReading();
+        for (int i = 0; i < NUM_OF_EXAMPLES; i++) {
+            Assert.assertEquals(i + 1, db.readCount(i * keySpacing));
+        }
+        FileContentsCache cache = getFileDataInterface(db).getFileContentsCache();
+        Assert.assertTrue(cache.getNumberOfHits() > 0);
+        Assert.assertTrue(cache.getNumberOfEvictions() > 0);
+        Assert.assertTrue(cache.getCurrentSize() > 0);
+        Assert.assertTrue(cache.getCurrentSize() <= maxSizeOfCache);
+    }
+
+    @Test
+    public void testCompressedFiles() {
+        assertFilesAreEncodedAfterReopen("testCompressedFiles", new FileDataInterfaceOptions().compressFiles(), BlockCodec.SNAPPY);
+    }
+
+    @Test
+    public void testDeltaEncodedKeys() {
+        assertFilesAreEncodedAfterReopen("testDeltaEncodedKeys", new FileDataInterfaceOptions().deltaEncodeKeys(), BlockCodec.DELTA_KEYS);
+    }
+
+    @Test
+    public void testCompactValues() {
+        assertFilesAreEncodedAfterReopen("testCompactValues", new FileDataInterfaceOptions().deltaEncodeKeys().compactValues(), BlockCodec.DELTA_KEYS | BlockCodec.COMPACT_VALUES);
+    }
+
+    @Test
+    public void testColumnarLayout() {
+        assertFilesAreEncodedAfterReopen("testColumnarLayout", new FileDataInterfaceOptions().columnarLayout(), BlockCodec.COLUMNAR);
+    }
+
+    @Test
+    public void testBloomFilters() {
+        //without cache every read of a block is a miss, so the misses count the reads from disk
+        DataInterface<Long> db = createCountDataInterface("testBloomFilters", new FileDataInterfaceOptions().bloomFilters().maxSizeOfCachedFileContents(0));
+        writeCounts(db);
+        db.optimizeForReading();
+        for (FileInfo file : getFilesWithKeys(db)) {
+            Assert.assertNotNull(file.getBloomFilter());
+        }
+        FileContentsCache cache = getFileDataInterface(db).getFileContentsCache();
+        long missesBefore = cache.getNumberOfMisses();
+        for (int i = 0; i < NUM_OF_EXAMPLES; i++) {
+            Assert.assertEquals(0, db.readCount(i * 31l + 1));
+        }
+        long readsOfAbsentKeys = cache.getNumberOfMisses() - missesBefore;
+        Assert.assertTrue(readsOfAbsentKeys < NUM_OF_EXAMPLES / 20);
+        assertCountsAreReadCorrectly(db);
+    }
+
+    @Test
+    public void testSmallIndexBudget() {
+        int maxSizeOfIndexes = 1024;
+        DataInterface<Long> db = createCountDataInterface("testSmallIndexBudget", new FileDataInterfaceOptions().sizeOfBlocks(64).maxSizeOfIndexes(maxSizeOfIndexes));
+        writeCounts(db);
+        db.optimizeForReading();
+        getFileDataInterface(db).enforceIndexBudget();
+        long sizeOfIndexes = 0;
+        for (FileBucket bucket : getFileDataInterface(db).getFileBuckets()) {
+            for (FileInfo file : bucket.getFiles()) {
+                sizeOfIndexes += file.getFileLocationsKeys().length * (8 + 4);
+            }
+        }
+        Assert.assertTrue(sizeOfIndexes <= maxSizeOfIndexes);
+        //blocks of thinned indexes span several of the original blocks
+        assertCountsAreReadCorrectly(db);
+    }
+
+    @Test
+    public void testAppendBuffers() {
+        DataInterface<Long> db = createCountDataInterface("testAppendBuffers", new FileDataInterfaceOptions().appendBufferSize(64 * 1024));
+        db.dropAllData();
+        for (int i = 0; i < 1000; i++) {
+            db.write(i * 7l, 1l);
+        }
+        //values that are still in an append buffer should be visible without flushing the data interface
+        for (int i = 0; i < 1000; i++) {
+            Assert.assertEquals(1, db.readCount(i * 7l));
+        }
+        writeCounts(db);
+        assertCountsAreReadCorrectly(db);
+    }
+
+    @Test
+    public void testAppendedValuesIndexes() {
+        DataInterface<Long> db = createCountDataInterface("testAppendedValuesIndexes", new FileDataInterfaceOptions());
+        writeCounts(db);
+        db.optimizeForReading();
+        FileDataInterface<Long> fileDataInterface = getFileDataInterface(db);
+        //a point read of a dirty file indexes the appended values instead of rewriting the file
+        long key = 31l * (NUM_OF_EXAMPLES / 2);
+        long count = db.readCount(key);
+        fileDataInterface.increaseCount(key, 1);
+        Assert.assertEquals(count + 1, fileDataInterface.readCount(key));
+        FileInfo file = getFilesWithKeys(db).stream().filter(candidate -> candidate.getAppendedValuesIndex() != null).findFirst().get();
+        Assert.assertTrue(fileDataInterface.getMemoryUsage() >= file.getAppendedValuesIndex().getMemoryUsage());
+        fileDataInterface.freeMemory();
+        Assert.assertNull(file.getAppendedValuesIndex());
+        Assert.assertEquals(count + 1, fileDataInterface.readCount(key));
+    }
+
+    @Test
+    public void testRecoveryFromWriteAheadLog() throws Exception {
+        FileDataInterfaceOptions options = new FileDataInterfaceOptions().writeAheadLog();
+        String name = "testRecoveryFromWriteAheadLog_" + System.currentTimeMillis();
+        DataInterface<Long> db = openCountDataInterface(name, options);
+        writeCounts(db);
+        db.optimizeForReading(); //writes a checkpoint
+        //after the checkpoint values are appended and a bucket is rewritten, these changes are only found in the files and in the log
+        FileDataInterface<Long> fileDataInterface = getFileDataInterface(db);
+        for (int i = 0; i < NUM_OF_EXAMPLES; i += 10) {
+            fileDataInterface.increaseCount(i * 31l, 1000);
+        }
+        for (FileBucket bucket : fileDataInterface.getFileBuckets()) {
+            fileDataInterface.rewriteBucket(bucket, true, CompactionScheduler.IOBudget.UNLIMITED);
+        }
+        for (int i = 0; i < NUM_OF_EXAMPLES; i += 20) {
+            fileDataInterface.increaseCount(i * 31l, 1);
+        }
+        //the copy is what a crash leaves on disk: the data interface was not closed, so the manifest was not written
+        File directory = fileDataInterface.getDirectory();
+        FileUtils.copyDirectory(directory, new File(directory.getParentFile(), name + "_crashed"));
+        DataInterface<Long> recoveredDb = openCountDataInterface(name + "_crashed", options);
+        Random random = new Random(42);
+        for (int i = 0; i < NUM_OF_EXAMPLES; i++) {
+            long expectedCount = random.nextInt(1000) + 1 + (i % 10 == 0 ? 1000 : 0) + (i % 20 == 0 ? 1 : 0);
+            Assert.assertEquals(expectedCount, recoveredDb.readCount(i * 31l));
+        }
+        //the files are known from the checkpoint and the log, none of them had to be reconstructed from its contents
+        Assert.assertEquals(0, getFileDataInterface(recoveredDb).getNumberOfReconstructedFiles());
+        Assert.assertEquals(NUM_OF_EXAMPLES, recoveredDb.exactSize());
+    }
+
+    @Test
+    public void testFilesMissingFromMetaInformation() throws Exception {
+        String name = "testFilesMissingFromMetaInformation_" + System.currentTimeMillis();
+        DataInterface<Long> db = openCountDataInterface(name, new FileDataInterfaceOptions());
+        writeCounts(db);
+        db.optimizeForReading();
+        File directory = getFileDataInterface(db).getDirectory();
+        db.close();
+        //a file in the range of a bucket that is not in the meta information, e.g. because it was written after the last checkpoint
+        long keyInMissingFile = 31l * (NUM_OF_EXAMPLES / 2) + 1;
+        try (DataOutputStream dos = new DataOutputStream(new FileOutputStream(new File(directory, Long.toString(keyInMissingFile))))) {
+            dos.writeLong(keyInMissingFile);
+            dos.writeLong(5);
+        }
+        db = openCountDataInterface(name, new FileDataInterfaceOptions());
+        Assert.assertEquals(5, db.readCount(keyInMissingFile));
+        Assert.assertTrue(getFileDataInterface(db).getNumberOfReconstructedFiles() > 0);
+    }
+
+    private DataInterface<Long> createCountDataInterface(String name, FileDataInterfaceOptions options) {
+        return openCountDataInterface(name + "_" + System.currentTimeMillis(), options);
+    }
+
+    private DataInterface<Long> openCountDataInterface(String name, FileDataInterfaceOptions options) {
+        return dataInterfaceFactory.dataInterface(name, Long.class).combinator(new LongCombinator()).caching(type).fileOptions(options).create();
+    }
+
+    /**
+     * The encoding of the clean files is kept in the meta information, so after reopening the data interface all files should still
+     * be read with the encoding they were written with
+     */
+
+    private void assertFilesAreEncodedAfterReopen(String name, FileDataInterfaceOptions options, int expectedEncoding) {
+        String nameWithTime = name + "_" + System.currentTimeMillis();
+        DataInterface<Long> db = openCountDataInterface(nameWithTime, options);
+        writeCounts(db);
+        db.optimizeForReading();
+        db.close();
+        db = openCountDataInterface(nameWithTime, options);
+        assertCountsAreReadCorrectly(db);
+        List<FileInfo> files = getFilesWithKeys(db);
+        Assert.assertFalse(files.isEmpty());
+        for (FileInfo file : files) {
+            Assert.assertEquals(expectedEncoding, file.getEncoding());
+        }
+    }
+
+    private FileDataInterface<Long> getFileDataInterface(DataInterface<Long> db) {
+        return (FileDataInterface<Long>) db.getCoreDataInterface();
+    }
+
+    private List<FileInfo> getFilesWithKeys(DataInterface<Long> db) {
+        List<FileInfo> result = new ArrayList<>();
+        for (FileBucket bucket : getFileDataInterface(db).getFileBuckets()) {
+            for (FileInfo file : bucket.getFiles()) {
+                if (file.getNumberOfKeys() > 0) {
+                    result.add(file);
+                }
+            }
+        }
+        return result;
+    }
+
+    private void writeCounts(DataInterface<Long> db) {
+        db.dropAllData();
+        Random random = new Random(42);
+        for (int i = 0; i < NUM_OF_EXAMPLES; i++) {
+            db.write(i * 31l, (long) random.nextInt(1000) + 1);
+        }
+        db.flush();
+    }
+
+    private void assertCountsAreReadCorrectly(DataInterface<Long> db) {
+        Random random = new Random(42);
+        for (int i = 0; i < NUM_OF_EXAMPLES; i++) {
+            Assert.assertEquals((long) random.nextInt(1000) + 1, db.readCount(i * 31l));
+            Assert.assertEquals(0, db.readCount(i * 31l + 1));
+        }
+        CloseableIterator<KeyValue<Long>> iterator = db.iterator();
+        int numOfValuesRead = 0;
+        while (iterator.hasNext()) {
+            KeyValue<Long> next = iterator.next();
+            Assert.assertEquals(numOfValuesRead * 31l, next.getKey());
+            numOfValuesRead++;
+        }
+        iterator.close();
+        Assert.assertEquals(NUM_OF_EXAMPLES, numOfValuesRead);
+    }
+
+}
@@ -0,0 +1,40 @@
+package be.bagofwords.db.filedb;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.stream.LongStream;
+
+public class TestKeySearch {
+
+    @Test
+    public void testUniformKeys() {
+        Random random = new Random(1204);
+        long[] keys = LongStream.generate(random::nextLong).limit(10000).sorted().distinct().toArray();
+        Assert.assertTrue(KeySearch.isCloseToUniform(keys));
+        assertSameResultAsBinarySearch(keys, random);
+    }
+
+    @Test
+    public void testSkewedKeys() {
+        Random random = new Random(1204);
+        long[] keys = LongStream.generate(() -> random.nextInt(1000) * (long) random.nextInt(1000) * random.nextInt(1000)).limit(10000).sorted().distinct().toArray();
+        Assert.assertFalse(KeySearch.isCloseToUniform(keys));
+        assertSameResultAsBinarySearch(keys, random);
+    }
+
+    private void assertSameResultAsBinarySearch(long[] keys, Random random) {
+        for (long key : keys) {
+            Assert.assertEquals(Arrays.binarySearch(keys, key), KeySearch.search(keys, key));
+        }
+        for (int i = 0; i < 10000; i++) {
+            long key = random.nextLong();
+            Assert.assertEquals(Arrays.binarySearch(keys, key), KeySearch.search(keys, key));
+        }
+        for (long key : new long[]{Long.MIN_VALUE, Long.MAX_VALUE, keys[0] - 1, keys[keys.length - 1] + 1}) {
+            Assert.assertEquals(Arrays.binarySearch(keys, key), KeySearch.search(keys, key));
+        }
+    }
+}
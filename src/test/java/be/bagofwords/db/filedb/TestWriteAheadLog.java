@@ -0,0 +1,47 @@
+package be.bagofwords.db.filedb;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class TestWriteAheadLog {
+
+    @Test
+    public void testChangesDuringCheckpointAreKept() throws Exception {
+        File directory = Files.createTempDirectory("testWriteAheadLog").toFile();
+        File logFile = new File(directory, "WAL");
+        WriteAheadLog log = new WriteAheadLog(logFile, WalSyncPolicy.NEVER);
+        log.logBucketsChanged(Arrays.asList(new FileBucket(Long.MIN_VALUE, -1), new FileBucket(0, Long.MAX_VALUE)));
+        log.logRewriteStarted(10);
+        long sizeAtStartOfCheckpoint = log.getSize();
+        //a file is rewritten while the buckets are serialized
+        log.logRewriteStarted(20);
+        log.checkpointWasWritten(sizeAtStartOfCheckpoint);
+        log.logFileDeleted(30);
+        log.close();
+
+        Map<Long, FileInfo> files = new HashMap<>();
+        files.put(30l, new FileInfo(30, 0, 0));
+        List<Long> bucketFirstKeys = new ArrayList<>(Arrays.asList(Long.MIN_VALUE));
+        WriteAheadLog.replay(logFile, files, bucketFirstKeys);
+        Assert.assertFalse(files.containsKey(10l)); //logged before the checkpoint
+        Assert.assertTrue(files.containsKey(20l));
+        Assert.assertNull(files.get(20l));
+        Assert.assertFalse(files.containsKey(30l));
+        Assert.assertEquals(Arrays.asList(Long.MIN_VALUE), bucketFirstKeys);
+
+        log = new WriteAheadLog(logFile, WalSyncPolicy.NEVER);
+        log.logRewriteStarted(40);
+        log.checkpointWasWritten(log.getSize());
+        Assert.assertEquals(0, log.getSize());
+        log.close();
+    }
+
+}